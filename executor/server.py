@@ -1,22 +1,88 @@
+import base64
 import datetime
 import os
 import shutil
+import signal
+import subprocess
+import sys
 import uuid
+from collections import OrderedDict
 from threading import Thread, Lock
 import logging
 
 from executor import execute
 from pydantic import BaseModel
-from fastapi import FastAPI, HTTPException
+from fastapi import FastAPI, HTTPException, Request
+from fastapi.concurrency import run_in_threadpool
 
 lock = Lock()
+launches_lock = Lock()
+functions_lock = Lock() # Guards the active functions below, only held for a moment (unlike the lock of a reload)
 active_functions = dict()
+active_commands = dict() # The running function.py process of an active function, by runtime id
+cancelled_functions = set() # Active functions that were cancelled before their process was started
+launches = OrderedDict() # The runtime id of the most recent launches, by idempotency key
+REMEMBERED_LAUNCHES = 10000
+CANCEL_GRACE_PERIOD = float(os.getenv("CANCEL_GRACE_PERIOD", "5")) # Seconds a cancelled function gets to stop, before it is killed
 
 logging.getLogger('uvicorn.access').setLevel(logging.WARNING)
 
+JSON_CONTENT_TYPE = "application/json"
+PROTOBUF_CONTENT_TYPE = "application/x-protobuf"
+
+
 class FunctionRequest(BaseModel):
     session_info: str # Should be a base64 encoded gRPC SessionInfo object
 
+    @classmethod
+    def from_protobuf(cls, body: bytes) -> "FunctionRequest":
+        """
+        Reads a request sent as: message FunctionRequest { string uuid = 1; SessionInfo session_info = 2; }
+        The SessionInfo is kept as is (only base64 encoded for the function), so it doesn't have to be parsed here
+        """
+        session_info = b""
+        position = 0
+
+        while position < len(body):
+            key, position = read_varint(body, position)
+            field, wire_type = key >> 3, key & 0x7
+
+            if wire_type == 0: # varint
+                _, position = read_varint(body, position)
+            elif wire_type == 1: # 64-bit
+                position += 8
+            elif wire_type == 2: # length delimited
+                length, position = read_varint(body, position)
+                if field == 2:
+                    session_info = body[position:position + length]
+                position += length
+            elif wire_type == 5: # 32-bit
+                position += 4
+            else:
+                raise ValueError(f"Unsupported wire type {wire_type}")
+
+        if position != len(body):
+            raise ValueError("Truncated protobuf request")
+
+        return cls(session_info=base64.b64encode(session_info).decode())
+
+
+def read_varint(data: bytes, position: int) -> tuple[int, int]:
+    result = 0
+    shift = 0
+
+    while True:
+        if position >= len(data):
+            raise ValueError("Truncated protobuf request")
+
+        byte = data[position]
+        position += 1
+        result |= (byte & 0x7f) << shift
+        shift += 7
+
+        if not byte & 0x80:
+            return result, position
+
 
 def print_with_timestamp(line: str):
     print(f"[{datetime.datetime.now()}] {line}")
@@ -99,7 +165,8 @@ api = FastAPI()
 @api.get("/")
 @api.get("/python")
 def health():
-    return {"healthy": True}
+    # The request content types the launcher can choose from, when starting a function
+    return {"healthy": True, "content_types": [JSON_CONTENT_TYPE, PROTOBUF_CONTENT_TYPE]}
 
 
 @api.get("/python/functions")
@@ -110,7 +177,27 @@ def get_functions():
 # TODO: do we even want this?
 @api.get("/python/running_functions")
 def running_functions():
-    return list(active_functions.keys())
+    with functions_lock:
+        return list(active_functions.keys())
+
+
+@api.delete("/python/running_functions/{runtime_id}")
+def cancel_function(runtime_id: uuid.UUID):
+    with functions_lock:
+        if runtime_id not in active_functions:
+            raise HTTPException(status_code=404, detail=f"Function run {runtime_id} is not running")
+
+        process = active_commands.get(runtime_id)
+
+        if process is None:
+            # The function's context is still being created, its process won't be started
+            cancelled_functions.add(runtime_id)
+        else:
+            terminate(process)
+
+    print_with_runtime_id(runtime_id, "Function CANCELLED")
+
+    return {"runtime_id": runtime_id, "cancelled": True}
 
 
 @api.get("/python/reload")
@@ -120,15 +207,50 @@ def reload_functions():
 
 
 @api.post("/python/function/{function_id}")
-def execute_function(function_id: str, request: FunctionRequest):
+async def execute_function(function_id: str, raw_request: Request):
+    content_type = raw_request.headers.get("content-type", JSON_CONTENT_TYPE).split(";")[0].strip()
+
+    try:
+        if content_type == PROTOBUF_CONTENT_TYPE:
+            request = FunctionRequest.from_protobuf(await raw_request.body())
+        elif content_type == JSON_CONTENT_TYPE:
+            request = FunctionRequest.model_validate_json(await raw_request.body())
+        else:
+            raise HTTPException(status_code=415, detail=f"Content type {content_type} is not supported")
+    except ValueError as e: # Also covers pydantic's ValidationError
+        raise HTTPException(status_code=422, detail=str(e))
+
+    # Only reading the body has to be awaited, the rest waits for locks and the file system so it doesn't run on the
+    # event loop (which would hold up every other request)
+    return await run_in_threadpool(start_function, function_id, request, raw_request.headers.get("idempotency-key"))
+
+
+def start_function(function_id: str, request: FunctionRequest, idempotency_key: str | None):
     function_location = f"{active_function_dir}/{function_id}"
 
     if not os.path.isdir(function_location):
         raise HTTPException(status_code=404, detail=f"Function {function_id} not found")
 
-    runtime_id = uuid.uuid4()
+    # A retried launch (same Idempotency-Key header) gets the run that was started the first time
+    with launches_lock:
+        if idempotency_key and idempotency_key in launches:
+            return {
+                "runtime_id": launches[idempotency_key],
+                "function_id": function_id,
+                "request": request
+            }
+
+        runtime_id = uuid.uuid4()
+
+        if idempotency_key:
+            launches[idempotency_key] = runtime_id
+
+            if len(launches) > REMEMBERED_LAUNCHES:
+                launches.popitem(last=False)
+
     execution_thread = Thread(target=execute_command, args=(runtime_id, function_id, request, function_location))
-    active_functions[runtime_id] = execution_thread
+    with functions_lock:
+        active_functions[runtime_id] = execution_thread
 
     execution_thread.start()
 
@@ -139,6 +261,31 @@ def execute_function(function_id: str, request: FunctionRequest):
     }
 
 
+def terminate(process: subprocess.Popen):
+    """
+    Stops a function and every process it started (its process group): asks them to stop, and kills whatever is left
+    after the grace period. Doesn't wait for it, so it can be called while holding the functions_lock
+    """
+    try:
+        os.killpg(process.pid, signal.SIGTERM)
+    except ProcessLookupError:
+        return # Already stopped
+
+    def kill():
+        try:
+            process.wait(CANCEL_GRACE_PERIOD)
+        except subprocess.TimeoutExpired:
+            pass
+
+        # The function itself may have stopped, while a process it started did not
+        try:
+            os.killpg(process.pid, signal.SIGKILL)
+        except ProcessLookupError:
+            pass
+
+    Thread(target=kill, daemon=True).start()
+
+
 log_location = os.getenv("LOGS_LOCATION", "/tmp/executor_logs") # Where the local logs will be send to, for example: /tmp/logs -> s3://logs-bucket-stg
 
 def execute_command(runtime_id: uuid.UUID, function_id: str, request: FunctionRequest, function_location: str):
@@ -151,26 +298,49 @@ def execute_command(runtime_id: uuid.UUID, function_id: str, request: FunctionRe
 
     execution_code_log_file = f"{execution_directory}/output.log"
 
+    succeeded = False
+
     with open(execution_code_log_file, "w") as log_file:
         try:
-            # Copy over the function 'code' to the execution directory (its 'context')
-            create_function_context = execute(
+            # Copy over the function 'code' to the execution directory (its 'context'), waited for so nothing is still
+            # copying into it when the function is cancelled in the meantime (and its context removed)
+            execute(
                 f"cp -R {function_location}/* {execution_code_directory}",
                 stdout_file=log_file, stderr_file=log_file, # Merge both the stdout and stderr to the same file
-                asynchronous=True,
                 check=True
             )
 
             print_with_runtime_id(runtime_id, f"Starting {execution_directory}, created from {function_location}")
 
-            # Execute the function in its 'context' for the given session
-            succeeded = execute(
-                f"python {execution_code_directory}/function.py | tee {execution_code_log_file}", # TODO: do we want to add all output from functions to the executions log?
-                dependencies=[create_function_context], # Only execute the command after the context has been created
-                environment={"OPENOBD_SESSION_INFO": request.session_info},
-                directory=execution_directory,
-                check=True
+            with functions_lock:
+                if runtime_id in cancelled_functions:
+                    return
+
+            # Execute the function in its 'context' for the given session. It is started without a shell and in a
+            # process group of its own, so cancelling it stops the function and everything it started (see terminate)
+            process = subprocess.Popen(
+                [sys.executable, f"{execution_code_directory}/function.py"],
+                env={**os.environ, "OPENOBD_SESSION_INFO": request.session_info},
+                cwd=execution_directory,
+                stdout=subprocess.PIPE,
+                stderr=subprocess.STDOUT,
+                text=True,
+                errors="replace",
+                start_new_session=True
             )
+            with functions_lock:
+                active_commands[runtime_id] = process
+
+                # Cancelled while the process was being started, a cancel from now on terminates it itself
+                if runtime_id in cancelled_functions:
+                    terminate(process)
+
+            # The output goes to the execution's log as well as to the executor's own output
+            for line in process.stdout:
+                log_file.write(line)
+                print(line, end="", flush=True)
+
+            succeeded = 0 == process.wait()
         finally:
             shutil.rmtree(execution_code_directory) # remove the 'code' directory in the functions 'context' to save disk space
 
@@ -184,6 +354,10 @@ def execute_command(runtime_id: uuid.UUID, function_id: str, request: FunctionRe
 
             os.makedirs(date_index_log_location, exist_ok=True)
 
+            log_file.flush() # Still open, the function's output is written to it by this process
             copy(execution_code_log_file, f"{date_index_log_location}/{execution_log_directory_identifier}.log")
 
-            del active_functions[runtime_id]
\ No newline at end of file
+            with functions_lock:
+                active_commands.pop(runtime_id, None)
+                cancelled_functions.discard(runtime_id)
+                del active_functions[runtime_id]
\ No newline at end of file
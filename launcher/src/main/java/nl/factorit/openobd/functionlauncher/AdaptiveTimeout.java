@@ -0,0 +1,97 @@
+package nl.factorit.openobd.functionlauncher;
+
+import io.grpc.Deadline;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timeout that follows the observed response times of an executor: three times the p99 of the last 512 responses,
+ * within fixed bounds. Until enough responses were seen, the maximum is used. A request that timed out counts as a
+ * response that took as long as the timeout, so the timeout grows again when an executor slows down.
+ */
+public class AdaptiveTimeout {
+    private static final int WINDOW = 512;
+    private static final int RECALCULATE_EVERY = 32;
+    private static final int MULTIPLIER = 3;
+    private static final Logger logger = Logger.getLogger("AdaptiveTimeout");
+
+    private final String name;
+    private final long minimumNanos;
+    private final long maximumNanos;
+    private final long[] samples = new long[WINDOW]; // response times in nanoseconds, as a ring
+    private long recorded = 0;
+
+    private volatile long timeoutNanos;
+
+    /**
+     * @param name What the timeout is for, only used for logging
+     * @param minimum The timeout never gets shorter than this
+     * @param maximum The timeout never gets longer than this, and is used until enough responses were seen
+     */
+    public AdaptiveTimeout(String name, Duration minimum, Duration maximum) {
+        this.name = name;
+        this.minimumNanos = minimum.toNanos();
+        this.maximumNanos = maximum.toNanos();
+        this.timeoutNanos = this.maximumNanos;
+    }
+
+    /**
+     * @param responseTime The time it took for a response to be received
+     */
+    public void record(Duration responseTime) {
+        this.record(responseTime.toNanos());
+    }
+
+    /**
+     * Records that a request timed out, after the current timeout
+     */
+    public void recordTimeout() {
+        this.record(this.timeoutNanos);
+    }
+
+    private synchronized void record(long responseTimeNanos) {
+        this.samples[(int) (this.recorded % WINDOW)] = responseTimeNanos;
+        this.recorded++;
+
+        // Sorting the window on every response would cost more than the response itself
+        if (0 == this.recorded % RECALCULATE_EVERY) {
+            long[] sorted = Arrays.copyOf(this.samples, (int) Math.min(this.recorded, WINDOW));
+            Arrays.sort(sorted);
+
+            long p99 = sorted[(int) Math.ceil(sorted.length * 0.99) - 1];
+            long timeout = Math.max(this.minimumNanos, Math.min(this.maximumNanos, p99 * MULTIPLIER));
+
+            if (timeout != this.timeoutNanos) {
+                logger.debug("%s timeout is now %d ms (p99 %d ms)".formatted(
+                        this.name,
+                        TimeUnit.NANOSECONDS.toMillis(timeout),
+                        TimeUnit.NANOSECONDS.toMillis(p99)
+                ));
+            }
+
+            this.timeoutNanos = timeout;
+        }
+    }
+
+    public Duration get() {
+        return Duration.ofNanos(this.timeoutNanos);
+    }
+
+    /**
+     * @param deadline The deadline of the call the request is done for
+     * @return The timeout, or the time remaining until the deadline when that is shorter
+     */
+    public Duration get(Deadline deadline) {
+        return Duration.ofNanos(Math.max(0, Math.min(this.timeoutNanos, deadline.timeRemaining(TimeUnit.NANOSECONDS))));
+    }
+
+    /**
+     * @return Whether the timeout is shorter than the time remaining until the deadline, so a request that times out
+     * should be recorded as such
+     */
+    public boolean isShorterThan(Deadline deadline) {
+        return this.timeoutNanos < deadline.timeRemaining(TimeUnit.NANOSECONDS);
+    }
+}
@@ -0,0 +1,26 @@
+package nl.factorit.openobd.functionlauncher;
+
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Exponential backoff with full jitter: the wait is picked at random between nothing and the exponential maximum, so
+ * the retries of everything that failed at the same moment (i.e. a fleet of launchers losing the Function Broker) are
+ * spread out instead of hitting it again in lockstep
+ */
+public final class Backoff {
+    private Backoff() {
+    }
+
+    /**
+     * @param attempt The number of the retry, starting at 1
+     * @param base The maximum wait before the first retry, doubled for every next retry
+     * @param max The maximum wait before any retry
+     * @return The time to wait before the retry
+     */
+    public static Duration fullJitter(int attempt, Duration base, Duration max) {
+        long maximum = Math.min(max.toNanos(), base.toNanos() << Math.min(Math.max(0, attempt - 1), 16));
+
+        return Duration.ofNanos(ThreadLocalRandom.current().nextLong(maximum + 1));
+    }
+}
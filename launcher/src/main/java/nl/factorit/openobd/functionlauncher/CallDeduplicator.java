@@ -0,0 +1,140 @@
+package nl.factorit.openobd.functionlauncher;
+
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Remembers the calls that were dispatched recently, so a call that is delivered again (i.e. after the stream to the
+ * Function Broker was recovered, or on another cluster stream) gets the outcome of the first delivery instead of
+ * launching the function a second time.
+ *
+ * The calls are kept in a fixed table: a call can be in one of 8 slots after the slot its key hashes to, when those are
+ * all taken by calls that did not expire yet, the call that expires first is evicted. Lookups don't take a lock, only
+ * claiming a call does (striped by its slot), so the same call can't be claimed twice.
+ *
+ * @param <V> The outcome of a call
+ */
+public class CallDeduplicator<V> {
+    private static final int PROBES = 8;
+    private static final int LOCK_STRIPES = 64;
+
+    private final AtomicReferenceArray<Entry<V>> slots;
+    private final int mask;
+    private final long windowNanos;
+    private final Object[] locks = new Object[LOCK_STRIPES];
+    private final Metrics metrics = new Metrics("call_dedupe");
+
+    /**
+     * @param capacity The amount of calls that can be remembered, rounded up to a power of two
+     * @param window How long a call is remembered after it was claimed
+     */
+    public CallDeduplicator(int capacity, Duration window) {
+        int slots = Integer.highestOneBit(Math.max(PROBES, capacity - 1) << 1);
+
+        this.slots = new AtomicReferenceArray<>(slots);
+        this.mask = slots - 1;
+        this.windowNanos = window.toNanos();
+
+        for (int lock = 0; lock < LOCK_STRIPES; lock++) {
+            this.locks[lock] = new Object();
+        }
+    }
+
+    /**
+     * Claims the call for the caller, unless it was claimed within the window already
+     *
+     * @param key Identifies the call
+     * @param outcome Completed by the caller once the call was handled, should the caller get the claim
+     * @return The outcome of the earlier claim of the call, or empty when the caller got the claim
+     */
+    public Optional<CompletableFuture<V>> claim(String key, CompletableFuture<V> outcome) {
+        int home = spread(key.hashCode()) & this.mask;
+        long now = System.nanoTime();
+
+        Entry<V> existing = this.find(key, home, now);
+        if (null != existing) {
+            this.metrics.increment("hits");
+
+            return Optional.of(existing.outcome);
+        }
+
+        // Calls with the same key always lock the same stripe, so only one of them can miss
+        synchronized (this.locks[home & (LOCK_STRIPES - 1)]) {
+            existing = this.find(key, home, now);
+            if (null != existing) {
+                this.metrics.increment("hits");
+
+                return Optional.of(existing.outcome);
+            }
+
+            Entry<V> claimed = new Entry<>(key, now + this.windowNanos, outcome);
+
+            // Other stripes can take the same slots, the slot is taken over only if it didn't change in the meantime
+            while (true) {
+                int victim = -1;
+                Entry<V> victimEntry = null;
+
+                for (int probe = 0; probe < PROBES; probe++) {
+                    int slot = (home + probe) & this.mask;
+                    Entry<V> entry = this.slots.get(slot);
+
+                    if (null == entry || entry.isExpired(now)) {
+                        victim = slot;
+                        victimEntry = entry;
+
+                        break;
+                    }
+
+                    if (-1 == victim || entry.expiresAt - victimEntry.expiresAt < 0) {
+                        victim = slot;
+                        victimEntry = entry;
+                    }
+                }
+
+                if (this.slots.compareAndSet(victim, victimEntry, claimed)) {
+                    this.metrics.increment("misses");
+
+                    if (null != victimEntry && !victimEntry.isExpired(now)) {
+                        this.metrics.increment("evictions");
+                    }
+
+                    return Optional.empty();
+                }
+            }
+        }
+    }
+
+    private Entry<V> find(String key, int home, long now) {
+        for (int probe = 0; probe < PROBES; probe++) {
+            Entry<V> entry = this.slots.get((home + probe) & this.mask);
+
+            if (null != entry && !entry.isExpired(now) && entry.key.equals(key)) {
+                return entry;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Mixes all bits of the hash into the lower bits, which are the only ones used to pick a slot. Keys with similar
+     * hashes would otherwise end up in neighbouring slots and take each other's probes
+     */
+    private static int spread(int hash) {
+        int spread = hash * 0x9E3779B9;
+
+        return spread ^ (spread >>> 16);
+    }
+
+    public Metrics getMetrics() {
+        return this.metrics;
+    }
+
+    private record Entry<V>(String key, long expiresAt, CompletableFuture<V> outcome) {
+        private boolean isExpired(long now) {
+            return this.expiresAt - now <= 0;
+        }
+    }
+}
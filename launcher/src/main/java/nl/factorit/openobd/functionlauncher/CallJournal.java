@@ -0,0 +1,502 @@
+package nl.factorit.openobd.functionlauncher;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.jifeline.OpenOBD.FunctionBroker.Messages.FunctionCall;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of the calls received from the Function Broker and what happened to them, so the calls that
+ * were not answered when the Function Launcher died can be answered (or launched again) after a restart. Enabled by
+ * setting CALL_JOURNAL_DIRECTORY.
+ *
+ * The journal is written to a memory-mapped segment file of CALL_JOURNAL_SEGMENT_SIZE bytes (default 16 MiB). What is
+ * written to a mapped file survives the JVM dying, so an append is only a copy into memory. To also survive the
+ * machine going down, the segment is synced to disk every CALL_JOURNAL_SYNC_INTERVAL milliseconds (default 10) when
+ * anything was appended: all appends since the previous sync are committed at once.
+ *
+ * When a segment is full, the calls that were not answered yet are copied to a new segment and the full segment is
+ * deleted. So is every segment found at startup, after its unanswered calls were read. A record is written as its
+ * length, a CRC32 of its contents and its contents, the length last so a record that was cut off is never read.
+ *
+ * A call is journaled as it was received, including the authentication token of its session: a call that was not
+ * acknowledged by its executor is launched again after a restart, and the executor needs the token to join the
+ * session. So the segments are only readable by the user running the Function Launcher (0600), as is the directory
+ * when it is created by the journal (0700).
+ */
+public class CallJournal {
+    private static final long DEFAULT_SEGMENT_SIZE = 16L * 1024 * 1024;
+    private static final long MINIMUM_SEGMENT_SIZE = 64L * 1024;
+    private static final Duration DEFAULT_SYNC_INTERVAL = Duration.ofMillis(10);
+    private static final String SEGMENT_PREFIX = "calls-";
+    private static final String SEGMENT_SUFFIX = ".journal";
+    private static final int HEADER_SIZE = 8; // length and CRC32 of a record
+    private static final boolean POSIX = FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+    private static final Logger logger = Logger.getLogger("CallJournal");
+
+    private final Path directory;
+    private final long segmentSize;
+    private final Map<Long, PendingCall> pending = new HashMap<>(); // unanswered calls by id, guarded by this
+    private final List<JournaledCall> unfinished = new ArrayList<>();
+    private final ScheduledExecutorService syncer;
+    private final Metrics metrics = new Metrics("call_journal");
+
+    private Segment current;
+    private final AtomicLong nextId = new AtomicLong(1);
+    private volatile boolean dirty = false;
+
+    /**
+     * Reads the segments in the directory, the calls that were not answered are carried over to a new segment
+     *
+     * @param directory Where the segments are kept, created if it doesn't exist
+     * @param segmentSize The size of a segment file in bytes
+     * @param syncInterval Time between the syncs to disk
+     */
+    public CallJournal(Path directory, long segmentSize, Duration syncInterval) throws IOException {
+        this.directory = directory;
+        this.segmentSize = Math.max(MINIMUM_SEGMENT_SIZE, segmentSize);
+
+        Files.createDirectories(directory, permissions("rwx------"));
+
+        List<Path> found = this.listSegments();
+        long sequence = 0;
+
+        for (Path segment : found) {
+            sequence = Math.max(sequence, sequenceOf(segment));
+
+            this.read(segment);
+        }
+
+        this.current = this.openSegment(sequence + 1);
+
+        synchronized (this) {
+            for (PendingCall call : this.pending.values()) {
+                this.carryOver(call);
+                this.unfinished.add(call.toJournaledCall());
+            }
+        }
+
+        this.current.buffer.force();
+
+        for (Path segment : found) {
+            Files.delete(segment);
+        }
+
+        this.unfinished.sort(Comparator.comparingLong(JournaledCall::id));
+
+        if (!this.unfinished.isEmpty()) {
+            logger.info("Found %d unanswered call(s) in the journal".formatted(this.unfinished.size()));
+        }
+
+        this.syncer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "call-journal-sync");
+            thread.setDaemon(true);
+
+            return thread;
+        });
+        this.syncer.scheduleWithFixedDelay(this::sync, syncInterval.toNanos(), syncInterval.toNanos(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return The journal in CALL_JOURNAL_DIRECTORY, empty when it is not set
+     */
+    public static Optional<CallJournal> fromEnvironment() throws IOException {
+        String directory = System.getenv("CALL_JOURNAL_DIRECTORY");
+        if (null == directory || directory.isBlank()) {
+            return Optional.empty();
+        }
+
+        long segmentSize;
+        try {
+            segmentSize = Long.parseLong(System.getenv("CALL_JOURNAL_SEGMENT_SIZE"));
+        } catch (NumberFormatException e) {
+            segmentSize = DEFAULT_SEGMENT_SIZE;
+        }
+
+        Duration syncInterval;
+        try {
+            syncInterval = Duration.ofMillis(Math.max(1, Long.parseLong(System.getenv("CALL_JOURNAL_SYNC_INTERVAL"))));
+        } catch (NumberFormatException e) {
+            syncInterval = DEFAULT_SYNC_INTERVAL;
+        }
+
+        logger.info("Journaling calls in %s".formatted(directory));
+
+        return Optional.of(new CallJournal(Path.of(directory), segmentSize, syncInterval));
+    }
+
+    /**
+     * @return The calls that were not answered before the Function Launcher restarted, in the order they were received
+     */
+    public List<JournaledCall> getUnfinished() {
+        return List.copyOf(this.unfinished);
+    }
+
+    /**
+     * Journals a call that was received from the Function Broker
+     *
+     * @param idempotencyKey The key the call is launched with, so launching it again after a restart is safe
+     * @param receivedAtMillis When the call was received, as wall clock time
+     * @return The id of the call in the journal
+     */
+    public long received(String clusterId, FunctionCall call, String idempotencyKey, long receivedAtMillis) {
+        long id = this.nextId.getAndIncrement();
+        JournaledCall journaled = new JournaledCall(id, clusterId, call, idempotencyKey, receivedAtMillis, Event.RECEIVED);
+
+        // Encoded before taking the lock, the ids in a segment are not necessarily in order
+        byte[] record = encodeReceived(journaled);
+
+        synchronized (this) {
+            this.append(record);
+            this.pending.put(id, new PendingCall(journaled, record));
+        }
+
+        return id;
+    }
+
+    /**
+     * Journals what happened to a call, a call that was not journaled (or already answered) is ignored
+     *
+     * @param id The id of the call in the journal
+     * @param event What happened, after it was RECEIVED
+     */
+    public synchronized void record(long id, Event event) {
+        PendingCall call = Event.RESPONDED == event ? this.pending.remove(id) : this.pending.get(id);
+
+        if (null == call) {
+            return;
+        }
+
+        this.append(encodeEvent(id, event));
+
+        if (Event.RESPONDED != event) {
+            call.lastEvent = event;
+        }
+    }
+
+    /**
+     * @return The amount of calls that were not answered yet
+     */
+    public synchronized int size() {
+        return this.pending.size();
+    }
+
+    public Metrics getMetrics() {
+        return this.metrics;
+    }
+
+    /**
+     * Syncs the journal to disk and stops syncing
+     */
+    public void close() {
+        this.syncer.shutdownNow();
+
+        synchronized (this) {
+            this.current.buffer.force();
+        }
+    }
+
+    private void append(byte[] record) {
+        if (this.current.buffer.remaining() < record.length) {
+            this.rotate();
+        }
+
+        this.write(record);
+    }
+
+    private void write(byte[] record) {
+        if (this.current.buffer.remaining() < record.length) {
+            logger.error("Record of %d bytes does not fit in a journal segment, it is dropped".formatted(record.length));
+
+            return;
+        }
+
+        int position = this.current.buffer.position();
+
+        // The length (in front) is written last, a reader stops at the first record without a length
+        this.current.buffer.put(position + HEADER_SIZE, record, HEADER_SIZE, record.length - HEADER_SIZE);
+        this.current.buffer.putInt(position + Integer.BYTES, ByteBuffer.wrap(record).getInt(Integer.BYTES));
+        this.current.buffer.putInt(position, record.length - HEADER_SIZE);
+        this.current.buffer.position(position + record.length);
+
+        this.dirty = true;
+        this.metrics.increment("appends");
+        this.metrics.add("appended_bytes", record.length);
+    }
+
+    /**
+     * Continues in a new segment, with the calls that were not answered yet copied to it
+     */
+    private void rotate() {
+        Segment full = this.current;
+
+        try {
+            this.current = this.openSegment(full.sequence + 1);
+        } catch (IOException e) {
+            // Appending stops working until the next rotation succeeds, calls are handled as usual in the meantime
+            logger.error("Could not open journal segment %d: %s".formatted(full.sequence + 1, e.getMessage()));
+
+            return;
+        }
+
+        for (PendingCall call : this.pending.values()) {
+            this.carryOver(call);
+        }
+
+        this.current.buffer.force();
+
+        try {
+            Files.delete(full.path);
+        } catch (IOException e) {
+            logger.error("Could not delete journal segment %s: %s".formatted(full.path, e.getMessage()));
+        }
+
+        this.metrics.increment("rotations");
+        this.metrics.add("carried_over", this.pending.size());
+    }
+
+    /**
+     * Copies the call to the current segment, without rotating: when the unanswered calls don't fit in a single
+     * segment, the ones that don't fit are dropped
+     */
+    private void carryOver(PendingCall call) {
+        this.write(call.record);
+
+        if (Event.RECEIVED != call.lastEvent) {
+            this.write(encodeEvent(call.call.id(), call.lastEvent));
+        }
+    }
+
+    private void sync() {
+        if (!this.dirty) {
+            return;
+        }
+
+        this.dirty = false;
+
+        MappedByteBuffer buffer;
+        synchronized (this) {
+            buffer = this.current.buffer;
+        }
+
+        long start = System.nanoTime();
+        buffer.force();
+
+        this.metrics.record("sync_micros", TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+    }
+
+    private Segment openSegment(long sequence) throws IOException {
+        Path path = this.directory.resolve("%s%020d%s".formatted(SEGMENT_PREFIX, sequence, SEGMENT_SUFFIX));
+
+        Set<StandardOpenOption> options = EnumSet.of(StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        try (FileChannel channel = FileChannel.open(path, options, permissions("rw-------"))) {
+            // The mapping stays valid after the channel is closed
+            return new Segment(sequence, path, channel.map(FileChannel.MapMode.READ_WRITE, 0, this.segmentSize));
+        }
+    }
+
+    private List<Path> listSegments() throws IOException {
+        try (Stream<Path> files = Files.list(this.directory)) {
+            return files
+                    .filter(file -> file.getFileName().toString().startsWith(SEGMENT_PREFIX))
+                    .filter(file -> file.getFileName().toString().endsWith(SEGMENT_SUFFIX))
+                    .sorted(Comparator.comparingLong(CallJournal::sequenceOf))
+                    .toList();
+        }
+    }
+
+    private static long sequenceOf(Path segment) {
+        String name = segment.getFileName().toString();
+
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    /**
+     * Reads the records of a segment up to the first record that is missing or damaged
+     */
+    private void read(Path segment) throws IOException {
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        int records = 0;
+        CRC32 crc = new CRC32();
+
+        while (HEADER_SIZE <= buffer.remaining()) {
+            int length = buffer.getInt(buffer.position());
+
+            if (0 == length) {
+                break;
+            }
+
+            if (length < 0 || buffer.remaining() - HEADER_SIZE < length) {
+                logger.error("Journal segment %s ends with a damaged record".formatted(segment));
+
+                break;
+            }
+
+            int checksum = buffer.getInt(buffer.position() + Integer.BYTES);
+            ByteBuffer contents = buffer.slice(buffer.position() + HEADER_SIZE, length);
+
+            crc.reset();
+            crc.update(contents.duplicate());
+
+            if ((int) crc.getValue() != checksum) {
+                logger.error("Journal segment %s ends with a damaged record".formatted(segment));
+
+                break;
+            }
+
+            this.apply(contents);
+
+            buffer.position(buffer.position() + HEADER_SIZE + length);
+            records++;
+        }
+
+        logger.debug("Read %d record(s) from journal segment %s".formatted(records, segment));
+    }
+
+    private void apply(ByteBuffer contents) {
+        Event event = Event.values()[contents.get()];
+        long id = contents.getLong();
+
+        this.nextId.accumulateAndGet(id + 1, Math::max);
+
+        if (Event.RECEIVED == event) {
+            long receivedAtMillis = contents.getLong();
+            String clusterId = getString(contents);
+            String idempotencyKey = getString(contents);
+            byte[] call = new byte[contents.getInt()];
+            contents.get(call);
+
+            try {
+                JournaledCall journaled = new JournaledCall(id, clusterId, FunctionCall.parseFrom(call), idempotencyKey, receivedAtMillis, Event.RECEIVED);
+
+                this.pending.put(id, new PendingCall(journaled, encodeReceived(journaled)));
+            } catch (InvalidProtocolBufferException e) {
+                logger.error("Journaled call %d could not be read: %s".formatted(id, e.getMessage()));
+            }
+        } else if (Event.RESPONDED == event) {
+            this.pending.remove(id);
+        } else if (this.pending.containsKey(id)) {
+            this.pending.get(id).lastEvent = event;
+        }
+    }
+
+    private static byte[] encodeReceived(JournaledCall call) {
+        byte[] clusterId = call.clusterId().getBytes(StandardCharsets.UTF_8);
+        byte[] idempotencyKey = call.idempotencyKey().getBytes(StandardCharsets.UTF_8);
+        byte[] functionCall = call.call().toByteArray();
+
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + 1 + Long.BYTES * 2 + Short.BYTES * 2 + clusterId.length + idempotencyKey.length + Integer.BYTES + functionCall.length);
+        record.position(HEADER_SIZE);
+        record.put((byte) Event.RECEIVED.ordinal());
+        record.putLong(call.id());
+        record.putLong(call.receivedAtMillis());
+        record.putShort((short) clusterId.length).put(clusterId);
+        record.putShort((short) idempotencyKey.length).put(idempotencyKey);
+        record.putInt(functionCall.length).put(functionCall);
+
+        return seal(record);
+    }
+
+    private static byte[] encodeEvent(long id, Event event) {
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + 1 + Long.BYTES);
+        record.position(HEADER_SIZE);
+        record.put((byte) event.ordinal());
+        record.putLong(id);
+
+        return seal(record);
+    }
+
+    /**
+     * Fills in the header of an encoded record
+     */
+    private static byte[] seal(ByteBuffer record) {
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), HEADER_SIZE, record.capacity() - HEADER_SIZE);
+
+        record.putInt(0, record.capacity() - HEADER_SIZE);
+        record.putInt(Integer.BYTES, (int) crc.getValue());
+
+        return record.array();
+    }
+
+    /**
+     * @param permissions The permissions of a created file or directory, i.e. "rw-------"
+     * @return The permissions as attribute, none when the file system doesn't have POSIX permissions
+     */
+    private static FileAttribute<?>[] permissions(String permissions) {
+        if (!POSIX) {
+            return new FileAttribute<?>[0];
+        }
+
+        FileAttribute<Set<PosixFilePermission>> attribute = PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString(permissions));
+
+        return new FileAttribute<?>[]{attribute};
+    }
+
+    private static String getString(ByteBuffer contents) {
+        byte[] bytes = new byte[contents.getShort() & 0xFFFF];
+        contents.get(bytes);
+
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * What happened to a call, in the order it happens. The ordinal is written to the journal, so events may only be
+     * added at the end
+     */
+    public enum Event {
+        RECEIVED,
+        DISPATCHED, // taken up to be launched, the executor may have been contacted
+        ACKED, // the executor acknowledged that the function was started
+        RESPONDED // answered, the call is no longer needed after a restart
+    }
+
+    /**
+     * @param lastEvent The last thing that happened to the call before the Function Launcher restarted
+     */
+    public record JournaledCall(long id, String clusterId, FunctionCall call, String idempotencyKey, long receivedAtMillis, Event lastEvent) {
+    }
+
+    private static class PendingCall {
+        private final JournaledCall call;
+        private final byte[] record; // as RECEIVED, to carry it over to a new segment
+        private Event lastEvent;
+
+        private PendingCall(JournaledCall call, byte[] record) {
+            this.call = call;
+            this.record = record;
+            this.lastEvent = call.lastEvent();
+        }
+
+        private JournaledCall toJournaledCall() {
+            return new JournaledCall(this.call.id(), this.call.clusterId(), this.call.call(), this.call.idempotencyKey(), this.call.receivedAtMillis(), this.lastEvent);
+        }
+    }
+
+    private record Segment(long sequence, Path path, MappedByteBuffer buffer) {
+    }
+}
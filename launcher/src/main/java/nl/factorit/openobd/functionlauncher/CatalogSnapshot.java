@@ -0,0 +1,273 @@
+package nl.factorit.openobd.functionlauncher;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.UnaryOperator;
+import java.util.zip.CRC32;
+
+/**
+ * Binary copy of the parsed function catalog, by shard (see FunctionsParser), so a restarted Function Launcher only
+ * parses the shards that changed since it last loaded them. A shard is taken from the snapshot when the SHA-256 hash of
+ * its content is the one it had when it was parsed. Enabled by setting FUNCTIONS_SNAPSHOT_LOCATION.
+ *
+ * The snapshot is only a cache: when it can't be read (i.e. it was cut off, or written by another version) every shard
+ * is parsed and a new snapshot is written. It is replaced as a whole, by moving a completely written file over it. The
+ * contents end with a CRC32 of everything before it, which is checked before anything is read.
+ */
+public class CatalogSnapshot {
+    private static final int MAGIC = 0x4F4F4243; // "OOBC"
+    private static final int VERSION = 1;
+    private static final Logger logger = Logger.getLogger("CatalogSnapshot");
+
+    private final Path file;
+
+    /**
+     * @param file Where the snapshot is kept, its directory is created if it doesn't exist
+     */
+    public CatalogSnapshot(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * @return The snapshot in FUNCTIONS_SNAPSHOT_LOCATION, empty when it is not set
+     */
+    public static Optional<CatalogSnapshot> fromEnvironment() {
+        String file = System.getenv("FUNCTIONS_SNAPSHOT_LOCATION");
+        if (null == file || file.isBlank()) {
+            return Optional.empty();
+        }
+
+        return Optional.of(new CatalogSnapshot(Path.of(file)));
+    }
+
+    /**
+     * @param share Gives the instance of a string to keep, so strings are shared with the functions parsed elsewhere
+     * @return The functions of every shard in the snapshot by the file name of the shard, empty when there is no
+     * (readable) snapshot
+     */
+    public Map<String, Entry> read(UnaryOperator<String> share) {
+        long start = System.nanoTime();
+        Map<String, Entry> entries = new HashMap<>();
+
+        try {
+            ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(this.file));
+
+            CRC32 checksum = new CRC32();
+            checksum.update(in.array(), 0, in.limit() - Long.BYTES);
+            if (checksum.getValue() != in.getLong(in.limit() - Long.BYTES)) {
+                logger.error("Ignoring snapshot %s, its checksum does not match".formatted(this.file));
+
+                return Map.of();
+            }
+
+            if (MAGIC != in.getInt() || VERSION != in.getInt()) {
+                logger.info("Ignoring snapshot %s, it was written by another version".formatted(this.file));
+
+                return Map.of();
+            }
+
+            Map<List<String>, List<String>> sharedClusters = new HashMap<>();
+
+            int shards = in.getInt();
+            for (int shard = 0; shard < shards; shard++) {
+                String name = readString(in);
+                byte[] hash = new byte[Byte.toUnsignedInt(in.get())];
+                in.get(hash);
+
+                int count = in.getInt();
+                List<FunctionLauncher.Function> functions = new ArrayList<>(count);
+
+                for (int function = 0; function < count; function++) {
+                    functions.add(readFunction(in, share, sharedClusters));
+                }
+
+                entries.put(name, new Entry(hash, functions));
+            }
+        } catch (NoSuchFileException e) {
+            return Map.of();
+        } catch (IOException | RuntimeException e) {
+            logger.error("Ignoring snapshot %s, it could not be read: %s".formatted(this.file, e));
+
+            return Map.of();
+        }
+
+        logger.info("Read %d shard(s) from snapshot %s in %d ms".formatted(
+                entries.size(),
+                this.file,
+                Duration.ofNanos(System.nanoTime() - start).toMillis()
+        ));
+
+        return entries;
+    }
+
+    /**
+     * Replaces the snapshot with the given shards
+     *
+     * @param entries The functions of every shard by the file name of the shard
+     */
+    public void write(Map<String, Entry> entries) throws IOException {
+        Path directory = this.file.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+
+        Path written = Files.createTempFile(directory, this.file.getFileName().toString(), ".tmp");
+
+        try {
+            ByteArrayOutputStream contents = new ByteArrayOutputStream();
+            try (DataOutputStream out = new DataOutputStream(contents)) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(entries.size());
+
+                for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                    writeString(out, entry.getKey());
+                    out.writeByte(entry.getValue().hash.length);
+                    out.write(entry.getValue().hash);
+                    out.writeInt(entry.getValue().functions.size());
+
+                    for (FunctionLauncher.Function function : entry.getValue().functions) {
+                        writeFunction(out, function);
+                    }
+                }
+
+                CRC32 checksum = new CRC32();
+                checksum.update(contents.toByteArray());
+                out.writeLong(checksum.getValue());
+            }
+
+            Files.write(written, contents.toByteArray());
+
+            Files.move(written, this.file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(written);
+        }
+    }
+
+    private static void writeFunction(DataOutputStream out, FunctionLauncher.Function function) throws IOException {
+        FunctionsParser.FunctionDescription description = function.description;
+
+        writeString(out, function.id);
+        writeString(out, description.name());
+        writeString(out, description.signature());
+        writeString(out, description.description());
+        writeString(out, description.version());
+        writeString(out, description.author());
+        writeString(out, description.executor());
+        writeString(out, description.runtime());
+        out.writeByte(description.mode().ordinal());
+
+        if (null == description.clusters()) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(description.clusters().size());
+            for (String cluster : description.clusters()) {
+                writeString(out, cluster);
+            }
+        }
+
+        writeInteger(out, description.maxRuntime());
+        writeInteger(out, description.callDeadline());
+    }
+
+    private static FunctionLauncher.Function readFunction(
+            ByteBuffer in,
+            UnaryOperator<String> share,
+            Map<List<String>, List<String>> sharedClusters
+    ) {
+        String id = readString(in);
+        String name = readString(in);
+        String signature = readString(in);
+        String description = readString(in);
+        String version = share.apply(readString(in));
+        String author = share.apply(readString(in));
+        String executor = share.apply(readString(in));
+        String runtime = share.apply(readString(in));
+        FunctionsParser.FunctionMode mode = FunctionsParser.FunctionMode.values()[in.get()];
+
+        List<String> clusters = null;
+        int clusterCount = in.getInt();
+        if (-1 != clusterCount) {
+            List<String> read = new ArrayList<>(clusterCount);
+            for (int cluster = 0; cluster < clusterCount; cluster++) {
+                read.add(share.apply(readString(in)));
+            }
+
+            clusters = sharedClusters.computeIfAbsent(read, List::copyOf);
+        }
+
+        return new FunctionLauncher.Function(id, new FunctionsParser.FunctionDescription(
+                name,
+                signature,
+                description,
+                version,
+                author,
+                executor,
+                runtime,
+                mode,
+                clusters,
+                readInteger(in),
+                readInteger(in)
+        ));
+    }
+
+    /**
+     * A string is written as its length in bytes (-1 for null) and its UTF-8 bytes
+     */
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (null == value) {
+            out.writeInt(-1);
+
+            return;
+        }
+
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getInt();
+
+        if (-1 == length) {
+            return null;
+        }
+
+        String value = new String(in.array(), in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+
+        return value;
+    }
+
+    private static void writeInteger(DataOutputStream out, Integer value) throws IOException {
+        out.writeBoolean(null != value);
+        out.writeInt(null != value ? value : 0);
+    }
+
+    private static Integer readInteger(ByteBuffer in) {
+        boolean present = 0 != in.get();
+        int value = in.getInt();
+
+        return present ? value : null;
+    }
+
+    /**
+     * The functions of a single shard
+     *
+     * @param hash SHA-256 hash of the content of the shard they were parsed from
+     * @param functions All functions in the shard, whatever their mode
+     */
+    public record Entry(byte[] hash, List<FunctionLauncher.Function> functions) {
+    }
+}
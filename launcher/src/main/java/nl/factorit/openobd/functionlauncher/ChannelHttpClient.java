@@ -0,0 +1,504 @@
+package nl.factorit.openobd.functionlauncher;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+
+/**
+ * Minimal HTTP/1.1 client on a SocketChannel, for executors on a Unix domain socket (see UnixSocketExecutorTransport),
+ * which HttpURLConnection can't connect to. Only what the executor API needs is supported: requests with a body of a
+ * known size, and responses with a Content-Length or a chunked body.
+ *
+ * Connections are kept alive and reused, most recently used first. A request (head and body) is sent in a single
+ * write. Channels are non-blocking and every connection waits on a Selector of its own, so a response can time out.
+ */
+public class ChannelHttpClient {
+    private static final int MAX_IDLE_CONNECTIONS = 16;
+    private static final int BUFFER_SIZE = 8 * 1024;
+    private static final int MAX_HEAD_SIZE = 64 * 1024;
+    private static final byte[] END_OF_HEAD = "\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final SocketAddress address;
+    private final String host; // the Host header, required by HTTP/1.1
+    private final Deque<Connection> idle = new ConcurrentLinkedDeque<>();
+    private volatile boolean closed = false;
+
+    /**
+     * @param address The socket to connect to, i.e. a UnixDomainSocketAddress
+     */
+    public ChannelHttpClient(SocketAddress address) {
+        this.address = address;
+        this.host = address instanceof InetSocketAddress inet
+                ? "%s:%d".formatted(inet.getHostString(), inet.getPort())
+                : "localhost";
+    }
+
+    /**
+     * @return An idle connection, or a new one when there is none. Idle connections that were closed by the other side
+     * in the meantime are dropped
+     * @throws ConnectFailedException When a new connection could not be opened
+     */
+    private Connection connect() throws ConnectFailedException {
+        Connection connection;
+        while (null != (connection = this.idle.pollFirst())) {
+            if (connection.isUsable()) {
+                return connection;
+            }
+
+            connection.close();
+        }
+
+        try {
+            return new Connection(SocketChannel.open(this.address));
+        } catch (IOException e) {
+            throw new ConnectFailedException(this.address, e);
+        }
+    }
+
+    /**
+     * Sends a request and reads its response on a kept-alive connection. When a reused connection turns out to be closed
+     * before anything of the response was read, the request is sent again on another connection
+     *
+     * @param method The request method, i.e. "POST"
+     * @param target The path of the request, i.e. "/python/functions"
+     * @param headers Additional request headers, i.e. Content-Type
+     * @param body The request body, null to send none
+     * @param timeout Maximum time to wait for (a part of) the request to be sent, and for the full response
+     * @throws ConnectFailedException When a new connection could not be opened, nothing was sent
+     * @throws SocketTimeoutException When the timeout passed, the request could have been handled
+     */
+    public Response exchange(String method, String target, Map<String, String> headers, byte[] body, Duration timeout) throws IOException {
+        while (true) {
+            Connection connection = this.connect();
+
+            try {
+                long deadline = System.nanoTime() + timeout.toNanos();
+
+                connection.send(method, target, headers, body, deadline);
+                Response response = connection.receive(deadline);
+                connection.release();
+
+                return response;
+            } catch (StaleConnectionException e) {
+                connection.close();
+
+                if (!connection.reused) {
+                    throw e;
+                }
+            } catch (IOException | RuntimeException e) {
+                connection.close();
+
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Closes the idle connections, connections in use are closed when they are released
+     */
+    public void close() {
+        this.closed = true;
+
+        Connection connection;
+        while (null != (connection = this.idle.pollFirst())) {
+            connection.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return this.address.toString();
+    }
+
+    /**
+     * A single connection, used by a single thread at a time
+     */
+    private final class Connection {
+        private final SocketChannel channel;
+        private final Selector selector;
+        private final SelectionKey key;
+        private ByteBuffer input = ByteBuffer.allocate(BUFFER_SIZE); // the received bytes from 0 up to its position
+        private boolean reused = false;
+        private boolean keepAlive = true;
+
+        private Connection(SocketChannel channel) throws IOException {
+            this.channel = channel;
+
+            try {
+                channel.configureBlocking(false);
+                this.selector = Selector.open();
+                this.key = channel.register(this.selector, SelectionKey.OP_READ);
+            } catch (IOException e) {
+                channel.close();
+
+                throw e;
+            }
+        }
+
+        /**
+         * An idle connection that can be read from was closed by the other side (or sent something it shouldn't have)
+         */
+        private boolean isUsable() {
+            try {
+                this.selector.selectedKeys().clear();
+                this.reused = true;
+
+                return this.channel.isOpen() && 0 == this.selector.selectNow();
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        private void send(String method, String target, Map<String, String> headers, byte[] body, long deadline) throws IOException {
+            StringBuilder head = new StringBuilder(256)
+                    .append(method).append(' ').append(target).append(" HTTP/1.1\r\n")
+                    .append("Host: ").append(ChannelHttpClient.this.host).append("\r\n");
+
+            headers.forEach((name, value) -> head.append(name).append(": ").append(value).append("\r\n"));
+
+            if (null != body) {
+                head.append("Content-Length: ").append(body.length).append("\r\n");
+            }
+
+            head.append("\r\n");
+
+            byte[] headBytes = head.toString().getBytes(StandardCharsets.ISO_8859_1);
+            ByteBuffer output = ByteBuffer.allocate(headBytes.length + (null != body ? body.length : 0));
+            output.put(headBytes);
+            if (null != body) {
+                output.put(body);
+            }
+            output.flip();
+
+            while (output.hasRemaining()) {
+                if (0 == this.channel.write(output)) {
+                    this.await(SelectionKey.OP_WRITE, deadline);
+                }
+            }
+        }
+
+        private Response receive(long deadline) throws IOException {
+            int headEnd;
+            int status;
+
+            // Informational (1xx) responses are followed by the actual response
+            do {
+                headEnd = this.readHead(deadline);
+                status = this.parseStatus(headEnd);
+            } while (100 <= status && status < 200 && this.consume(headEnd));
+
+            String head = new String(this.input.array(), 0, headEnd, StandardCharsets.ISO_8859_1);
+            String[] lines = head.split("\r\n");
+
+            this.keepAlive = lines[0].startsWith("HTTP/1.1");
+            long contentLength = -1;
+            boolean chunked = false;
+
+            for (int line = 1; line < lines.length; line++) {
+                int colon = lines[line].indexOf(':');
+                if (-1 == colon) {
+                    continue;
+                }
+
+                String name = lines[line].substring(0, colon).trim().toLowerCase(Locale.ROOT);
+                String value = lines[line].substring(colon + 1).trim().toLowerCase(Locale.ROOT);
+
+                switch (name) {
+                    case "content-length" -> contentLength = Long.parseLong(value);
+                    case "transfer-encoding" -> chunked = value.endsWith("chunked");
+                    case "connection" -> this.keepAlive = !value.contains("close") && (this.keepAlive || value.contains("keep-alive"));
+                    default -> {
+                    }
+                }
+            }
+
+            byte[] body;
+            int end;
+
+            if (204 == status || 304 == status) {
+                body = new byte[0];
+                end = headEnd;
+            } else if (chunked) {
+                ChunkedBody chunkedBody = this.readChunked(headEnd, deadline);
+                body = chunkedBody.body;
+                end = chunkedBody.end;
+            } else if (-1 != contentLength) {
+                end = Math.addExact(headEnd, Math.toIntExact(contentLength));
+                this.fill(end, deadline);
+                body = Arrays.copyOfRange(this.input.array(), headEnd, end);
+            } else {
+                // The body ends when the connection is closed
+                do {
+                    this.ensureCapacity(this.input.position() + 1);
+                } while (-1 != this.read(deadline));
+
+                this.keepAlive = false;
+                end = this.input.position();
+                body = Arrays.copyOfRange(this.input.array(), headEnd, end);
+            }
+
+            this.consume(end);
+
+            return new Response(status, body);
+        }
+
+        /**
+         * @return The position right after the empty line that ends the head of the response
+         */
+        private int readHead(long deadline) throws IOException {
+            int searched = 0;
+
+            while (true) {
+                int found = indexOf(this.input.array(), searched, this.input.position(), END_OF_HEAD);
+                if (-1 != found) {
+                    return found + END_OF_HEAD.length;
+                }
+
+                searched = Math.max(0, this.input.position() - END_OF_HEAD.length + 1);
+
+                if (MAX_HEAD_SIZE <= this.input.position()) {
+                    throw new IOException("The head of the response exceeds %d bytes".formatted(MAX_HEAD_SIZE));
+                }
+
+                this.ensureCapacity(this.input.position() + 1);
+
+                if (-1 == this.read(deadline)) {
+                    if (0 == this.input.position()) {
+                        throw new StaleConnectionException();
+                    }
+
+                    throw new EOFException("The connection was closed in the head of the response");
+                }
+            }
+        }
+
+        /**
+         * @return The status code on the status line, i.e. 200 for "HTTP/1.1 200 OK"
+         */
+        private int parseStatus(int headEnd) throws IOException {
+            String statusLine = new String(this.input.array(), 0, Math.min(headEnd, 32), StandardCharsets.ISO_8859_1);
+            String[] parts = statusLine.split(" ", 3);
+
+            try {
+                return Integer.parseInt(parts[1].trim());
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                throw new IOException("Invalid status line: %s".formatted(statusLine.split("\r\n")[0]));
+            }
+        }
+
+        private ChunkedBody readChunked(int start, long deadline) throws IOException {
+            ByteBuffer body = ByteBuffer.allocate(BUFFER_SIZE);
+            int position = start;
+
+            while (true) {
+                int lineEnd = this.readLine(position, deadline);
+                String size = new String(this.input.array(), position, lineEnd - position, StandardCharsets.ISO_8859_1);
+                int extension = size.indexOf(';');
+                int chunkSize = Integer.parseInt((-1 != extension ? size.substring(0, extension) : size).trim(), 16);
+                position = lineEnd + 2;
+
+                if (0 == chunkSize) {
+                    // Skips the trailer, up to and including the empty line that ends it
+                    while (true) {
+                        lineEnd = this.readLine(position, deadline);
+                        boolean empty = lineEnd == position;
+                        position = lineEnd + 2;
+
+                        if (empty) {
+                            return new ChunkedBody(Arrays.copyOf(body.array(), body.position()), position);
+                        }
+                    }
+                }
+
+                this.fill(position + chunkSize + 2, deadline);
+
+                if (body.remaining() < chunkSize) {
+                    body = ByteBuffer.allocate(Math.max(body.capacity() * 2, body.position() + chunkSize)).put(body.flip());
+                }
+
+                body.put(this.input.array(), position, chunkSize);
+                position += chunkSize + 2;
+            }
+        }
+
+        /**
+         * @return The position of the CR LF that ends the line starting at the given position
+         */
+        private int readLine(int start, long deadline) throws IOException {
+            while (true) {
+                int found = indexOf(this.input.array(), start, this.input.position(), END_OF_HEAD, 2);
+                if (-1 != found) {
+                    return found;
+                }
+
+                this.ensureCapacity(this.input.position() + 1);
+
+                if (-1 == this.read(deadline)) {
+                    throw new EOFException("The connection was closed in the body of the response");
+                }
+            }
+        }
+
+        /**
+         * Reads until at least the given amount of bytes was received
+         */
+        private void fill(int size, long deadline) throws IOException {
+            this.ensureCapacity(size);
+
+            while (this.input.position() < size) {
+                if (-1 == this.read(deadline)) {
+                    throw new EOFException("The connection was closed in the body of the response");
+                }
+            }
+        }
+
+        /**
+         * @return The amount of bytes read, -1 when the connection was closed. Waits for at least one byte otherwise
+         */
+        private int read(long deadline) throws IOException {
+            while (true) {
+                int read = this.channel.read(this.input);
+
+                if (0 != read) {
+                    return read;
+                }
+
+                this.await(SelectionKey.OP_READ, deadline);
+            }
+        }
+
+        private void ensureCapacity(int size) {
+            if (this.input.capacity() < size) {
+                this.input = ByteBuffer.allocate(Math.max(this.input.capacity() * 2, size)).put(this.input.flip());
+            }
+        }
+
+        /**
+         * Drops the bytes of a handled response, keeping whatever was received after it
+         *
+         * @return Always true, so it can be called in a condition
+         */
+        private boolean consume(int end) {
+            this.input.flip().position(end);
+            this.input.compact();
+
+            return true;
+        }
+
+        /**
+         * Waits until the channel is ready for the given operation
+         *
+         * @throws SocketTimeoutException When the deadline passed first, the connection can't be used anymore
+         */
+        private void await(int operation, long deadline) throws IOException {
+            this.key.interestOps(operation);
+            this.selector.selectedKeys().clear();
+
+            try {
+                while (0 == this.selector.select(Math.max(1, Duration.ofNanos(deadline - System.nanoTime()).toMillis()))) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        this.close();
+
+                        throw new InterruptedIOException("Interrupted waiting for the executor");
+                    }
+
+                    if (0 <= System.nanoTime() - deadline) {
+                        this.close();
+
+                        throw new SocketTimeoutException("Timed out waiting for the executor");
+                    }
+                }
+            } finally {
+                if (this.key.isValid()) {
+                    this.key.interestOps(SelectionKey.OP_READ);
+                }
+            }
+        }
+
+        /**
+         * Hands the connection back to be reused, when the response allows it
+         */
+        private void release() {
+            if (this.keepAlive && 0 == this.input.position() && !ChannelHttpClient.this.closed && ChannelHttpClient.this.idle.size() < MAX_IDLE_CONNECTIONS) {
+                ChannelHttpClient.this.idle.offerFirst(this);
+            } else {
+                this.close();
+            }
+        }
+
+        private void close() {
+            try {
+                this.selector.close();
+                this.channel.close();
+            } catch (IOException e) {
+                // Nothing left to do with it
+            }
+        }
+    }
+
+    /**
+     * @return The position of the first of the given amount of bytes of the pattern between start and end, -1 when
+     * they are not in there
+     */
+    private static int indexOf(byte[] bytes, int start, int end, byte[] pattern, int length) {
+        outer:
+        for (int position = start; position <= end - length; position++) {
+            for (int i = 0; i < length; i++) {
+                if (bytes[position + i] != pattern[i]) {
+                    continue outer;
+                }
+            }
+
+            return position;
+        }
+
+        return -1;
+    }
+
+    private static int indexOf(byte[] bytes, int start, int end, byte[] pattern) {
+        return indexOf(bytes, start, end, pattern, pattern.length);
+    }
+
+    private record ChunkedBody(byte[] body, int end) {
+    }
+
+    /**
+     * @param status The status code of the response
+     * @param body The full body of the response, empty when there was none
+     */
+    public record Response(int status, byte[] body) {
+    }
+
+    /**
+     * No connection could be opened, so the request was not sent
+     */
+    public static class ConnectFailedException extends IOException {
+        public ConnectFailedException(SocketAddress address, IOException cause) {
+            super("Could not connect to %s: %s".formatted(address, cause.getMessage()), cause);
+        }
+    }
+
+    /**
+     * The connection was closed before anything of the response was received, on a kept-alive connection this means
+     * the other side closed it while it was idle
+     */
+    private static class StaleConnectionException extends EOFException {
+        private StaleConnectionException() {
+            super("The connection was closed before the response");
+        }
+    }
+}
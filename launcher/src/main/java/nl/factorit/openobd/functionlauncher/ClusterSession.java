@@ -0,0 +1,555 @@
+package nl.factorit.openobd.functionlauncher;
+
+import com.jifeline.OpenOBD.FunctionBroker.Messages.*;
+import nl.factorit.openobd.functionlauncher.broker.BrokerClient;
+import nl.factorit.openobd.functionlauncher.broker.ClusterConfig;
+import nl.factorit.openobd.functionlauncher.broker.communication.BrokerStream;
+import nl.factorit.openobd.functionlauncher.broker.communication.IncomingMessage;
+import nl.factorit.openobd.functionlauncher.broker.communication.OutgoingMessage;
+import nl.factorit.openobd.functionlauncher.broker.communication.ReplayBuffer;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A single openOBD cluster served by the Function Launcher. Holds the Function Broker connection of that cluster and
+ * the part of the function catalog that is registered on it.
+ *
+ * The connection goes through the states CONNECTING, AUTHENTICATING, REGISTERING and READY. When it is lost it is
+ * recovered in the background: the cluster waits in BACKOFF (exponential, with full jitter) before every attempt, while
+ * the other clusters and the launches that are in-flight carry on. Once DRAINING, it is never reconnected.
+ */
+public class ClusterSession {
+    private static final int DEFAULT_REPLAY_BUFFER_SIZE = 1000;
+    private static final Logger logger = Logger.getLogger("ClusterSession");
+
+    private final ClusterConfig config;
+    private final ShardCoordinator shards;
+    private final BitSet online = new BitSet(); // positions in the catalog of the functions registered ONLINE, guarded by itself
+    private final Metrics metrics;
+    private final ReplayBuffer replayBuffer;
+    private final ScheduledExecutorService reconnects;
+    private final Runnable onLost;
+    private final AtomicInteger recoveryAttempts = new AtomicInteger();
+
+    private volatile BrokerClient brokerClient;
+    private volatile State state = State.CONNECTING;
+    private volatile Catalog catalog; // replaced while holding the lock on online
+    private volatile OutgoingMessage.FunctionBrokerTokenMessage pingReply; // reply to the latest ping
+    private long stateSince = System.nanoTime(); // guarded by this
+    private LauncherEvents.ClusterPhase phase = new LauncherEvents.ClusterPhase(); // of the current state, guarded by this
+
+    /**
+     * @param config The cluster to serve functions on
+     * @param catalog All functions known to the Function Launcher, only those that should be served on the given
+     *                cluster will be registered
+     * @param shards Decides which of the cluster's functions are registered by this Function Launcher
+     * @param reconnects Runs the attempts to recover a lost connection
+     * @param onLost Called when the connection could not be recovered within the maximum amount of attempts
+     */
+    public ClusterSession(
+            ClusterConfig config,
+            FunctionIndex catalog,
+            ShardCoordinator shards,
+            ScheduledExecutorService reconnects,
+            Runnable onLost
+    ) {
+        this.config = config;
+        this.shards = shards;
+        this.reconnects = reconnects;
+        this.onLost = onLost;
+        this.metrics = new Metrics("Cluster %s".formatted(config.clusterId()));
+
+        int replayBufferSize;
+        try {
+            replayBufferSize = Integer.parseInt(System.getenv("OPENOBD_BROKER_REPLAY_BUFFER"));
+        } catch (NumberFormatException e) {
+            replayBufferSize = DEFAULT_REPLAY_BUFFER_SIZE;
+        }
+
+        this.replayBuffer = new ReplayBuffer(replayBufferSize, this.metrics);
+
+        this.catalog = Catalog.servedOn(catalog, config.clusterId());
+        this.phase.begin();
+    }
+
+    /**
+     * (Re)opens the Function Broker stream for this cluster and registers all functions owned by this Function Launcher
+     * as ONLINE. Blocks until it is READY or failed
+     */
+    public void connect() throws BrokerClient.BrokerAuthenticationException, BrokerStream.StreamEndingException {
+        logger.debug("Opening Function Broker stream for cluster %s".formatted(this.config.clusterId()));
+
+        if (!this.transition(State.CONNECTING)) {
+            return;
+        }
+
+        BrokerClient client = new BrokerClient(this.config, this.replayBuffer, this.metrics);
+
+        try {
+            if (!this.transition(State.AUTHENTICATING)) {
+                closeQuietly(client);
+
+                return;
+            }
+
+            client.authenticate();
+        } catch (RuntimeException e) {
+            closeQuietly(client);
+
+            throw e;
+        }
+
+        if (!this.transition(State.REGISTERING)) {
+            closeQuietly(client);
+
+            return;
+        }
+
+        BrokerClient previousClient = this.brokerClient;
+        this.brokerClient = client;
+
+        if (null != previousClient) {
+            closeQuietly(previousClient);
+        }
+
+        // A new connection starts without any registrations
+        synchronized (this.online) {
+            this.online.clear();
+        }
+
+        this.rebalance();
+
+        if (this.transition(State.READY)) {
+            this.metrics.increment("connects");
+        }
+    }
+
+    /**
+     * Recovers the lost connection in the background, after a backoff. Only the first loss of a READY connection
+     * starts the recovery, it keeps trying until it is READY again or runs out of attempts
+     */
+    public void recover() {
+        synchronized (this) {
+            if (State.READY != this.state) {
+                return;
+            }
+        }
+
+        this.scheduleRecovery();
+    }
+
+    private void scheduleRecovery() {
+        int attempt = this.recoveryAttempts.incrementAndGet();
+
+        this.metrics.increment("recovery_attempts");
+
+        if (Server.MAX_ITERATIONS < attempt) {
+            logger.error("Could not recover Broker communication for cluster %s, stopping".formatted(this.config.clusterId()));
+
+            this.onLost.run();
+
+            return;
+        }
+
+        if (!this.transition(State.BACKOFF)) {
+            return;
+        }
+
+        Duration backoff = Backoff.fullJitter(attempt, Server.SLEEP_TIME_IN_SECONDS, Server.MAX_BACKOFF);
+
+        logger.info("Trying to recover Broker communication for cluster %s in %d ms (trying %s more time(s))...".formatted(
+                this.config.clusterId(),
+                backoff.toMillis(),
+                Server.MAX_ITERATIONS - attempt
+        ));
+
+        try {
+            this.reconnects.schedule(this::attemptRecovery, backoff.toNanos(), TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            // The launcher is stopping
+            logger.debug("Not recovering cluster %s, reconnects are stopped".formatted(this.config.clusterId()));
+        }
+    }
+
+    private void attemptRecovery() {
+        try {
+            this.connect();
+        } catch (RuntimeException e) {
+            // If it fails the only thing we can do is try it again... (with the max amount of tries of course)
+            logger.error("Could not reconnect to cluster %s: %s".formatted(this.config.clusterId(), e.getMessage()));
+
+            this.scheduleRecovery();
+        }
+    }
+
+    /**
+     * Moves the connection to the given state, recording the time spent in the previous one
+     *
+     * @return Whether the connection moved, it doesn't once DRAINING
+     */
+    private synchronized boolean transition(State next) {
+        if (State.DRAINING == this.state) {
+            return State.DRAINING == next;
+        }
+
+        long now = System.nanoTime();
+
+        this.metrics.record("%s_ms".formatted(this.state.name().toLowerCase()), Duration.ofNanos(now - this.stateSince).toMillis());
+
+        if (this.state != next) {
+            logger.debug("Cluster %s: %s -> %s".formatted(this.config.clusterId(), this.state, next));
+
+            this.phase.end();
+            if (this.phase.shouldCommit()) {
+                this.phase.cluster = this.config.clusterId();
+                this.phase.phase = this.state.name();
+                this.phase.next = next.name();
+                this.phase.attempt = this.recoveryAttempts.get();
+                this.phase.commit();
+            }
+
+            this.phase = new LauncherEvents.ClusterPhase();
+            this.phase.begin();
+        }
+
+        this.state = next;
+        this.stateSince = now;
+
+        return true;
+    }
+
+    private static void closeQuietly(BrokerClient client) {
+        try {
+            client.close(Duration.ZERO);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stops the connection from being recovered from now on, should it be lost while draining
+     */
+    public void startDraining() {
+        this.transition(State.DRAINING);
+    }
+
+    /**
+     * Registers the functions this Function Launcher (now) owns as ONLINE and the functions it no longer owns as
+     * OFFLINE, i.e. after another replica joined or left
+     */
+    public void rebalance() throws BrokerStream.StreamEndingException {
+        int online = 0;
+        int offline = 0;
+
+        synchronized (this.online) {
+            Catalog catalog = this.catalog;
+
+            for (int position = catalog.served.nextSetBit(0); -1 != position; position = catalog.served.nextSetBit(position + 1)) {
+                FunctionLauncher.Function function = catalog.functions.get(position);
+                boolean owned = this.shards.owns(function.id);
+
+                if (owned == this.online.get(position)) {
+                    continue;
+                }
+
+                this.brokerClient.send(new OutgoingMessage.FunctionRegistrationMessage(function.toRegistration(owned
+                        ? FunctionRegistrationState.FUNCTION_REGISTRATION_STATE_ONLINE
+                        : FunctionRegistrationState.FUNCTION_REGISTRATION_STATE_OFFLINE
+                )));
+                this.online.set(position, owned);
+
+                if (owned) {
+                    online++;
+                } else {
+                    offline++;
+                }
+            }
+        }
+
+        if (0 < online + offline) {
+            logger.info("Set %d function(s) ONLINE and %d function(s) OFFLINE on cluster %s".formatted(online, offline, this.config.clusterId()));
+        }
+    }
+
+    /**
+     * Sets all functions served on this cluster to OFFLINE, in a single pipelined batch
+     */
+    public void goOffline() throws BrokerStream.StreamEndingException {
+        List<OutgoingMessage.FunctionRegistrationMessage> batch = new ArrayList<>();
+
+        synchronized (this.online) {
+            for (int position = this.online.nextSetBit(0); -1 != position; position = this.online.nextSetBit(position + 1)) {
+                batch.add(new OutgoingMessage.FunctionRegistrationMessage(
+                        this.catalog.functions.get(position).toRegistration(FunctionRegistrationState.FUNCTION_REGISTRATION_STATE_OFFLINE)
+                ));
+            }
+
+            this.online.clear();
+        }
+
+        if (!batch.isEmpty()) {
+            this.brokerClient.sendRegistrations(batch);
+        }
+    }
+
+    /**
+     * Serves the given catalog from now on. Functions that were removed from it (or are no longer served on this cluster)
+     * are set OFFLINE, functions that were added or changed are registered ONLINE (again) when they are owned by this
+     * Function Launcher. A cluster that is not READY only takes the catalog, it registers the functions when it is.
+     *
+     * @param functions The new catalog
+     */
+    public void updateCatalog(FunctionIndex functions) throws BrokerStream.StreamEndingException {
+        Catalog catalog = Catalog.servedOn(functions, this.config.clusterId());
+        List<OutgoingMessage.FunctionRegistrationMessage> withdrawn = new ArrayList<>();
+
+        synchronized (this.online) {
+            BitSet online = new BitSet();
+
+            for (int position = this.online.nextSetBit(0); -1 != position; position = this.online.nextSetBit(position + 1)) {
+                FunctionLauncher.Function function = this.catalog.functions.get(position);
+                int updated = functions.indexOf(function.id);
+
+                if (-1 == updated || !catalog.served.get(updated)) {
+                    withdrawn.add(new OutgoingMessage.FunctionRegistrationMessage(
+                            function.toRegistration(FunctionRegistrationState.FUNCTION_REGISTRATION_STATE_OFFLINE)
+                    ));
+                } else if (function.description.equals(functions.get(updated).description)) {
+                    online.set(updated);
+                }
+                // A changed function is left OFFLINE here, so the rebalance registers its new details
+            }
+
+            this.catalog = catalog;
+            this.online.clear();
+            this.online.or(online);
+        }
+
+        if (!this.isReady()) {
+            // A new connection starts without any registrations
+            return;
+        }
+
+        if (!withdrawn.isEmpty()) {
+            this.brokerClient.sendRegistrations(withdrawn);
+
+            logger.info("Set %d removed function(s) OFFLINE on cluster %s".formatted(withdrawn.size(), this.config.clusterId()));
+        }
+
+        this.rebalance();
+    }
+
+    /**
+     * Takes all messages that were received but not handled yet and responds to every call in them that it could not
+     * be started, so the callers don't have to wait for a response that will never come
+     *
+     * @return The amount of rejected calls
+     */
+    public int rejectReceivedCalls() {
+        int rejected = 0;
+
+        for (IncomingMessage received : this.brokerClient.drainReceived()) {
+            if (!received.update().hasFunctionCall()) {
+                continue;
+            }
+
+            String functionId = received.update().getFunctionCall().getId();
+
+            try {
+                this.reply(received, new OutgoingMessage.FunctionCallResponse(
+                        received.update().getFunctionCall(),
+                        FunctionUpdateResponse.FUNCTION_UPDATE_FAILED,
+                        "Function %s could not be started, the launcher is shutting down".formatted(functionId)
+                ));
+            } catch (BrokerStream.StreamEndingException e) {
+                logger.error("Could not reject call for function %s on cluster %s".formatted(functionId, this.config.clusterId()));
+            }
+
+            rejected++;
+        }
+
+        this.metrics.add("calls_rejected", rejected);
+
+        return rejected;
+    }
+
+    /**
+     * Completes the streams to the Function Broker and waits for it to close them, meaning it has received everything
+     *
+     * @param timeout Maximum time to wait for the Function Broker
+     * @return Whether all streams were closed in time
+     */
+    public boolean flush(Duration timeout) throws InterruptedException {
+        return this.brokerClient.stopCommunications(timeout);
+    }
+
+    /**
+     * Closes the channel to the Function Broker
+     *
+     * @param timeout Maximum time to wait for the channel to close gracefully
+     */
+    public void close(Duration timeout) throws InterruptedException {
+        if (null != this.brokerClient) {
+            this.brokerClient.close(timeout);
+        }
+    }
+
+    /**
+     * @param functionId The id of the function as requested by the Function Broker
+     * @return The function, if it is served on this cluster
+     * @throws FunctionLauncher.UnknownFunctionException When the function isn't served on this cluster
+     */
+    public FunctionLauncher.Function getFunction(String functionId) throws FunctionLauncher.UnknownFunctionException {
+        Catalog catalog = this.catalog;
+        int position = catalog.functions.indexOf(functionId);
+
+        if (-1 == position || !catalog.served.get(position)) {
+            throw new FunctionLauncher.UnknownFunctionException(functionId);
+        }
+
+        return catalog.functions.get(position);
+    }
+
+    /**
+     * @see BrokerClient#send(OutgoingMessage)
+     */
+    public void send(OutgoingMessage<?> message) throws BrokerStream.StreamEndingException {
+        this.brokerClient.send(message);
+    }
+
+    /**
+     * Sends a response on the stream the given message was received on
+     *
+     * @see BrokerClient#send(OutgoingMessage, int)
+     */
+    public void reply(IncomingMessage received, OutgoingMessage<?> response) throws BrokerStream.StreamEndingException {
+        this.brokerClient.send(response, received.stream());
+    }
+
+    /**
+     * Replies to a ping of the Function Broker on the stream it was received on. The reply is only built again when
+     * the token of the ping differs from the previous one
+     */
+    public void replyToPing(IncomingMessage received) throws BrokerStream.StreamEndingException {
+        FunctionBrokerToken token = received.update().getFunctionBrokerToken();
+
+        OutgoingMessage.FunctionBrokerTokenMessage reply = this.pingReply;
+        if (null == reply || !reply.isFor(token)) {
+            reply = new OutgoingMessage.FunctionBrokerTokenMessage(token);
+            this.pingReply = reply;
+        }
+
+        this.reply(received, reply);
+    }
+
+    /**
+     * @see BrokerClient#receive()
+     */
+    public Optional<IncomingMessage> receive() throws BrokerStream.StreamEndingException {
+        return this.brokerClient.receive();
+    }
+
+    /**
+     * @see BrokerClient#replaceStream(int)
+     */
+    public void replaceStream(int stream) throws BrokerStream.StreamEndingException {
+        this.metrics.increment("stream_replacements");
+
+        this.brokerClient.replaceStream(stream);
+    }
+
+    /**
+     * @see BrokerClient#updateToken(FunctionBrokerToken)
+     */
+    public void updateToken(FunctionBrokerToken token) {
+        LauncherEvents.TokenRefresh event = new LauncherEvents.TokenRefresh();
+        if (event.isEnabled()) {
+            OutgoingMessage.FunctionBrokerTokenMessage reply = this.pingReply;
+
+            event.cluster = this.config.clusterId();
+            event.changed = null == reply || !reply.isFor(token);
+            event.commit();
+        }
+
+        this.brokerClient.updateToken(token);
+    }
+
+    /**
+     * Should be called for every successfully received message, the backoff starts over on the next loss
+     */
+    public void resetRecoveryAttempts() {
+        this.recoveryAttempts.set(0);
+    }
+
+    public State getState() {
+        return this.state;
+    }
+
+    /**
+     * @return Whether messages can be received and registrations can be sent
+     */
+    public boolean isReady() {
+        return State.READY == this.state;
+    }
+
+    public String getClusterId() {
+        return this.config.clusterId();
+    }
+
+    /**
+     * @return The amount of functions registered as ONLINE on this cluster
+     */
+    public int getOnlineFunctionCount() {
+        synchronized (this.online) {
+            return this.online.cardinality();
+        }
+    }
+
+    public Metrics getMetrics() {
+        return this.metrics;
+    }
+
+    /**
+     * The state of the connection with the Function Broker of a cluster, the time spent in every state is recorded
+     */
+    public enum State {
+        CONNECTING,
+        AUTHENTICATING,
+        REGISTERING,
+        READY,
+        DRAINING,
+        BACKOFF
+    }
+
+    /**
+     * The function catalog as served on this cluster
+     *
+     * @param functions All functions known to the Function Launcher
+     * @param served Positions in the catalog of the functions served on this cluster
+     */
+    private record Catalog(FunctionIndex functions, BitSet served) {
+        private static Catalog servedOn(FunctionIndex functions, String clusterId) {
+            BitSet served = new BitSet();
+
+            for (int position = 0; position < functions.size(); position++) {
+                FunctionLauncher.Function function = functions.get(position);
+
+                if (function.description.isServedOn(clusterId)) {
+                    served.set(position);
+                } else if (logger.isDebugEnabled()) {
+                    logger.debug("Function %s is not served on cluster %s".formatted(function.id, clusterId));
+                }
+            }
+
+            return new Catalog(functions, served);
+        }
+    }
+}
@@ -0,0 +1,446 @@
+package nl.factorit.openobd.functionlauncher;
+
+import com.jifeline.OpenOBD.FunctionBroker.Messages.FunctionCall;
+import com.jifeline.OpenOBD.FunctionBroker.Messages.FunctionUpdate;
+import com.jifeline.OpenOBD.FunctionBroker.Messages.FunctionUpdateResponse;
+import com.jifeline.OpenOBD.FunctionBroker.Messages.FunctionUpdateType;
+import io.grpc.Deadline;
+import nl.factorit.openobd.functionlauncher.broker.communication.IncomingMessage;
+import nl.factorit.openobd.functionlauncher.broker.communication.OutgoingMessage;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Launches requested openOBD functions on the executor. A single Dispatcher is shared by all clusters the Function
+ * Launcher serves, so they all use the same dispatch threads and executor connections
+ *
+ * Every call has a deadline, starting when it was received: the call_deadline of its function (see FunctionsParser)
+ * or else CALL_DEADLINE milliseconds (default 10000). A call that waited in the queue until its deadline passed is
+ * answered as failed without contacting the executor, and the executor is not waited for past the deadline.
+ *
+ * A call for the same function and session that is received again within CALL_DEDUPE_WINDOW seconds (default 60, 0
+ * to disable) is not launched again, it gets the outcome of the first call (see CallDeduplicator). At most
+ * CALL_DEDUPE_CAPACITY (default 4096) calls are remembered.
+ *
+ * When a CallJournal is given, every call is journaled from the moment it was received until it was answered, so the
+ * calls that were not answered before a restart can be recovered (see recover).
+ */
+public class Dispatcher {
+    private static final int DEFAULT_DISPATCH_THREADS = 8;
+    private static final int DEFAULT_KEEP_ALIVE_CONNECTIONS = 5;
+    private static final Duration DEFAULT_CALL_DEADLINE = Duration.ofSeconds(10);
+    private static final Duration DEFAULT_CALL_DEDUPE_WINDOW = Duration.ofSeconds(60);
+    private static final int DEFAULT_CALL_DEDUPE_CAPACITY = 4096;
+    private static final long NOT_JOURNALED = -1;
+    private static final Logger logger = Logger.getLogger("Dispatcher");
+
+    private final ExecutorClient executorClient;
+    private final ExecutionRegistry executions;
+    private final CallJournal journal; // null when calls are not journaled
+    private final ExecutorService pool;
+    private final int threads;
+    private final Duration callDeadline;
+    private final CallDeduplicator<CallOutcome> deduplicator;
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    /**
+     * @param journal The journal calls are recorded in, or null to not journal them
+     */
+    public Dispatcher(ExecutorClient executorClient, ExecutionRegistry executions, CallJournal journal) {
+        this.executorClient = executorClient;
+        this.executions = executions;
+        this.journal = journal;
+
+        int threads;
+        try {
+            threads = Integer.parseInt(System.getenv("DISPATCH_THREADS"));
+        } catch (NumberFormatException e) {
+            threads = DEFAULT_DISPATCH_THREADS;
+        }
+
+        logger.debug("Using %d dispatch thread(s)".formatted(threads));
+
+        this.threads = threads;
+
+        Duration callDeadline;
+        try {
+            callDeadline = Duration.ofMillis(Long.parseLong(System.getenv("CALL_DEADLINE")));
+        } catch (NumberFormatException e) {
+            callDeadline = DEFAULT_CALL_DEADLINE;
+        }
+
+        this.callDeadline = callDeadline;
+
+        Duration dedupeWindow;
+        try {
+            dedupeWindow = Duration.ofSeconds(Long.parseLong(System.getenv("CALL_DEDUPE_WINDOW")));
+        } catch (NumberFormatException e) {
+            dedupeWindow = DEFAULT_CALL_DEDUPE_WINDOW;
+        }
+
+        int dedupeCapacity;
+        try {
+            dedupeCapacity = Integer.parseInt(System.getenv("CALL_DEDUPE_CAPACITY"));
+        } catch (NumberFormatException e) {
+            dedupeCapacity = DEFAULT_CALL_DEDUPE_CAPACITY;
+        }
+
+        this.deduplicator = dedupeWindow.isZero() ? null : new CallDeduplicator<>(dedupeCapacity, dedupeWindow);
+
+        AtomicInteger threadCount = new AtomicInteger();
+        this.pool = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "dispatcher-%d".formatted(threadCount.incrementAndGet()));
+            thread.setDaemon(true);
+
+            return thread;
+        });
+    }
+
+    /**
+     * Starts all dispatch threads and lets every thread open a connection to each of the given executors, so the first
+     * launches can reuse those connections from the JVM's keep-alive pool
+     *
+     * @param executors The executors functions can be launched on
+     * @param timeout Maximum time to wait for the executors
+     * @return The executors that did not respond to be healthy
+     */
+    public Set<String> preconnect(Set<String> executors, Duration timeout) throws InterruptedException {
+        // The keep-alive pool doesn't hold more idle connections per executor than this
+        int connections = Math.min(this.threads, Integer.getInteger("http.maxConnections", DEFAULT_KEEP_ALIVE_CONNECTIONS));
+
+        List<Callable<String>> probes = new ArrayList<>();
+        for (String executor : executors) {
+            for (int connection = 0; connection < connections; connection++) {
+                probes.add(() -> this.executorClient.probe(executor) ? null : executor);
+            }
+        }
+
+        Set<String> unhealthy = new TreeSet<>();
+        for (Future<String> probe : this.pool.invokeAll(probes, timeout.toNanos(), TimeUnit.NANOSECONDS)) {
+            try {
+                if (null != probe.get()) {
+                    unhealthy.add(probe.get());
+                }
+            } catch (ExecutionException | CancellationException e) {
+                logger.debug("Executor probe did not complete: %s".formatted(e.getMessage()));
+            }
+        }
+
+        return unhealthy;
+    }
+
+    /**
+     * Asynchronously launch the requested function and inform the Function Broker of the outcome. A call that was
+     * dispatched recently already gets the outcome of that call, once it is known
+     *
+     * @param cluster The cluster the call was received on, which the response will be sent to
+     * @param received The message containing the call, the response is sent on the stream it was received on
+     */
+    public void dispatch(ClusterSession cluster, IncomingMessage received) {
+        cluster.getMetrics().increment("calls_received");
+
+        this.dispatch(cluster, received, UUID.randomUUID().toString(), NOT_JOURNALED);
+    }
+
+    /**
+     * @param idempotencyKey The key the function is launched with, generated once per call
+     * @param journalId The id of a call that was already journaled, or NOT_JOURNALED to journal it once it is claimed
+     */
+    private void dispatch(ClusterSession cluster, IncomingMessage received, String idempotencyKey, long journalId) {
+        FunctionCall call = received.update().getFunctionCall();
+        CompletableFuture<CallOutcome> outcome = new CompletableFuture<>();
+
+        if (null != this.deduplicator) {
+            Optional<CompletableFuture<CallOutcome>> earlier = this.deduplicator.claim(
+                    String.join("/", cluster.getClusterId(), call.getId(), call.getSessionInfo().getId()),
+                    outcome
+            );
+
+            if (earlier.isPresent()) {
+                logger.debug("Function %s was already called for session %s".formatted(call.getId(), call.getSessionInfo().getId()));
+
+                cluster.getMetrics().increment("calls_deduplicated");
+
+                earlier.get().whenComplete((result, error) -> this.reply(
+                        cluster,
+                        received,
+                        null != result
+                                ? result
+                                : new CallOutcome(FunctionUpdateResponse.FUNCTION_UPDATE_FAILED, "Function %s could not be started".formatted(call.getId())),
+                        journalId
+                ));
+
+                return;
+            }
+        }
+
+        long journaled = null != this.journal && NOT_JOURNALED == journalId
+                ? this.journal.received(cluster.getClusterId(), call, idempotencyKey, System.currentTimeMillis() - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - received.receivedAt()))
+                : journalId;
+
+        this.inFlight.incrementAndGet();
+        try {
+            this.pool.execute(() -> {
+                try {
+                    CallOutcome result;
+                    try {
+                        result = this.launch(cluster, received, idempotencyKey, journaled);
+                    } catch (RuntimeException e) {
+                        // Thrown on the pool's thread it would only end up on stderr, with the call left unanswered
+                        logger.error("Function %s could not be started".formatted(call.getId()), e);
+
+                        cluster.getMetrics().increment("calls_failed");
+
+                        result = new CallOutcome(
+                                FunctionUpdateResponse.FUNCTION_UPDATE_FAILED,
+                                "Function %s could not be started".formatted(call.getId())
+                        );
+                    }
+
+                    outcome.complete(result);
+                    this.reply(cluster, received, result, journaled);
+                } finally {
+                    this.inFlight.decrementAndGet();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            this.inFlight.decrementAndGet();
+
+            // The Function Launcher is shutting down, so we don't admit any new calls
+            cluster.getMetrics().increment("calls_rejected");
+
+            CallOutcome rejected = new CallOutcome(
+                    FunctionUpdateResponse.FUNCTION_UPDATE_FAILED,
+                    "Function %s could not be started, the launcher is shutting down".formatted(call.getId())
+            );
+
+            outcome.complete(rejected);
+            cluster.reply(received, new OutgoingMessage.FunctionCallResponse(call, rejected.response(), rejected.description()));
+            this.journal(journaled, CallJournal.Event.RESPONDED);
+        }
+    }
+
+    /**
+     * Answers the calls that were not answered before the Function Launcher restarted (see CallJournal). A call of
+     * which the function was started is answered as such, the others are dispatched again with the same idempotency
+     * key, so the executor won't start a function twice. Their deadline still counts from when they were first
+     * received, so the calls of a launcher that was down for long are answered as expired without launching anything.
+     *
+     * @param clusters The clusters the calls were received on
+     */
+    public void recover(List<ClusterSession> clusters) {
+        if (null == this.journal) {
+            return;
+        }
+
+        for (CallJournal.JournaledCall journaled : this.journal.getUnfinished()) {
+            Optional<ClusterSession> cluster = clusters.stream()
+                    .filter(candidate -> candidate.getClusterId().equals(journaled.clusterId()))
+                    .findFirst();
+
+            if (cluster.isEmpty()) {
+                logger.error("Journaled call of function %s can't be answered, cluster %s is not served".formatted(journaled.call().getId(), journaled.clusterId()));
+
+                this.journal.record(journaled.id(), CallJournal.Event.RESPONDED);
+
+                continue;
+            }
+
+            logger.info("Recovering call of function %s for session %s (%s)".formatted(journaled.call().getId(), journaled.call().getSessionInfo().getId(), journaled.lastEvent()));
+
+            // The stream the call was received on is gone, so it is answered on the first stream
+            long waited = Math.max(0, System.currentTimeMillis() - journaled.receivedAtMillis());
+            IncomingMessage received = new IncomingMessage(
+                    FunctionUpdate.newBuilder()
+                            .setType(FunctionUpdateType.FUNCTION_UPDATE_TYPE_REQUEST)
+                            .setFunctionCall(journaled.call())
+                            .build(),
+                    0,
+                    System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(waited)
+            );
+
+            cluster.get().getMetrics().increment("calls_recovered");
+
+            if (CallJournal.Event.ACKED == journaled.lastEvent()) {
+                this.reply(cluster.get(), received, new CallOutcome(
+                        FunctionUpdateResponse.FUNCTION_UPDATE_SUCCESS,
+                        "Function %s was started before the launcher restarted".formatted(journaled.call().getId())
+                ), journaled.id());
+            } else {
+                this.dispatch(cluster.get(), received, journaled.idempotencyKey(), journaled.id());
+            }
+        }
+    }
+
+    /**
+     * @return The outcome of the call, to be sent to the Function Broker
+     */
+    private CallOutcome launch(ClusterSession cluster, IncomingMessage received, String idempotencyKey, long journalId) {
+        FunctionCall call = received.update().getFunctionCall();
+
+        try {
+            FunctionLauncher.Function function = cluster.getFunction(call.getId());
+            Deadline deadline = this.getDeadline(function, received);
+
+            if (deadline.isExpired()) {
+                // The caller has most likely given up on it already, so there is no use in starting the function
+                return this.expired(cluster, received);
+            }
+
+            // Start the requested function
+            ExecutorClient.FunctionAndSessionInfo functionAndSessionInfo = new ExecutorClient.FunctionAndSessionInfo(
+                    function,
+                    call.getSessionInfo(),
+                    idempotencyKey
+            );
+
+            this.journal(journalId, CallJournal.Event.DISPATCHED);
+
+            ExecutorClient.FunctionResponse started = this.executorClient.startFunction(functionAndSessionInfo, deadline);
+
+            this.journal(journalId, CallJournal.Event.ACKED);
+
+            cluster.getMetrics().increment("calls_started");
+
+            if (null != started.get("runtime_id")) {
+                Integer maxRuntime = functionAndSessionInfo.function().description.maxRuntime();
+
+                this.executions.started(
+                        functionAndSessionInfo.getFunctionExecutor(),
+                        started.get("runtime_id").toString(),
+                        call.getId(),
+                        call.getSessionInfo().getId(),
+                        null != maxRuntime ? Duration.ofSeconds(maxRuntime) : null
+                );
+            }
+
+            // If there wasn't any error we send a start success to the broker
+            return new CallOutcome(
+                    FunctionUpdateResponse.FUNCTION_UPDATE_SUCCESS,
+                    "Function %s has been started successfully".formatted(call.getId())
+            );
+        } catch (FunctionLauncher.UnknownFunctionException | ExecutorClient.FunctionNotStartedException e) {
+            // Inform the client that requested an openOBD function that it could not be started
+            if (null != e.getCause()) {
+                logger.error("Function %s could not be started: %s".formatted(call.getId(), e.getMessage()), e.getCause());
+            } else {
+                logger.error("Function %s could not be started: %s".formatted(call.getId(), e.getMessage()));
+            }
+
+            cluster.getMetrics().increment("calls_failed");
+
+            return new CallOutcome(
+                    FunctionUpdateResponse.FUNCTION_UPDATE_FAILED,
+                    "Function %s could not be started".formatted(call.getId())
+            );
+        } catch (ExecutorClient.FunctionStartedWithException e) {
+            cluster.getMetrics().increment("calls_started_with_exception");
+
+            this.journal(journalId, CallJournal.Event.ACKED);
+
+            return new CallOutcome(
+                    FunctionUpdateResponse.FUNCTION_UPDATE_SUCCESS,
+                    "Function %s was started, but had exceptions".formatted(call.getId())
+            );
+        }
+    }
+
+    private void reply(ClusterSession cluster, IncomingMessage received, CallOutcome outcome, long journalId) {
+        FunctionCall call = received.update().getFunctionCall();
+
+        try {
+            cluster.reply(received, new OutgoingMessage.FunctionCallResponse(call, outcome.response(), outcome.description()));
+        } catch (RuntimeException e) {
+            // i.e. the stream is ending, the response is lost and not sent again
+            logger.error("Could not send response for function %s to cluster %s".formatted(call.getId(), cluster.getClusterId()), e);
+
+            cluster.getMetrics().increment("responses_lost");
+        }
+
+        this.journal(journalId, CallJournal.Event.RESPONDED);
+    }
+
+    private void journal(long journalId, CallJournal.Event event) {
+        if (NOT_JOURNALED != journalId) {
+            this.journal.record(journalId, event);
+        }
+    }
+
+    /**
+     * @return The deadline of the call, counted from the moment it was received from the Function Broker
+     */
+    private Deadline getDeadline(FunctionLauncher.Function function, IncomingMessage received) {
+        Duration callDeadline = null != function.description.callDeadline()
+                ? Duration.ofMillis(function.description.callDeadline())
+                : this.callDeadline;
+
+        return Deadline.after(callDeadline.toNanos() - (System.nanoTime() - received.receivedAt()), TimeUnit.NANOSECONDS);
+    }
+
+    private CallOutcome expired(ClusterSession cluster, IncomingMessage received) {
+        FunctionCall call = received.update().getFunctionCall();
+        long waited = Duration.ofNanos(System.nanoTime() - received.receivedAt()).toMillis();
+
+        logger.error("Function %s was not started, its deadline passed after waiting %d ms".formatted(call.getId(), waited));
+
+        cluster.getMetrics().increment("calls_expired");
+
+        return new CallOutcome(
+                FunctionUpdateResponse.FUNCTION_UPDATE_FAILED,
+                "Function %s was not started, its deadline passed after waiting %d ms".formatted(call.getId(), waited)
+        );
+    }
+
+    /**
+     * Stop admitting new calls and wait for the calls that were already dispatched to be launched
+     *
+     * @param timeout Maximum time to wait for the in-flight launches
+     * @return Whether all in-flight launches were completed in time
+     */
+    public boolean awaitCompletion(Duration timeout) throws InterruptedException {
+        this.pool.shutdown();
+
+        logger.debug("Waiting for %d in-flight launch(es)".formatted(this.inFlight.get()));
+
+        if (this.pool.awaitTermination(timeout.toNanos(), TimeUnit.NANOSECONDS)) {
+            return true;
+        }
+
+        logger.error("%d launch(es) were still in flight after %d ms".formatted(this.inFlight.get(), timeout.toMillis()));
+
+        return false;
+    }
+
+    /**
+     * Closes the journal, should be done after the in-flight launches are completed. The executor connections are not
+     * closed, they outlive the dispatcher (see FunctionLauncher.Resources)
+     */
+    public void close() {
+        this.pool.shutdownNow();
+
+        if (null != this.journal) {
+            this.journal.close();
+        }
+    }
+
+    /**
+     * @return The hits and misses of the call deduplication, empty when it is disabled
+     */
+    public Optional<Metrics> getDeduplicationMetrics() {
+        return Optional.ofNullable(this.deduplicator).map(CallDeduplicator::getMetrics);
+    }
+
+    /**
+     * The response to a call, which is also sent for the calls that were received again
+     */
+    private record CallOutcome(FunctionUpdateResponse response, String description) {
+    }
+}
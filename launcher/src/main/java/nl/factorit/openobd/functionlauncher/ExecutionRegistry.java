@@ -0,0 +1,452 @@
+package nl.factorit.openobd.functionlauncher;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * Keeps track of the functions running on the executors, by the runtime id the executor gave them and by the session
+ * they were started for. An execution is completed when its executor pushes the completion (see
+ * GrpcExecutorTransport) or, for executors that can't push, once it is no longer listed by the executor. All
+ * executions on an executor are checked with a single request every EXECUTION_POLL_INTERVAL seconds (default 10).
+ *
+ * Executions are cancelled on their executor when their session ended, or when they run longer than the max_runtime
+ * of their function (see FunctionsParser) or else EXECUTION_MAX_RUNTIME seconds (default none). An execution that is
+ * still running after EXECUTION_STUCK_AFTER seconds (default 3600) is flagged as stuck, and forgotten when it is still
+ * running after twice that time. The durations of completed executions are kept in the "execution_duration_ms"
+ * histogram.
+ */
+public class ExecutionRegistry {
+    private static final Duration DEFAULT_POLL_INTERVAL = Duration.ofSeconds(10);
+    private static final Duration DEFAULT_STUCK_AFTER = Duration.ofHours(1);
+    private static final Duration TICK = Duration.ofSeconds(1);
+    private static final int MAX_EARLY_COMPLETIONS = 1024;
+    private static final int MAX_RECENT_COMPLETIONS = 1024;
+    private static final Logger logger = Logger.getLogger("ExecutionRegistry");
+
+    private final ExecutorClient executorClient;
+    private final Duration pollInterval;
+    private final Duration stuckAfter;
+    private final Duration defaultMaxRuntime; // null for none
+    private final Metrics metrics = new Metrics("executions");
+    private final TimingWheel<Execution> expiry = new TimingWheel<>(TICK.toMillis(), System.currentTimeMillis());
+
+    private final Map<String, Map<String, Execution>> byExecutor = new HashMap<>(); // by executor, then runtime id
+    private final Map<String, Set<Execution>> bySession = new HashMap<>(); // by session id
+
+    // A pushed completion can overtake the response to the launch, it is applied once the execution is started
+    private final Map<String, Outcome> earlyCompletions = new LinkedHashMap<>() { // by executor and runtime id
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Outcome> eldest) {
+            return MAX_EARLY_COMPLETIONS < this.size();
+        }
+    };
+
+    // An execution can be completed before its executor pushes the completion (i.e. when it was cancelled), which is
+    // dropped instead of being kept as early completion for an execution that won't be started again
+    private final Set<String> recentCompletions = Collections.newSetFromMap(new LinkedHashMap<>() { // by executor and runtime id
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return MAX_RECENT_COMPLETIONS < this.size();
+        }
+    });
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "execution-registry");
+        thread.setDaemon(true);
+
+        return thread;
+    });
+
+    public ExecutionRegistry(ExecutorClient executorClient) {
+        this.executorClient = executorClient;
+        this.pollInterval = durationFromEnvironment("EXECUTION_POLL_INTERVAL", DEFAULT_POLL_INTERVAL);
+        this.stuckAfter = durationFromEnvironment("EXECUTION_STUCK_AFTER", DEFAULT_STUCK_AFTER);
+        this.defaultMaxRuntime = durationFromEnvironment("EXECUTION_MAX_RUNTIME", null);
+
+        this.executorClient.onCompletion((executor, runtimeId, succeeded) ->
+                this.completed(executor, runtimeId, succeeded ? Outcome.SUCCEEDED : Outcome.FAILED));
+    }
+
+    private static Duration durationFromEnvironment(String variable, Duration defaultDuration) {
+        try {
+            return Duration.ofSeconds(Long.parseLong(System.getenv(variable)));
+        } catch (NumberFormatException e) {
+            return defaultDuration;
+        }
+    }
+
+    /**
+     * Starts expiring and polling the executions
+     */
+    public void start() {
+        logger.debug("Polling executors every %d second(s), flagging executions as stuck after %d second(s)".formatted(
+                this.pollInterval.toSeconds(),
+                this.stuckAfter.toSeconds()
+        ));
+
+        this.scheduler.scheduleWithFixedDelay(this::tick, TICK.toMillis(), TICK.toMillis(), TimeUnit.MILLISECONDS);
+        this.scheduler.scheduleWithFixedDelay(this::poll, this.pollInterval.toMillis(), this.pollInterval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        this.scheduler.shutdownNow();
+    }
+
+    /**
+     * Registers a function that was started on an executor
+     *
+     * @param executor The executor the function was started on
+     * @param runtimeId The runtime id the executor gave the function
+     * @param functionId The openOBD function
+     * @param sessionId The session the function was started for
+     * @param maxRuntime The time after which the function is cancelled, null for the default
+     */
+    public void started(String executor, String runtimeId, String functionId, String sessionId, Duration maxRuntime) {
+        if (null == maxRuntime) {
+            maxRuntime = this.defaultMaxRuntime;
+        }
+
+        long startedAt = System.currentTimeMillis();
+        Execution execution = new Execution(executor, runtimeId, functionId, sessionId, startedAt, null != maxRuntime ? startedAt + maxRuntime.toMillis() : Long.MAX_VALUE);
+
+        synchronized (this) {
+            Outcome earlyCompletion = this.earlyCompletions.remove(key(executor, runtimeId));
+
+            if (null != earlyCompletion) {
+                this.metrics.increment("executions_started");
+                this.complete(execution, earlyCompletion);
+
+                return;
+            }
+
+            this.byExecutor.computeIfAbsent(executor, key -> new HashMap<>()).put(runtimeId, execution);
+            this.bySession.computeIfAbsent(sessionId, key -> new HashSet<>()).add(execution);
+
+            this.scheduleExpiry(execution);
+        }
+
+        this.metrics.increment("executions_started");
+    }
+
+    /**
+     * Completes the execution with the given runtime id, if it is (or will be) registered
+     */
+    public synchronized void completed(String executor, String runtimeId, Outcome outcome) {
+        Execution execution = this.byExecutor.getOrDefault(executor, Map.of()).get(runtimeId);
+
+        if (null == execution) {
+            if (this.recentCompletions.contains(key(executor, runtimeId))) {
+                logger.debug("Dropping completion of %s:%s (%s), it was already completed".formatted(executor, runtimeId, outcome));
+
+                return;
+            }
+
+            this.earlyCompletions.put(key(executor, runtimeId), outcome);
+
+            return;
+        }
+
+        this.remove(execution);
+        this.complete(execution, outcome);
+    }
+
+    /**
+     * Cancels all executions of the given session, i.e. because the session was interrupted
+     *
+     * @return The amount of executions that will be cancelled
+     */
+    public int cancelSession(String sessionId, String reason) {
+        return this.cancel(sessionId, execution -> true, reason);
+    }
+
+    /**
+     * Cancels the executions of a single function in the given session, i.e. because the call was aborted
+     *
+     * @return The amount of executions that will be cancelled
+     */
+    public int cancelCall(String sessionId, String functionId, String reason) {
+        return this.cancel(sessionId, execution -> execution.functionId.equals(functionId), reason);
+    }
+
+    private int cancel(String sessionId, Predicate<Execution> filter, String reason) {
+        List<Execution> executions = new ArrayList<>();
+
+        synchronized (this) {
+            for (Execution execution : this.bySession.getOrDefault(sessionId, Set.of())) {
+                if (!execution.cancelling && filter.test(execution)) {
+                    execution.cancelling = true;
+                    executions.add(execution);
+                }
+            }
+        }
+
+        try {
+            // Done on the registry's thread, so the caller doesn't wait for the executors
+            this.scheduler.execute(() -> executions.forEach(execution -> this.cancel(execution, reason)));
+        } catch (RejectedExecutionException e) {
+            logger.debug("Not cancelling %d execution(s) of session %s, the registry is stopped".formatted(executions.size(), sessionId));
+
+            return 0;
+        }
+
+        return executions.size();
+    }
+
+    /**
+     * Cancels the execution on its executor, should that fail it is retried after the poll interval
+     */
+    private void cancel(Execution execution, String reason) {
+        boolean running;
+        try {
+            running = this.executorClient.cancelFunction(execution.executor, execution.runtimeId, reason);
+        } catch (IOException | RuntimeException e) {
+            logger.error("Could not cancel function %s (%s:%s): %s".formatted(execution.functionId, execution.executor, execution.runtimeId, e.getMessage()));
+
+            synchronized (this) {
+                if (this.isRegistered(execution)) {
+                    execution.cancelling = false;
+                    execution.deadline = System.currentTimeMillis() + this.pollInterval.toMillis();
+
+                    execution.timer.cancel();
+                    this.scheduleExpiry(execution);
+                }
+            }
+
+            return;
+        }
+
+        synchronized (this) {
+            if (this.isRegistered(execution)) {
+                this.remove(execution);
+                this.complete(execution, running ? Outcome.CANCELLED : Outcome.ENDED);
+            }
+        }
+    }
+
+    private boolean isRegistered(Execution execution) {
+        return execution == this.byExecutor.getOrDefault(execution.executor, Map.of()).get(execution.runtimeId);
+    }
+
+    /**
+     * Schedules the next moment something has to be done for the execution: cancel it, flag it as stuck or forget it
+     */
+    private void scheduleExpiry(Execution execution) {
+        long expiresAt = execution.startedAt + (execution.stuck ? 2 : 1) * this.stuckAfter.toMillis();
+
+        if (!execution.cancelling) {
+            expiresAt = Math.min(expiresAt, execution.deadline);
+        }
+
+        execution.timer = this.expiry.schedule(execution, expiresAt);
+    }
+
+    private void complete(Execution execution, Outcome outcome) {
+        long duration = System.currentTimeMillis() - execution.startedAt;
+
+        this.recentCompletions.add(key(execution.executor, execution.runtimeId));
+
+        logger.debug("Function %s (%s:%s) %s after %d ms".formatted(execution.functionId, execution.executor, execution.runtimeId, outcome, duration));
+
+        this.metrics.record("execution_duration_ms", duration);
+        this.metrics.increment("executions_%s".formatted(outcome.name().toLowerCase()));
+    }
+
+    private void remove(Execution execution) {
+        this.byExecutor.get(execution.executor).remove(execution.runtimeId);
+
+        Set<Execution> sessionExecutions = this.bySession.get(execution.sessionId);
+        sessionExecutions.remove(execution);
+        if (sessionExecutions.isEmpty()) {
+            this.bySession.remove(execution.sessionId);
+        }
+
+        execution.timer.cancel();
+    }
+
+    /**
+     * @return The executions that are running for the given session
+     */
+    public synchronized List<Execution> getExecutions(String sessionId) {
+        return List.copyOf(this.bySession.getOrDefault(sessionId, Set.of()));
+    }
+
+    /**
+     * @return The amount of running executions
+     */
+    public synchronized int size() {
+        int size = 0;
+        for (Map<String, Execution> executions : this.byExecutor.values()) {
+            size += executions.size();
+        }
+
+        return size;
+    }
+
+    public Metrics getMetrics() {
+        return this.metrics;
+    }
+
+    /**
+     * Cancels the executions that ran out of time, flags executions as stuck, or forgets them when they were already
+     * flagged
+     */
+    private void tick() {
+        List<Execution> overtime = new ArrayList<>();
+
+        for (Execution execution : this.expiry.advance(System.currentTimeMillis())) {
+            synchronized (this) {
+                if (!this.isRegistered(execution)) {
+                    // Completed while it was expiring
+                    continue;
+                }
+
+                long now = System.currentTimeMillis();
+
+                if (!execution.cancelling && execution.deadline <= now) {
+                    execution.cancelling = true;
+                    overtime.add(execution);
+                } else if (execution.stuck) {
+                    logger.error("Forgetting function %s (%s:%s), still running after %d second(s)".formatted(
+                            execution.functionId,
+                            execution.executor,
+                            execution.runtimeId,
+                            Duration.ofMillis(now - execution.startedAt).toSeconds()
+                    ));
+
+                    this.remove(execution);
+                    this.recentCompletions.add(key(execution.executor, execution.runtimeId));
+                    this.metrics.increment("executions_forgotten");
+
+                    continue;
+                } else if (execution.startedAt + this.stuckAfter.toMillis() <= now) {
+                    logger.error("Function %s (%s:%s) for session %s looks stuck, running for %d second(s)".formatted(
+                            execution.functionId,
+                            execution.executor,
+                            execution.runtimeId,
+                            execution.sessionId,
+                            Duration.ofMillis(now - execution.startedAt).toSeconds()
+                    ));
+
+                    execution.stuck = true;
+                    this.metrics.increment("executions_stuck");
+                }
+
+                this.scheduleExpiry(execution);
+            }
+        }
+
+        for (Execution execution : overtime) {
+            logger.info("Cancelling function %s (%s:%s), it ran out of time".formatted(execution.functionId, execution.executor, execution.runtimeId));
+
+            this.metrics.increment("executions_timed_out");
+            this.cancel(execution, "Ran longer than its max runtime");
+        }
+    }
+
+    /**
+     * Completes the executions that are no longer listed by their executor, with one request per executor
+     */
+    private void poll() {
+        Set<String> executors;
+        synchronized (this) {
+            executors = new TreeSet<>();
+            this.byExecutor.forEach((executor, executions) -> {
+                if (!executions.isEmpty()) {
+                    executors.add(executor);
+                }
+            });
+        }
+
+        for (String executor : executors) {
+            // Executions started after the request was sent may be missing from the response
+            long requestedAt = System.currentTimeMillis();
+
+            Optional<Set<String>> running;
+            try {
+                running = this.executorClient.getRunningFunctions(executor);
+            } catch (IOException | RuntimeException e) {
+                logger.debug("Could not get the running functions of executor %s: %s".formatted(executor, e.getMessage()));
+
+                continue;
+            }
+
+            if (running.isEmpty()) {
+                continue;
+            }
+
+            synchronized (this) {
+                for (Execution execution : List.copyOf(this.byExecutor.getOrDefault(executor, Map.of()).values())) {
+                    if (execution.startedAt < requestedAt && !running.get().contains(execution.runtimeId)) {
+                        this.remove(execution);
+                        this.complete(execution, Outcome.ENDED);
+                    }
+                }
+            }
+        }
+    }
+
+    private static String key(String executor, String runtimeId) {
+        return "%s:%s".formatted(executor, runtimeId);
+    }
+
+    /**
+     * How an execution completed, ENDED when the executor only reported it is no longer running
+     */
+    public enum Outcome {
+        SUCCEEDED,
+        FAILED,
+        CANCELLED,
+        ENDED
+    }
+
+    /**
+     * A function running on an executor
+     */
+    public static class Execution {
+        private final String executor;
+        private final String runtimeId;
+        private final String functionId;
+        private final String sessionId;
+        private final long startedAt;
+
+        private long deadline; // Long.MAX_VALUE for none
+        private boolean cancelling = false;
+        private boolean stuck = false;
+        private TimingWheel.Timer<Execution> timer;
+
+        private Execution(String executor, String runtimeId, String functionId, String sessionId, long startedAt, long deadline) {
+            this.executor = executor;
+            this.runtimeId = runtimeId;
+            this.functionId = functionId;
+            this.sessionId = sessionId;
+            this.startedAt = startedAt;
+            this.deadline = deadline;
+        }
+
+        public String getExecutor() {
+            return this.executor;
+        }
+
+        public String getRuntimeId() {
+            return this.runtimeId;
+        }
+
+        public String getFunctionId() {
+            return this.functionId;
+        }
+
+        public String getSessionId() {
+            return this.sessionId;
+        }
+
+        public long getStartedAt() {
+            return this.startedAt;
+        }
+    }
+}
@@ -3,97 +3,358 @@ package nl.factorit.openobd.functionlauncher;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.protobuf.CodedOutputStream;
 import com.jifeline.OpenOBD.SessionController.Messages.SessionInfo;
+import io.grpc.Deadline;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.net.HttpURLConnection;
 import java.time.Duration;
-import java.util.Base64;
-import java.util.HashMap;
-import java.net.URL;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * Client to execute an openOBD function via HTTP requests
+ * Client to execute an openOBD function on its executor. Functions are launched with a HTTP request, unless a gRPC
+ * host is configured for their executor in OPENOBD_EXECUTOR_GRPC_HOSTS (see GrpcExecutorTransport). Both can list more
+ * than one host (endpoint) per executor, i.e. OPENOBD_EXECUTOR_HOST=http://executor-a,http://executor-b. An executor
+ * on the same host can be reached on a Unix domain socket instead, i.e. unix:/run/executor/executor.sock (see
+ * UnixSocketExecutorTransport).
+ *
+ * Every launch carries an idempotency key, generated once per call, with which an executor recognizes a launch it has
+ * already started. An executor only remembers the launches it started itself, so a launch that failed with a server
+ * error (and could be running) is only retried on the same endpoint. A launch is only moved to the next endpoint when
+ * the executor could not be reached, as nothing was sent then. Both are retried up to EXECUTOR_MAX_ATTEMPTS (default
+ * 3) attempts, limited to 10% of the launches (see RetryBudget) and never past the deadline of the call.
+ *
+ * A function the executor doesn't have is not retried: the executor responded with a 404, which is remembered for
+ * EXECUTOR_NOT_FOUND_TTL seconds (default 10, 0 disables it) so calls for it fail without another request (see
+ * NotFoundCache). Functions are only registered ONLINE when their executor has them (see reconcile).
  */
 public class ExecutorClient {
     public static final int EXECUTOR_HTTP_TIMEOUT = (int) Duration.ofSeconds(5).toMillis();
+    // Thread-safe once configured, creating one per request is a lot slower than the request itself
+    static final ObjectMapper MAPPER = new ObjectMapper();
+
+    static final String JSON_CONTENT_TYPE = "application/json";
+    static final String PROTOBUF_CONTENT_TYPE = "application/x-protobuf";
+    private static final int PROTOBUF_FUNCTION_ID_FIELD = 1;
+    private static final int PROTOBUF_SESSION_INFO_FIELD = 2;
+    private static final int DEFAULT_MAX_ATTEMPTS = 3;
+    private static final double RETRY_RATIO = 0.1;
+    private static final int MAX_RETRY_BURST = 10;
+    private static final Duration DEFAULT_NOT_FOUND_TTL = Duration.ofSeconds(10);
     private static final Logger logger = Logger.getLogger("ExecutorClient");
 
-    private final String executorHost;
+    private final List<ExecutorTransport> httpTransports; // one per endpoint
+    private final Map<String, List<ExecutorTransport>> grpcTransports; // by executor, one per endpoint
+    private final AtomicInteger nextEndpoint = new AtomicInteger();
+    private final RetryBudget retryBudget = new RetryBudget(RETRY_RATIO, MAX_RETRY_BURST);
+    private final int maxAttempts;
+    private final NotFoundCache notFound;
+    private final Metrics metrics = new Metrics("executor_client");
 
     public ExecutorClient() {
-        this.executorHost = System.getenv("OPENOBD_EXECUTOR_HOST");
+        String hosts = System.getenv("OPENOBD_EXECUTOR_HOST");
+
+        this.httpTransports = null != hosts
+                ? Arrays.stream(hosts.split(",")).map(String::trim).map(ExecutorClient::createHttpTransport).toList()
+                : List.of(new HttpExecutorTransport(null));
+        this.grpcTransports = GrpcExecutorTransport.fromEnvironment();
+
+        int maxAttempts;
+        try {
+            maxAttempts = Math.max(1, Integer.parseInt(System.getenv("EXECUTOR_MAX_ATTEMPTS")));
+        } catch (NumberFormatException e) {
+            maxAttempts = DEFAULT_MAX_ATTEMPTS;
+        }
+
+        this.maxAttempts = maxAttempts;
+
+        Duration notFoundTtl;
+        try {
+            notFoundTtl = Duration.ofSeconds(Long.parseLong(System.getenv("EXECUTOR_NOT_FOUND_TTL")));
+        } catch (NumberFormatException e) {
+            notFoundTtl = DEFAULT_NOT_FOUND_TTL;
+        }
+
+        this.notFound = new NotFoundCache(notFoundTtl);
+    }
+
+    /**
+     * @param endpoint An endpoint in OPENOBD_EXECUTOR_HOST, i.e. http://executor-a or unix:/run/executor/executor.sock
+     */
+    private static ExecutorTransport createHttpTransport(String endpoint) {
+        return endpoint.startsWith(UnixSocketExecutorTransport.SCHEME)
+                ? new UnixSocketExecutorTransport(endpoint)
+                : new HttpExecutorTransport(endpoint);
     }
 
-    public FunctionResponse startFunction(FunctionAndSessionInfo functionAndSessionInfo) throws FunctionNotStartedException, FunctionStartedWithException {
-        HttpURLConnection executorConnection;
-        OutputStream output;
+    /**
+     * @param executor The executor as configured for a function, i.e. "python"
+     * @return The transports (one per endpoint) functions are launched with on the given executor
+     */
+    private List<ExecutorTransport> getTransports(String executor) {
+        return this.grpcTransports.getOrDefault(executor, this.httpTransports);
+    }
+
+    /**
+     * Starts the function on the executor configured for it, the endpoints of the executor take turns
+     *
+     * @param deadline The deadline of the call, the executor is not waited for any longer
+     */
+    public FunctionResponse startFunction(FunctionAndSessionInfo functionAndSessionInfo, Deadline deadline) throws FunctionNotStartedException, FunctionStartedWithException {
+        LauncherEvents.ExecutorLaunch event = new LauncherEvents.ExecutorLaunch();
+        event.begin();
+        event.outcome = "started";
 
         try {
-            logger.debug("Starting function %s on %s:%s".formatted(
-                    functionAndSessionInfo.function.registration.getDetails().getId(),
-                    functionAndSessionInfo.getFunctionExecutor(),
-                    functionAndSessionInfo.getRuntimeId()
-            ));
-
-            // The actual URL is constructed like: <HOST>/<PATH>/function/<FUNCTION_ID>,
-            // for example: ptc-internal-pdflatex-service-401.acc.jifeline.cloud/python/function/36af611a-832e-40dd-9946-a5dd24b4c0b9
-            // The given payload should contain the session the function should be executed for
-            URL url = new URL(
-                String.join("/",
-                    this.executorHost,
-                    functionAndSessionInfo.getFunctionExecutor(),
-                    "function",
-                    functionAndSessionInfo.function.registration.getDetails().getId()
-                )
-            );
+            return this.launch(functionAndSessionInfo, deadline, event);
+        } catch (FunctionNotFoundException e) {
+            event.outcome = "not_found";
 
-            executorConnection = (HttpURLConnection) url.openConnection();
-            executorConnection.setReadTimeout(EXECUTOR_HTTP_TIMEOUT);
-            executorConnection.setConnectTimeout(EXECUTOR_HTTP_TIMEOUT);
-            executorConnection.setDoInput(true);
-            executorConnection.setDoOutput(true);
+            throw e;
+        } catch (FunctionNotStartedException e) {
+            event.outcome = "not_started";
 
-            executorConnection.setRequestMethod("POST");
-            executorConnection.setRequestProperty("Content-Type", "application/json");
-            executorConnection.setRequestProperty("RuntimeId", functionAndSessionInfo.getRuntimeId());
+            throw e;
+        } catch (FunctionStartedWithException e) {
+            event.outcome = "started_with_exception";
 
-            output = executorConnection.getOutputStream();
-        } catch (IOException e) {
-            throw new FunctionNotStartedException(e);
+            throw e;
+        } finally {
+            event.end();
+            if (event.shouldCommit()) {
+                event.functionId = functionAndSessionInfo.function().id;
+                event.executor = functionAndSessionInfo.getFunctionExecutor();
+                event.commit();
+            }
         }
+    }
 
-        try {
-            output.write(functionAndSessionInfo.toRequest().toJson().getBytes());
+    /**
+     * @param event Gets the endpoint and amount of attempts
+     */
+    private FunctionResponse launch(FunctionAndSessionInfo functionAndSessionInfo, Deadline deadline, LauncherEvents.ExecutorLaunch event) throws FunctionNotStartedException, FunctionStartedWithException {
+        if (this.notFound.contains(functionAndSessionInfo.function().id)) {
+            this.metrics.increment("not_found_cached");
 
-            BufferedReader reader = new BufferedReader(
-                    new InputStreamReader(
-                            executorConnection.getInputStream()
-                    )
-            );
+            throw new FunctionNotFoundException(functionAndSessionInfo.getFunctionExecutor(), functionAndSessionInfo.function().id);
+        }
+
+        List<ExecutorTransport> transports = this.getTransports(functionAndSessionInfo.getFunctionExecutor());
+        int endpoint = Math.floorMod(this.nextEndpoint.getAndIncrement(), transports.size());
+
+        this.retryBudget.deposit();
+
+        for (int attempt = 1; ; attempt++) {
+            ExecutorTransport transport = transports.get(endpoint);
+            event.attempts = attempt;
+            event.endpoint = transport.toString();
+
+            try {
+                return transport.startFunction(functionAndSessionInfo, deadline);
+            } catch (FunctionNotFoundException e) {
+                this.notFound.add(functionAndSessionInfo.function().id);
+                this.metrics.increment("not_found");
+
+                throw e;
+            } catch (ExecutorUnreachableException | ExecutorFailedException e) {
+                if (attempt >= this.maxAttempts) {
+                    throw e;
+                }
+
+                Duration backoff = RetryBudget.backoff(attempt);
+                if (deadline.timeRemaining(TimeUnit.NANOSECONDS) <= backoff.toNanos()) {
+                    throw e;
+                }
+
+                if (!this.retryBudget.tryWithdraw()) {
+                    this.metrics.increment("retries_over_budget");
+
+                    throw e;
+                }
+
+                logger.debug("Retrying function %s (attempt %d) in %d ms: %s".formatted(
+                        functionAndSessionInfo.function().id,
+                        attempt + 1,
+                        backoff.toMillis(),
+                        e.getMessage()
+                ));
+
+                this.metrics.increment("retries");
+
+                try {
+                    Thread.sleep(backoff.toMillis(), (int) (backoff.toNanos() % 1_000_000));
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+
+                    throw e;
+                }
+
+                // A failed launch could be running on this endpoint, and only the executor behind it would recognize it
+                if (e instanceof ExecutorUnreachableException) {
+                    endpoint = (endpoint + 1) % transports.size();
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks whether the executor is healthy, which also opens a connection to every endpoint of it
+     *
+     * @param executor The executor as configured for a function, i.e. "python"
+     * @return Whether one of the endpoints of the executor responded to be healthy
+     */
+    public boolean probe(String executor) {
+        boolean healthy = false;
+
+        for (ExecutorTransport transport : this.getTransports(executor)) {
+            healthy |= transport.probe(executor);
+        }
+
+        return healthy;
+    }
+
+    /**
+     * Stops a started function on its executor, on the endpoint that knows it
+     *
+     * @return Whether the function was still running
+     */
+    public boolean cancelFunction(String executor, String runtimeId, String reason) throws IOException {
+        for (ExecutorTransport transport : this.getTransports(executor)) {
+            if (transport.cancelFunction(executor, runtimeId, reason)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @param executor The executor as configured for a function, i.e. "python"
+     * @return The runtime ids of the functions running on all endpoints of the executor, empty when its transport
+     * pushes completions
+     */
+    public Optional<Set<String>> getRunningFunctions(String executor) throws IOException {
+        Set<String> running = new HashSet<>();
+
+        for (ExecutorTransport transport : this.getTransports(executor)) {
+            Optional<Set<String>> endpointRunning = transport.getRunningFunctions(executor);
 
-            String line;
-            StringBuilder response = new StringBuilder();
-            while ((line = reader.readLine()) != null) {
-                response.append(line);
+            if (endpointRunning.isEmpty()) {
+                return Optional.empty();
             }
 
-            executorConnection.disconnect();
+            running.addAll(endpointRunning.get());
+        }
+
+        return Optional.of(running);
+    }
+
+    /**
+     * @param executor The executor as configured for a function, i.e. "python"
+     * @return The ids of the functions every endpoint of the executor has, endpoints that can't tell (or could not be
+     * reached) are left out. Empty when none of them could tell
+     */
+    public Optional<Set<String>> getFunctions(String executor) {
+        Set<String> functions = null;
+
+        for (ExecutorTransport transport : this.getTransports(executor)) {
+            Optional<Set<String>> endpointFunctions;
+            try {
+                endpointFunctions = transport.getFunctions(executor);
+            } catch (IOException e) {
+                logger.error("Could not list the functions of executor %s: %s".formatted(executor, e.getMessage()));
+
+                continue;
+            }
+
+            if (endpointFunctions.isEmpty()) {
+                continue;
+            }
+
+            if (null == functions) {
+                functions = new HashSet<>(endpointFunctions.get());
+            } else {
+                // Launches take turns over the endpoints, so a function missing on one of them would fail every so often
+                functions.retainAll(endpointFunctions.get());
+            }
+        }
+
+        return Optional.ofNullable(functions);
+    }
+
+    /**
+     * Leaves out the functions their executor doesn't have, so they aren't registered ONLINE. The functions of an
+     * executor that can't tell which functions it has are all kept
+     *
+     * @param catalog The functions as loaded
+     * @return The functions the executors have, the given catalog when they have all of them
+     */
+    public FunctionIndex reconcile(FunctionIndex catalog) {
+        Map<String, Optional<Set<String>>> available = new HashMap<>(); // by executor
+        List<FunctionLauncher.Function> present = new ArrayList<>(catalog.size());
+
+        for (FunctionLauncher.Function function : catalog.getFunctions()) {
+            Optional<Set<String>> functions = available.computeIfAbsent(function.description.executor(), this::getFunctions);
+
+            if (functions.isPresent() && !functions.get().contains(function.id)) {
+                continue;
+            }
+
+            // The executor has it (again), calls for it can be sent
+            this.notFound.remove(function.id);
+            present.add(function);
+        }
+
+        if (present.size() == catalog.size()) {
+            return catalog;
+        }
+
+        logger.debug("Leaving out %d of %d function(s), their executor doesn't have them".formatted(catalog.size() - present.size(), catalog.size()));
+
+        return new FunctionIndex(present);
+    }
+
+    /**
+     * Sets the listener for the completions pushed by the executors, on every transport
+     */
+    public void onCompletion(ExecutorTransport.CompletionListener listener) {
+        this.httpTransports.forEach(transport -> transport.onCompletion(listener));
+        this.grpcTransports.values().forEach(transports -> transports.forEach(transport -> transport.onCompletion(listener)));
+    }
+
+    public Metrics getMetrics() {
+        return this.metrics;
+    }
+
+    /**
+     * Closes the connections to all executors
+     *
+     * @param timeout Maximum time to wait for the connections to close gracefully
+     */
+    public void close(Duration timeout) throws InterruptedException {
+        long deadline = System.nanoTime() + timeout.toNanos();
 
-            logger.debug("Got %s as response".formatted(response.toString()));
+        for (ExecutorTransport transport : this.httpTransports) {
+            transport.close(Duration.ofNanos(Math.max(0, deadline - System.nanoTime())));
+        }
 
-            return FunctionResponse.fromJson(response.toString());
-        } catch (Exception e) {
-            throw new FunctionStartedWithException(e);
+        for (List<ExecutorTransport> transports : this.grpcTransports.values()) {
+            for (ExecutorTransport transport : transports) {
+                transport.close(Duration.ofNanos(Math.max(0, deadline - System.nanoTime())));
+            }
         }
     }
 
+    /**
+     * @param idempotencyKey Identifies the call, the same for every attempt to launch it
+     */
     public record FunctionAndSessionInfo(
         FunctionLauncher.Function function,
-        SessionInfo session
+        SessionInfo session,
+        String idempotencyKey
     ) {
         public String getRuntimeId() {
             return this.function.description.runtime();
@@ -103,9 +364,32 @@ public class ExecutorClient {
             return this.function.description.executor();
         }
 
+        /**
+         * @return The size of the request written by {@link #writeProtobuf(OutputStream)}
+         */
+        public int getProtobufSize() {
+            return CodedOutputStream.computeStringSize(PROTOBUF_FUNCTION_ID_FIELD, this.function.id)
+                    + CodedOutputStream.computeMessageSize(PROTOBUF_SESSION_INFO_FIELD, this.session);
+        }
+
+        /**
+         * Writes the request as a protobuf message, the equivalent of:
+         * message FunctionRequest { string uuid = 1; SessionInfo session_info = 2; }
+         * The SessionInfo is written straight to the output, without copying it to a byte array first
+         *
+         * @param output The request body
+         */
+        public void writeProtobuf(OutputStream output) throws IOException {
+            CodedOutputStream coded = CodedOutputStream.newInstance(output, this.getProtobufSize());
+
+            coded.writeString(PROTOBUF_FUNCTION_ID_FIELD, this.function.id);
+            coded.writeMessage(PROTOBUF_SESSION_INFO_FIELD, this.session);
+            coded.flush();
+        }
+
         public FunctionRequest toRequest() {
             return new FunctionRequest(
-                    this.function.registration.getDetails().getId(),
+                    this.function.id,
                     Base64.getEncoder().encodeToString(this.session.toByteArray())
             );
         }
@@ -117,13 +401,13 @@ public class ExecutorClient {
 
     ) {
         public String toJson() throws JsonProcessingException {
-            return new ObjectMapper().writeValueAsString(this);
+            return MAPPER.writeValueAsString(this);
         }
     }
 
     public static class FunctionResponse extends HashMap<String, Object> {
         public static FunctionResponse fromJson(String json) throws JsonProcessingException {
-            return new ObjectMapper().readValue(json, FunctionResponse.class);
+            return MAPPER.readValue(json, FunctionResponse.class);
         }
     }
 
@@ -131,6 +415,19 @@ public class ExecutorClient {
         public FunctionNotStartedException(Throwable cause) {
             super("Function could not be started due to a %s: %s".formatted(cause.getClass(), cause.getMessage()), cause);
         }
+
+        protected FunctionNotStartedException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * The executor does not have the function, so it was not started
+     */
+    public static class FunctionNotFoundException extends FunctionNotStartedException {
+        public FunctionNotFoundException(String executor, String functionId) {
+            super("Function could not be started, executor %s does not have it (%s)".formatted(executor, functionId));
+        }
     }
 
     public static class FunctionStartedWithException extends RuntimeException {
@@ -138,4 +435,22 @@ public class ExecutorClient {
             super("Function was started but resulted in an exception %s: %s".formatted(cause.getClass(), cause.getMessage()), cause);
         }
     }
+
+    /**
+     * The executor could not be reached, so the function was not started
+     */
+    public static class ExecutorUnreachableException extends FunctionNotStartedException {
+        public ExecutorUnreachableException(Throwable cause) {
+            super(cause);
+        }
+    }
+
+    /**
+     * The executor (or a proxy in front of it) failed after the launch was sent, so the function could have been started
+     */
+    public static class ExecutorFailedException extends FunctionStartedWithException {
+        public ExecutorFailedException(Throwable cause) {
+            super(cause);
+        }
+    }
 }
@@ -0,0 +1,176 @@
+package nl.factorit.openobd.functionlauncher;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import io.grpc.Deadline;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Predicate;
+
+/**
+ * The HTTP API of the executors (see the Python executor), as both HttpExecutorTransport and UnixSocketExecutorTransport
+ * speak it. The transports only send the requests, this keeps which executors accept protobuf requests and tells what
+ * the responses mean.
+ */
+final class ExecutorHttpApi {
+    private static final Logger logger = Logger.getLogger("ExecutorHttpApi");
+
+    private final Map<String, Boolean> protobufExecutors = new ConcurrentHashMap<>(); // by executor
+    private final Predicate<String> probe;
+
+    /**
+     * @param probe Probes an executor (see probed), done before the first launch on it
+     */
+    ExecutorHttpApi(Predicate<String> probe) {
+        this.probe = probe;
+    }
+
+    /**
+     * Launches a function as protobuf when its executor accepts it. An executor that no longer accepts protobuf (i.e. it
+     * was downgraded) gets the launch again as JSON, as it gets its next launches
+     *
+     * @param request Sends the launch, as protobuf or as JSON
+     */
+    ExecutorClient.FunctionResponse launch(ExecutorClient.FunctionAndSessionInfo functionAndSessionInfo, Deadline deadline, LaunchRequest request) throws ExecutorClient.FunctionNotStartedException, ExecutorClient.FunctionStartedWithException {
+        String executor = functionAndSessionInfo.getFunctionExecutor();
+
+        if (deadline.isExpired()) {
+            throw new ExecutorClient.FunctionNotStartedException(new TimeoutException("The deadline of the call passed"));
+        }
+
+        boolean protobuf = this.acceptsProtobuf(executor);
+        ChannelHttpClient.Response response = request.send(protobuf);
+
+        if (protobuf && HttpURLConnection.HTTP_UNSUPPORTED_TYPE == response.status()) {
+            logger.info("Executor %s does not accept %s, falling back to JSON".formatted(executor, ExecutorClient.PROTOBUF_CONTENT_TYPE));
+
+            this.protobufExecutors.put(executor, false);
+
+            if (deadline.isExpired()) {
+                throw new ExecutorClient.FunctionNotStartedException(new TimeoutException("The deadline of the call passed"));
+            }
+
+            response = request.send(false);
+        }
+
+        int status = response.status();
+
+        if (HttpURLConnection.HTTP_INTERNAL_ERROR <= status) {
+            throw new ExecutorClient.ExecutorFailedException(new IOException("Executor %s responded with status %d".formatted(executor, status)));
+        } else if (HttpURLConnection.HTTP_NOT_FOUND == status) {
+            // The executor doesn't have the function (i.e. it wasn't extracted), so nothing was started
+            throw new ExecutorClient.FunctionNotFoundException(executor, functionAndSessionInfo.function().id);
+        } else if (400 <= status) {
+            throw new ExecutorClient.FunctionStartedWithException(new IOException("Executor %s responded with status %d".formatted(executor, status)));
+        }
+
+        String json = new String(response.body(), StandardCharsets.UTF_8);
+        logger.debug("Got %s as response".formatted(json));
+
+        try {
+            return ExecutorClient.FunctionResponse.fromJson(json);
+        } catch (IOException e) {
+            throw new ExecutorClient.FunctionStartedWithException(e);
+        }
+    }
+
+    /**
+     * Takes the response of an executor's health route, i.e. {"healthy": true, "content_types": [...]}
+     *
+     * @return Whether the executor is healthy
+     */
+    boolean probed(String executor, ChannelHttpClient.Response response) {
+        if (400 <= response.status()) {
+            return false;
+        }
+
+        this.protobufExecutors.put(executor, advertisesProtobuf(response.body()));
+
+        return true;
+    }
+
+    /**
+     * Whether requests to the given executor can be sent as protobuf, as advertised on its health route. An executor
+     * that was not probed yet, is probed first
+     */
+    private boolean acceptsProtobuf(String executor) {
+        Boolean accepts = this.protobufExecutors.get(executor);
+
+        if (null == accepts && this.probe.test(executor)) {
+            accepts = this.protobufExecutors.get(executor);
+        }
+
+        // Should the executor be unreachable, the request will fail either way
+        return Boolean.TRUE.equals(accepts);
+    }
+
+    private static boolean advertisesProtobuf(byte[] health) {
+        try {
+            for (JsonNode contentType : ExecutorClient.MAPPER.readTree(health).path("content_types")) {
+                if (ExecutorClient.PROTOBUF_CONTENT_TYPE.equals(contentType.asText())) {
+                    return true;
+                }
+            }
+        } catch (IOException e) {
+            logger.debug("Could not read the content types of the executor: %s".formatted(e.getMessage()));
+        }
+
+        return false;
+    }
+
+    /**
+     * Takes the response to deleting a function from the executor's running functions
+     *
+     * @return Whether the function was still running
+     */
+    static boolean cancelled(String executor, String runtimeId, int status) throws IOException {
+        if (HttpURLConnection.HTTP_NOT_FOUND == status) {
+            // Already completed
+            return false;
+        } else if (400 <= status) {
+            throw new IOException("Executor %s responded with status %d to cancelling %s".formatted(executor, status, runtimeId));
+        }
+
+        return true;
+    }
+
+    /**
+     * Takes the response of a route listing ids, i.e. ["36af611a-832e-40dd-9946-a5dd24b4c0b9", ...]
+     *
+     * @param route The route, i.e. "functions" or "running_functions"
+     * @return The listed ids, empty when the executor doesn't have the route
+     */
+    static Optional<Set<String>> listed(String executor, String route, ChannelHttpClient.Response response) throws IOException {
+        if (HttpURLConnection.HTTP_NOT_FOUND == response.status()) {
+            return Optional.empty();
+        } else if (400 <= response.status()) {
+            throw new IOException("Executor %s responded with status %d to %s".formatted(executor, response.status(), route));
+        }
+
+        Set<String> ids = new HashSet<>();
+        for (JsonNode id : ExecutorClient.MAPPER.readTree(response.body())) {
+            ids.add(id.asText());
+        }
+
+        return Optional.of(ids);
+    }
+
+    /**
+     * Sends the launch of a function to its executor, with the response read in full
+     */
+    interface LaunchRequest {
+        /**
+         * @param protobuf Whether to send the launch as protobuf, or else as JSON
+         * @throws ExecutorClient.FunctionNotStartedException When the launch was not sent
+         * @throws ExecutorClient.FunctionStartedWithException When it is unknown whether the launch arrived
+         */
+        ChannelHttpClient.Response send(boolean protobuf) throws ExecutorClient.FunctionNotStartedException, ExecutorClient.FunctionStartedWithException;
+    }
+}
@@ -0,0 +1,81 @@
+package nl.factorit.openobd.functionlauncher;
+
+import io.grpc.Deadline;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * The way functions are launched on an executor, chosen per executor by the ExecutorClient
+ */
+public interface ExecutorTransport {
+    /**
+     * Starts the given function on its executor
+     *
+     * @param functionAndSessionInfo The function to start and the session to start it for
+     * @param deadline The deadline of the call, the executor is not waited for any longer
+     * @return The response of the executor, containing at least the runtime_id of the started function
+     * @throws ExecutorClient.FunctionNotStartedException When the function was not started
+     * @throws ExecutorClient.FunctionNotFoundException When the executor does not have the function
+     * @throws ExecutorClient.FunctionStartedWithException When it is unknown whether the function was started
+     */
+    ExecutorClient.FunctionResponse startFunction(ExecutorClient.FunctionAndSessionInfo functionAndSessionInfo, Deadline deadline) throws ExecutorClient.FunctionNotStartedException, ExecutorClient.FunctionStartedWithException;
+
+    /**
+     * Checks whether the executor is healthy, which also opens a connection to it
+     *
+     * @param executor The executor as configured for a function, i.e. "python"
+     * @return Whether the executor responded to be healthy
+     */
+    boolean probe(String executor);
+
+    /**
+     * Stops a started function on the executor
+     *
+     * @param executor The executor the function was started on
+     * @param runtimeId The runtime id the executor gave the function
+     * @param reason Why the function is stopped, for the executor's logs
+     * @return Whether the function was still running
+     */
+    boolean cancelFunction(String executor, String runtimeId, String reason) throws IOException;
+
+    /**
+     * Asks the executor which functions are still running, for transports that don't push the completion of functions
+     *
+     * @param executor The executor as configured for a function, i.e. "python"
+     * @return The runtime ids of the running functions, empty when the executor can't tell
+     */
+    Optional<Set<String>> getRunningFunctions(String executor) throws IOException;
+
+    /**
+     * Asks the executor which functions it has, so functions it doesn't have aren't registered ONLINE
+     *
+     * @param executor The executor as configured for a function, i.e. "python"
+     * @return The ids of the functions the executor can start, empty when the executor can't tell
+     */
+    Optional<Set<String>> getFunctions(String executor) throws IOException;
+
+    /**
+     * Sets the listener that is called when the executor pushes that a function completed, transports that can't push
+     * this don't call it
+     */
+    void onCompletion(CompletionListener listener);
+
+    /**
+     * Closes the connection(s) to the executor
+     *
+     * @param timeout Maximum time to wait for the connection(s) to close gracefully
+     */
+    void close(Duration timeout) throws InterruptedException;
+
+    interface CompletionListener {
+        /**
+         * @param executor The executor the function ran on
+         * @param runtimeId The runtime id the executor gave the function when it was started
+         * @param succeeded Whether the function completed successfully
+         */
+        void completed(String executor, String runtimeId, boolean succeeded);
+    }
+}
@@ -0,0 +1,106 @@
+package nl.factorit.openobd.functionlauncher;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable catalog of the functions served by the Function Launcher, looked up by the id as it arrives in a
+ * FunctionCall. Built once when the catalog is loaded and shared by every cluster, so it is kept as small as possible:
+ * the functions are held in an array (in the order they were loaded) and found through an open addressing table of
+ * their positions, instead of a map entry (and boxed key) per function.
+ *
+ * The position of a function is stable, so per-cluster state (i.e. which functions are ONLINE) can be kept in a
+ * BitSet indexed by it.
+ */
+public final class FunctionIndex {
+    private final FunctionLauncher.Function[] functions;
+    private final int[] slots; // position + 1 of the function hashed to the slot, 0 when the slot is empty
+    private final int mask;
+
+    /**
+     * @param functions The functions, a function with the same id as an earlier one replaces it
+     */
+    public FunctionIndex(List<FunctionLauncher.Function> functions) {
+        // At most half of the slots are taken, so a lookup rarely needs more than one or two probes
+        int slotCount = Integer.highestOneBit(Math.max(2, functions.size()) - 1) << 2;
+
+        FunctionLauncher.Function[] positions = new FunctionLauncher.Function[functions.size()];
+        this.slots = new int[slotCount];
+        this.mask = slotCount - 1;
+
+        int size = 0;
+        for (FunctionLauncher.Function function : functions) {
+            int slot = this.find(positions, function.id);
+
+            if (0 != this.slots[slot]) {
+                positions[this.slots[slot] - 1] = function;
+
+                continue;
+            }
+
+            positions[size] = function;
+            this.slots[slot] = ++size;
+        }
+
+        this.functions = size == positions.length ? positions : Arrays.copyOf(positions, size);
+    }
+
+    /**
+     * @return The slot holding the function with the given id, or the empty slot it should be put in
+     */
+    private int find(FunctionLauncher.Function[] positions, String id) {
+        for (int slot = spread(id.hashCode()) & this.mask; ; slot = (slot + 1) & this.mask) {
+            int position = this.slots[slot];
+
+            if (0 == position || positions[position - 1].id.equals(id)) {
+                return slot;
+            }
+        }
+    }
+
+    /**
+     * Mixes all bits of the hash into the lower bits, which are the only ones used to pick a slot
+     */
+    private static int spread(int hash) {
+        int spread = hash * 0x9E3779B9;
+
+        return spread ^ (spread >>> 16);
+    }
+
+    /**
+     * @param id The id of the function, as requested by the Function Broker
+     * @return The position of the function, or -1 when it is not in the catalog
+     */
+    public int indexOf(String id) {
+        return this.slots[this.find(this.functions, id)] - 1;
+    }
+
+    /**
+     * @param id The id of the function, as requested by the Function Broker
+     * @return The function, or null when it is not in the catalog
+     */
+    public FunctionLauncher.Function get(String id) {
+        int position = this.indexOf(id);
+
+        return -1 != position ? this.functions[position] : null;
+    }
+
+    /**
+     * @param position The position of the function, between 0 and the size of the catalog
+     */
+    public FunctionLauncher.Function get(int position) {
+        return this.functions[position];
+    }
+
+    public int size() {
+        return this.functions.length;
+    }
+
+    /**
+     * @return All functions, in the order of their positions
+     */
+    public List<FunctionLauncher.Function> getFunctions() {
+        return Collections.unmodifiableList(Arrays.asList(this.functions));
+    }
+}
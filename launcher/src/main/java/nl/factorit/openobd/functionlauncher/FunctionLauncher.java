@@ -3,12 +3,18 @@ package nl.factorit.openobd.functionlauncher;
 import com.jifeline.OpenOBD.Function.Messages.FunctionDetails;
 import com.jifeline.OpenOBD.FunctionBroker.Messages.*;
 import nl.factorit.openobd.functionlauncher.broker.BrokerClient;
+import nl.factorit.openobd.functionlauncher.broker.ClusterConfig;
 import nl.factorit.openobd.functionlauncher.broker.communication.BrokerStream;
+import nl.factorit.openobd.functionlauncher.broker.communication.IncomingMessage;
 import nl.factorit.openobd.functionlauncher.broker.communication.OutgoingMessage;
 
 import java.io.IOException;
 import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Main thread of the FunctionLauncher that will manage the configured openOBD Functions and execute these when a client
@@ -16,26 +22,86 @@ import java.util.*;
  */
 public class FunctionLauncher {
     private static final long REFRESH_INTERVAL = Duration.ofSeconds(1).toMillis();
+    private static final long METRICS_INTERVAL = Duration.ofMinutes(1).toMillis();
+    private static final long SHARD_REFRESH_INTERVAL = Duration.ofSeconds(2).toMillis();
+    // States of an openOBD session in which its functions should no longer run
+    private static final Set<String> ENDED_SESSION_STATES = Set.of("interrupted", "finished", "failed");
     private static final Logger logger = Logger.getLogger("FunctionLauncher");
 
-    private final Map<String, Function> functions = new HashMap<>();
-    private BrokerClient brokerClient;
-
+    private final List<ClusterSession> clusters = new ArrayList<>();
+    private final Resources resources;
+    private final Dispatcher dispatcher;
     private final ExecutorClient executorClient;
+    private final ExecutionRegistry executions;
+    private final CallJournal journal; // null when CALL_JOURNAL_DIRECTORY is not set
+    private final ShardCoordinator shards;
+    private final ScheduledExecutorService reconnects;
+    private FunctionIndex catalog; // the catalog the clusters serve, replaced when the functions were reloaded
 
-    private boolean markedForShutdown = false;
-    private boolean running = false;
+    private final CountDownLatch shutdownRequest = new CountDownLatch(1);
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private boolean drained = false;
+    private volatile boolean failed = false;
 
-    public FunctionLauncher() {
+    /**
+     * @param resources The parts of the launcher that are kept when it is restarted in-process
+     */
+    public FunctionLauncher(Resources resources) {
         try {
             logger.info("Starting with an interval of %d second(s)".formatted(Duration.ofMillis(REFRESH_INTERVAL).toSeconds()));
 
-            this.executorClient = new ExecutorClient();
+            this.resources = resources;
+            this.executorClient = resources.executorClient;
+            this.executions = resources.executions;
+            this.catalog = resources.getCatalog();
+            this.shards = ShardCoordinator.fromEnvironment();
+            this.journal = CallJournal.fromEnvironment().orElse(null);
+            this.dispatcher = new Dispatcher(this.executorClient, this.executions, this.journal);
+
+            List<ClusterConfig> configs = ClusterConfig.fromEnvironment();
+
+            // A lost cluster is recovered on its own thread, so it doesn't hold up the others
+            this.reconnects = Executors.newScheduledThreadPool(configs.size(), runnable -> {
+                Thread thread = new Thread(runnable, "reconnect");
+                thread.setDaemon(true);
+
+                return thread;
+            });
+
+            try {
+                if (!resources.isStarted()) {
+                    // Nothing is registered ONLINE before the launcher is ready to handle calls quickly, a launcher
+                    // that is restarted in-process is still warm
+                    WarmUp.run(this.dispatcher, this.catalog);
+
+                    resources.start();
+
+                    // Without the functions the executors don't have
+                    this.catalog = resources.getCatalog();
+                }
 
-            initializeBrokerStream();
+                for (ClusterConfig config : configs) {
+                    ClusterSession cluster = new ClusterSession(config, this.catalog, this.shards, this.reconnects, this::fail);
+                    this.clusters.add(cluster);
 
-            logger.info("Serving %d function(s)".formatted(this.functions.size()));
+                    cluster.connect();
+
+                    logger.info("Serving %d function(s) on cluster %s".formatted(cluster.getOnlineFunctionCount(), cluster.getClusterId()));
+                }
+
+                // The calls that were left unanswered when the previous launcher died
+                this.dispatcher.recover(this.clusters);
+            } catch (RuntimeException | InterruptedException e) {
+                // Whatever was opened would get in the way of the next attempt (i.e. the journal)
+                this.abandon();
+
+                throw e;
+            }
         } catch (IOException e) {
+            throw new RuntimeException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+
             throw new RuntimeException(e);
         } catch (BrokerStream.StreamEndingException e) {
             logger.error(e.getMessage(), e.getCause());
@@ -48,173 +114,242 @@ public class FunctionLauncher {
         }
     }
 
-    private void initializeBrokerStream() throws IOException {
-        logger.debug("Opening Function Broker stream");
-        this.brokerClient = new BrokerClient();
-
-        // Register all the functions the parser retrieved and set them to ONLINE
-        new FunctionsParser().getFunctions().forEach((functionId, functionDescription) -> {
-            FunctionRegistration registration = FunctionRegistration.newBuilder()
-                    .setDetails(FunctionDetails.newBuilder()
-                            .setId(functionId.toString())
-                            .setName(functionDescription.name())
-                            .setVersion(functionDescription.version())
-                            .setDescription(functionDescription.description())
-                            .build())
-                    .setSignature(functionDescription.signature())
-                    .setState(FunctionRegistrationState.FUNCTION_REGISTRATION_STATE_ONLINE)
-                    .build();
+    /**
+     * Closes everything this launcher opened, when it could not be started
+     */
+    private void abandon() {
+        this.reconnects.shutdownNow();
 
-            brokerClient.send(new OutgoingMessage.FunctionRegistrationMessage(registration));
+        for (ClusterSession cluster : this.clusters) {
+            try {
+                cluster.close(Duration.ZERO);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException e) {
+                logger.debug("Could not close cluster %s: %s".formatted(cluster.getClusterId(), e.getMessage()));
+            }
+        }
 
-            functions.put(
-                    functionId.toString(),
-                    new Function(
-                            functionDescription,
-                            registration
-                    )
-            );
-        });
+        this.dispatcher.close();
+        this.shards.release();
     }
 
     /**
-     * Main loop that will start listening for messages send by the Function Broker and act accordingly.
+     * Main loop that will start listening for messages send by the Function Broker of every cluster and act accordingly.
      */
     public void run() throws InterruptedException {
         logger.info("Listening for requests...");
 
-        int tries = 0;
-
-        while (!Thread.currentThread().isInterrupted() && !this.markedForShutdown) {
-            this.running = true;
+        long nextMetricsLog = System.currentTimeMillis() + METRICS_INTERVAL;
+        long nextShardRefresh = System.currentTimeMillis() + SHARD_REFRESH_INTERVAL;
 
-            Optional<FunctionUpdate> request = this.brokerClient.receive();
-
-            try {
-                Thread.sleep(REFRESH_INTERVAL);
+        try {
+            while (!Thread.currentThread().isInterrupted() && !this.isMarkedForShutdown()) {
+                boolean idle = true;
+                for (ClusterSession cluster : this.clusters) {
+                    if (this.poll(cluster)) {
+                        idle = false;
+                    }
+                }
 
-                if (request.isEmpty()) {
-                    continue;
+                // Only wait for new messages when none of the clusters had anything to handle, a shutdown request
+                // ends the wait immediately
+                if (idle && this.shutdownRequest.await(REFRESH_INTERVAL, TimeUnit.MILLISECONDS)) {
+                    break;
                 }
 
-                FunctionUpdate update = request.get();
+                if (nextShardRefresh <= System.currentTimeMillis()) {
+                    this.refreshShards();
+                    this.updateCatalog();
 
-                switch(update.getType()) {
-                    case FUNCTION_UPDATE_TYPE_REQUEST -> this.handleRequest(update);
-                    case FUNCTION_UPDATE_TYPE_RESPONSE -> this.handleResponse(update);
+                    nextShardRefresh = System.currentTimeMillis() + SHARD_REFRESH_INTERVAL;
                 }
 
-                tries = 0; // Reset the recover stream counter as we have successfully listened for a request
-            } catch (BrokerStream.StreamEndingException | BrokerReconnectException e) {
-                // Try to fix the broker connection between the Function Launcher and Function Broken
-                if (Server.MAX_ITERATIONS <= tries) {
-                    logger.error("Could not recover Broker communication, stopping");
+                if (nextMetricsLog <= System.currentTimeMillis()) {
+                    this.clusters.forEach(cluster -> logger.info("%s, %s".formatted(cluster.getState(), cluster.getMetrics())));
+                    logger.info("%d execution(s) running, %s".formatted(this.executions.size(), this.executions.getMetrics()));
+                    logger.info(this.executorClient.getMetrics().toString());
+                    this.dispatcher.getDeduplicationMetrics().ifPresent(metrics -> logger.info(metrics.toString()));
 
-                    this.requestShutdown();
-                    throw e;
-                }
+                    if (null != this.journal) {
+                        logger.info("%d unanswered call(s) journaled, %s".formatted(this.journal.size(), this.journal.getMetrics()));
+                    }
 
-                if (null != e.getCause()) {
-                    logger.error(e.getMessage(), e.getCause());
-                } else {
-                    logger.error(e.getMessage());
+                    nextMetricsLog = System.currentTimeMillis() + METRICS_INTERVAL;
                 }
-                logger.info("Trying to recover Broker communication (trying %s more time(s))...".formatted(Server.MAX_ITERATIONS - tries));
+            }
+        } finally {
+            this.stopped.countDown();
+        }
 
-                try {
-                    initializeBrokerStream();
-                } catch (IOException ignored) {
-                    // If it fails the only thing we can do is try it again... (with the max amount of tries of course)
-                }
+        logger.info("Stopped listening for updates");
 
-                tries = 1 + tries;
-                Thread.sleep(Server.SLEEP_TIME_IN_SECONDS.toMillis() * tries);
-            } catch (
-                UnknownFunctionException |
-                ExecutorClient.FunctionNotStartedException e
-            ) {
-                // Inform the client that requested an openOBD function that it could not be started
-                request.ifPresent(update -> {
-                    if (null != e.getCause()) {
-                        logger.error("Function %s could not be started: %s".formatted(update.getFunctionCall().getId(), e.getMessage()), e.getCause());
-                    } else {
-                        logger.error("Function %s could not be started: %s".formatted(update.getFunctionCall().getId(), e.getMessage()));
-                    }
+        // When the loop was stopped from the outside the drain is most likely already running, this will wait for it
+        this.drain(Server.DRAIN_TIMEOUT);
+    }
 
-                    brokerClient.send(
-                        new OutgoingMessage.FunctionCallResponse(
-                                update.getFunctionCall(),
-                                FunctionUpdateResponse.FUNCTION_UPDATE_FAILED,
-                                "Function %s could not be started".formatted(update.getFunctionCall().getId())
-                        )
-                    );
-                });
-            } catch (ExecutorClient.FunctionStartedWithException e) {
-                request.ifPresent(update ->
-                    brokerClient.send(
-                        new OutgoingMessage.FunctionCallResponse(
-                            update.getFunctionCall(),
-                            FunctionUpdateResponse.FUNCTION_UPDATE_SUCCESS,
-                            "Function %s was started, but had exceptions".formatted(update.getFunctionCall().getId())
-                    )
-                ));
+    /**
+     * Take over (or hand over) functions when other Function Launcher replicas left (or joined)
+     */
+    private void refreshShards() {
+        if (!this.shards.refresh()) {
+            return;
+        }
+
+        for (ClusterSession cluster : this.clusters) {
+            if (!cluster.isReady()) {
+                // The registrations are corrected when the cluster is READY again
+                continue;
+            }
+
+            try {
+                cluster.rebalance();
+            } catch (BrokerStream.StreamEndingException e) {
+                // The registrations will be corrected when the cluster reconnects
+                logger.error("Could not rebalance functions on cluster %s".formatted(cluster.getClusterId()), e);
             }
         }
+    }
+
+    /**
+     * Serves the functions that were reloaded in the background (see Resources), if they changed
+     */
+    private void updateCatalog() {
+        FunctionIndex catalog = this.resources.getCatalog();
 
-        this.cleanup();
+        if (catalog == this.catalog) {
+            return;
+        }
 
-        this.running = false;
+        this.catalog = catalog;
 
-        logger.info("Stopped listening for updates");
+        for (ClusterSession cluster : this.clusters) {
+            try {
+                cluster.updateCatalog(catalog);
+            } catch (BrokerStream.StreamEndingException e) {
+                // The registrations will be corrected when the cluster reconnects
+                logger.error("Could not update the functions on cluster %s".formatted(cluster.getClusterId()), e);
+            }
+        }
+
+        logger.info("Serving %d function(s) after a reload".formatted(catalog.size()));
     }
 
-    private void handleRequest(FunctionUpdate update) throws BrokerReconnectException {
-        if (update.hasFunctionCall()) {
-            FunctionCall call = update.getFunctionCall();
+    /**
+     * Handles a single message of the given cluster's Function Broker, if any. A cluster that is not READY is skipped,
+     * a lost connection is recovered in the background
+     *
+     * @return Whether a message was available
+     */
+    private boolean poll(ClusterSession cluster) {
+        if (!cluster.isReady()) {
+            return false;
+        }
+
+        try {
+            Optional<IncomingMessage> request = cluster.receive();
 
-            logger.debug("%s: Got a REQUEST".formatted(call.getId()));
+            if (request.isEmpty()) {
+                return false;
+            }
+
+            FunctionUpdate update = request.get().update();
 
-            Function function = this.functions.get(call.getId());
+            switch(update.getType()) {
+                case FUNCTION_UPDATE_TYPE_REQUEST -> this.handleRequest(cluster, request.get());
+                case FUNCTION_UPDATE_TYPE_RESPONSE -> this.handleResponse(cluster, update);
+            }
 
-            if (null == function) {
-                throw new UnknownFunctionException(call.getId());
+            cluster.resetRecoveryAttempts(); // Reset the recover stream counter as we have successfully listened for a request
+        } catch (BrokerStream.StreamEndingException e) {
+            // Try to fix the broker connection between the Function Launcher and Function Broker
+            if (null != e.getCause()) {
+                logger.error(e.getMessage(), e.getCause());
+            } else {
+                logger.error(e.getMessage());
             }
 
-            // Start the requested function
-            this.executorClient.startFunction(
-                    new ExecutorClient.FunctionAndSessionInfo(
-                            function,
-                            call.getSessionInfo()
-                    )
-            );
-
-            // If there wasn't any error we send a start success to the broker
-            this.brokerClient.send(
-                    new OutgoingMessage.FunctionCallResponse(
-                            call,
-                            FunctionUpdateResponse.FUNCTION_UPDATE_SUCCESS,
-                            "Function %s has been started successfully".formatted(call.getId())
-                    )
-            );
+            cluster.recover();
+        }
+
+        return true;
+    }
+
+    private void handleRequest(ClusterSession cluster, IncomingMessage received) {
+        FunctionUpdate update = received.update();
+
+        if (update.hasFunctionCall() && ENDED_SESSION_STATES.contains(update.getFunctionCall().getSessionInfo().getState())) {
+            this.handleEndedSession(cluster, received);
+        } else if (update.hasFunctionCall()) {
+            logger.debug("%s: Got a REQUEST on cluster %s".formatted(update.getFunctionCall().getId(), cluster.getClusterId()));
 
+            this.dispatcher.dispatch(cluster, received);
         } else if (update.hasFunctionBrokerToken()) {
             logger.debug("Token update, refreshing token");
             // The ping possibly contains an updated token (meaning our current one could expire soon) so we'll
             // always override it
-            this.brokerClient.updateToken(update.getFunctionBrokerToken());
+            cluster.updateToken(update.getFunctionBrokerToken());
 
-            // And we send a ping back to keep the gRPC stream from being closed by the ALB
-            this.brokerClient.send(
-                    new OutgoingMessage.FunctionBrokerTokenMessage(update.getFunctionBrokerToken())
-            );
+            // And we send a ping back (on the same stream) to keep the gRPC stream from being closed by the ALB
+            cluster.replyToPing(received);
         } else if (update.hasFunctionBrokerReconnect()) {
-            logger.debug("Broker going down, initiating reconnect");
-            throw new BrokerReconnectException(update.getFunctionBrokerReconnect().getSecondsUntilDisconnect());
+            // Only the Broker instance behind this stream is going down, so the other streams can be left as they are
+            logger.info("Broker going down in %ss, replacing stream %d of cluster %s".formatted(
+                    update.getFunctionBrokerReconnect().getSecondsUntilDisconnect(),
+                    received.stream(),
+                    cluster.getClusterId()
+            ));
+
+            cluster.replaceStream(received.stream());
         }
     }
 
-    private void handleResponse(FunctionUpdate update) throws BrokerReconnectException {
-        if (update.hasFunctionRegistration()) {
+    /**
+     * The Function Broker relays a call for a session that already ended (i.e. it was interrupted by its caller), so
+     * the functions still running for the session are cancelled instead of starting another one
+     */
+    private void handleEndedSession(ClusterSession cluster, IncomingMessage received) {
+        FunctionCall call = received.update().getFunctionCall();
+
+        int cancelled = this.executions.cancelSession(
+                call.getSessionInfo().getId(),
+                "Session %s is %s".formatted(call.getSessionInfo().getId(), call.getSessionInfo().getState())
+        );
+
+        logger.info("Session %s is %s, cancelling %d function(s)".formatted(call.getSessionInfo().getId(), call.getSessionInfo().getState(), cancelled));
+
+        cluster.getMetrics().increment("calls_for_ended_sessions");
+        cluster.reply(received, new OutgoingMessage.FunctionCallResponse(
+                call,
+                FunctionUpdateResponse.FUNCTION_UPDATE_FAILED,
+                "Function %s was not started, session %s is %s".formatted(call.getId(), call.getSessionInfo().getId(), call.getSessionInfo().getState())
+        ));
+    }
+
+    private void handleResponse(ClusterSession cluster, FunctionUpdate update) {
+        if (update.hasFunctionCall() && FunctionUpdateResponse.FUNCTION_UPDATE_FAILED.equals(update.getResponse())) {
+            // The call was aborted by the Function Broker (i.e. its caller went away), so the function is cancelled
+            FunctionCall call = update.getFunctionCall();
+
+            int cancelled = this.executions.cancelCall(call.getSessionInfo().getId(), call.getId(), "Call aborted: %s".formatted(update.getResponseDescription()));
+
+            logger.info("Call of function %s for session %s was aborted (%s), cancelling %d run(s)".formatted(
+                    call.getId(),
+                    call.getSessionInfo().getId(),
+                    update.getResponseDescription(),
+                    cancelled
+            ));
+        } else if (update.hasFunctionRegistration()) {
+            LauncherEvents.RegistrationAcked event = new LauncherEvents.RegistrationAcked();
+            if (event.isEnabled()) {
+                event.cluster = cluster.getClusterId();
+                event.functionId = update.getFunctionRegistration().getDetails().getId();
+                event.state = update.getFunctionRegistration().getState().name();
+                event.response = update.getResponse().name();
+                event.description = update.getResponseDescription();
+                event.commit();
+            }
+
             if (!FunctionUpdateResponse.FUNCTION_UPDATE_SUCCESS.equals(update.getResponse())) {
                 logger.error("Could not register function %s:%s, reason: %s".formatted(
                         update.getFunctionRegistration().getDetails().getName(),
@@ -228,28 +363,107 @@ public class FunctionLauncher {
 
 
     /**
-     * Gracefully stop the Function Broker communications by setting all the served openOBD function to OFFLINE and closing
-     * communication streams
+     * Gracefully stop the Function Broker communications of every cluster, within the given time:
+     * 1. set all served openOBD functions to OFFLINE, so no new calls will be routed to this Function Launcher
+     * 2. stop admitting calls, calls that were received but not yet handled are answered as failed
+     * 3. wait for the in-flight launches, so their responses can still be sent
+     * 4. complete the streams and wait for the Function Broker to have received everything
+     * 5. close the channels to the Function Broker and the journal
+     *
+     * The executor connections and the executions running on them are kept (see Resources), so the launcher can be
+     * restarted in-process.
+     * Every phase is timed, a phase that runs out of time is cut short so the next phases can still be done. Draining
+     * again after it has been done has no effect.
+     *
+     * @param timeout Maximum time the whole drain may take
      */
-    private void cleanup() {
-        // Set all functions the Function Launchers serves to OFFLINE
-        this.functions.forEach((functionId, function) -> {
-            FunctionRegistration offlineFunction = FunctionRegistration.newBuilder(function.registration)
-                    .setState(FunctionRegistrationState.FUNCTION_REGISTRATION_STATE_OFFLINE)
-                    .build();
+    public synchronized void drain(Duration timeout) {
+        if (this.drained) {
+            return;
+        }
 
-            brokerClient.send(new OutgoingMessage.FunctionRegistrationMessage(offlineFunction));
-            functions.get(functionId).updateRegistration(offlineFunction);
-        });
+        logger.info("Draining, for max %d ms".formatted(timeout.toMillis()));
+
+        long start = System.nanoTime();
+        long deadline = start + timeout.toNanos();
+
+        try {
+            this.drainPhase("OFFLINE registrations", () -> this.forEachCluster(cluster -> {
+                cluster.startDraining();
+                cluster.goOffline();
+            }));
+
+            this.drainPhase("stop admitting calls", () -> {
+                this.requestShutdown();
+
+                if (!this.stopped.await(remaining(deadline).toNanos(), TimeUnit.NANOSECONDS)) {
+                    logger.error("Main loop did not stop in time");
+                }
 
-        this.brokerClient.stopCommunications();
+                this.forEachCluster(cluster -> {
+                    int rejected = cluster.rejectReceivedCalls();
+
+                    if (0 < rejected) {
+                        logger.info("Rejected %d received call(s) on cluster %s".formatted(rejected, cluster.getClusterId()));
+                    }
+                });
+            });
+
+            this.drainPhase("in-flight launches", () -> this.dispatcher.awaitCompletion(remaining(deadline)));
+
+            this.drainPhase("flush streams", () -> this.forEachCluster(cluster -> {
+                if (!cluster.flush(remaining(deadline))) {
+                    logger.error("Function Broker of cluster %s did not close the streams in time".formatted(cluster.getClusterId()));
+                }
+            }));
+
+            this.drainPhase("close channels", () -> {
+                this.reconnects.shutdownNow();
+                this.forEachCluster(cluster -> cluster.close(remaining(deadline)));
+                this.dispatcher.close();
+            });
+        } catch (InterruptedException e) {
+            logger.error("Drain was interrupted");
+
+            Thread.currentThread().interrupt();
+        }
+
+        this.shards.release();
+        this.drained = true;
+
+        logger.info("Drained in %d ms".formatted(Duration.ofNanos(System.nanoTime() - start).toMillis()));
+    }
+
+    private void drainPhase(String name, DrainStep step) throws InterruptedException {
+        long start = System.nanoTime();
+
+        step.run();
+
+        logger.info("Drain phase '%s' took %d ms".formatted(name, Duration.ofNanos(System.nanoTime() - start).toMillis()));
+    }
+
+    /**
+     * Applies the step to every cluster, a cluster that fails does not keep the other clusters from being drained
+     */
+    private void forEachCluster(ClusterStep step) throws InterruptedException {
+        for (ClusterSession cluster : this.clusters) {
+            try {
+                step.run(cluster);
+            } catch (RuntimeException e) {
+                logger.error("Could not drain cluster %s: %s".formatted(cluster.getClusterId(), e.getMessage()));
+            }
+        }
+    }
+
+    private static Duration remaining(long deadline) {
+        return Duration.ofNanos(Math.max(0, deadline - System.nanoTime()));
     }
 
     /**
      * Break the update loop from the outside
      */
     public void requestShutdown() {
-        if (this.markedForShutdown) {
+        if (this.isMarkedForShutdown()) {
             logger.debug("Another shutdown request recieved");
 
             return;
@@ -257,38 +471,201 @@ public class FunctionLauncher {
 
         logger.info("Shutdown request received");
 
-        this.markedForShutdown = true;
+        this.shutdownRequest.countDown();
     }
 
-    public boolean isRunning() {
-        return running;
+    private boolean isMarkedForShutdown() {
+        return 0 == this.shutdownRequest.getCount();
     }
 
     /**
-     * Basically a tuple, holding information about a single Function
+     * Stops the launcher because it can't go on (i.e. a cluster could not be recovered), it is drained like any other
+     * stop but can be restarted in-process
+     */
+    public void fail() {
+        this.failed = true;
+
+        this.requestShutdown();
+    }
+
+    /**
+     * @return Whether the launcher stopped because it failed, not because it was asked to
+     */
+    public boolean hasFailed() {
+        return this.failed;
+    }
+
+    private interface DrainStep {
+        void run() throws InterruptedException;
+    }
+
+    private interface ClusterStep {
+        void run(ClusterSession cluster) throws InterruptedException;
+    }
+
+    /**
+     * Basically a tuple, holding information about a single Function. Shared by all clusters, the registration is only
+     * built when it is sent
      */
     public static class Function {
-        public FunctionsParser.FunctionDescription description;
-        public FunctionRegistration registration;
+        public final String id;
+        public final FunctionsParser.FunctionDescription description;
 
-        public Function(FunctionsParser.FunctionDescription description, FunctionRegistration registration) {
+        /**
+         * @param id The id of the function as known by the Function Broker
+         */
+        public Function(String id, FunctionsParser.FunctionDescription description) {
+            this.id = id;
             this.description = description;
-            this.registration = registration;
         }
 
         /**
-         * Updates the registration (done after a server mutation request)
-         *
-         * @param registration The registration returned by the server
+         * @param state The state to register the function in
+         * @return The registration of the function on the Function Broker
          */
-        public void updateRegistration(FunctionRegistration registration) {
-            this.registration = registration;
+        public FunctionRegistration toRegistration(FunctionRegistrationState state) {
+            return FunctionRegistration.newBuilder()
+                    .setDetails(FunctionDetails.newBuilder()
+                            .setId(this.id)
+                            .setName(this.description.name())
+                            .setVersion(this.description.version())
+                            .setDescription(this.description.description())
+                            .build())
+                    .setSignature(this.description.signature())
+                    .setState(state)
+                    .build();
         }
     }
 
-    public static class BrokerReconnectException extends RuntimeException {
-        public BrokerReconnectException(int secondsUntilDisconnect) {
-            super("Connected Broker is going down in %ss, reconnect to new Broker instance".formatted(secondsUntilDisconnect));
+    /**
+     * The parts of the Function Launcher that survive an in-process restart (see Server): the parsed function catalog,
+     * the executor connections and the executions running on them. Rebuilding these would cost as much as a restart of
+     * the whole process, while they are not affected by the Function Broker connection being lost.
+     *
+     * Once started, the functions are reloaded every FUNCTIONS_RELOAD_INTERVAL seconds (default 30, 0 disables it) in
+     * the background, only the shards that changed are read again (see FunctionsParser). Before they are served, the
+     * functions are reconciled with the functions the executors have (see ExecutorClient.reconcile), which is repeated
+     * after every reload to pick up the functions an executor extracted since.
+     */
+    public static class Resources {
+        private static final Duration DEFAULT_RELOAD_INTERVAL = Duration.ofSeconds(30);
+
+        private final FunctionsParser functions;
+        private final ExecutorClient executorClient;
+        private final ExecutionRegistry executions;
+        private volatile FunctionIndex catalog; // the loaded functions the executors have
+        private final ScheduledExecutorService reloads = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "functions-reload");
+            thread.setDaemon(true);
+
+            return thread;
+        });
+        private boolean started = false;
+
+        public Resources() throws IOException {
+            this.functions = new FunctionsParser();
+            this.executorClient = new ExecutorClient();
+            this.executions = new ExecutionRegistry(this.executorClient);
+            this.catalog = this.functions.getFunctions();
+        }
+
+        /**
+         * @return The functions as last loaded, that the executors had when they were last reconciled
+         */
+        private FunctionIndex getCatalog() {
+            return this.catalog;
+        }
+
+        private void reload() {
+            try {
+                this.functions.reload();
+            } catch (IOException e) {
+                logger.error("Could not reload the functions, serving the ones loaded before: %s".formatted(e.getMessage()));
+            } catch (RuntimeException e) {
+                logger.error("Could not reload the functions, serving the ones loaded before", e);
+            }
+
+            this.reconcile();
+        }
+
+        /**
+         * Replaces the catalog with the loaded functions the executors have, when that changed
+         */
+        private void reconcile() {
+            FunctionIndex loaded = this.functions.getFunctions();
+            FunctionIndex reconciled;
+            try {
+                reconciled = this.executorClient.reconcile(loaded);
+            } catch (RuntimeException e) {
+                logger.error("Could not reconcile the functions with the executors", e);
+
+                return;
+            }
+
+            if (!isSameCatalog(reconciled, this.catalog)) {
+                if (reconciled.size() < loaded.size()) {
+                    logger.info("Leaving out %d of %d function(s), their executor doesn't have them".formatted(loaded.size() - reconciled.size(), loaded.size()));
+                }
+
+                this.catalog = reconciled;
+            }
+        }
+
+        /**
+         * @return Whether both catalogs hold the same functions, in the same positions
+         */
+        private static boolean isSameCatalog(FunctionIndex a, FunctionIndex b) {
+            if (a == b) {
+                return true;
+            }
+
+            if (a.size() != b.size()) {
+                return false;
+            }
+
+            for (int position = 0; position < a.size(); position++) {
+                if (a.get(position) != b.get(position)) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        private boolean isStarted() {
+            return this.started;
+        }
+
+        /**
+         * Starts following the executions, reconciling the functions with the executors and reloading them, once the
+         * first launcher is warmed up
+         */
+        private void start() {
+            this.executions.start();
+            this.reconcile();
+            this.started = true;
+
+            Duration reloadInterval;
+            try {
+                reloadInterval = Duration.ofSeconds(Long.parseLong(System.getenv("FUNCTIONS_RELOAD_INTERVAL")));
+            } catch (NumberFormatException e) {
+                reloadInterval = DEFAULT_RELOAD_INTERVAL;
+            }
+
+            if (!reloadInterval.isZero() && !reloadInterval.isNegative()) {
+                this.reloads.scheduleWithFixedDelay(this::reload, reloadInterval.toMillis(), reloadInterval.toMillis(), TimeUnit.MILLISECONDS);
+            }
+        }
+
+        /**
+         * Stops reloading the functions and following the executions, and closes the connections to the executors
+         *
+         * @param timeout Maximum time to wait for the connections to close gracefully
+         */
+        public void close(Duration timeout) throws InterruptedException {
+            this.reloads.shutdownNow();
+            this.executions.stop();
+            this.executorClient.close(timeout);
         }
     }
 
@@ -2,14 +2,35 @@ package nl.factorit.openobd.functionlauncher;
 
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.annotation.JsonProperty;
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.stream.Stream;
 
 /**
  * Parses a json file containing all openOBD function this Function Launcher should server. File setup is basically identical to the
@@ -25,17 +46,36 @@ import java.util.UUID;
  *     "executor": "python",
  *     "runtime": "1",
  *     "mode": 0,
- *     "mode_string": "UNDEFINED"
+ *     "mode_string": "UNDEFINED",
+ *     "clusters": ["001"],
+ *     "max_runtime": 600,
+ *     "call_deadline": 3000
  *   }
  * ]
  *
- * Extra fields will be ignored.
+ * Extra fields will be ignored. A function without "clusters" is served on every cluster the Function Launcher serves.
+ * A function running longer than its "max_runtime" (in seconds) is cancelled, see ExecutionRegistry. A call that
+ * could not be launched within its "call_deadline" (in milliseconds) is given up, see Dispatcher.
+ *
+ * The file is read as a stream of tokens, one function at a time, so a catalog of 100k+ functions never exists as a
+ * whole json tree. The values most functions have in common (author, executor, runtime, version and clusters) are
+ * shared between the functions instead of being a copy per function.
+ *
+ * Instead of a single file, FUNCTIONS_FILE_LOCATION can be a directory of such files (shards, i.e. one per team), every
+ * *.json file in it is part of the catalog. The shards are parsed in parallel. When a function is in more than one
+ * shard, the one in the last shard (by file name) is used. On a reload only the shards that were added, removed or
+ * changed are read again: a shard with the same modification time and size is skipped, a shard with the same content
+ * (by its SHA-256 hash) isn't parsed again. With a CatalogSnapshot, the same goes for the first load after a restart.
  */
 public class FunctionsParser {
+    private static final String SHARD_EXTENSION = ".json";
     private static final Logger logger = Logger.getLogger("FunctionsParser");
 
+    private final Path location;
     private final int minimumMode;
-    private final Map<UUID, FunctionDescription> functions = new HashMap<>();
+    private final CatalogSnapshot snapshot; // null when FUNCTIONS_SNAPSHOT_LOCATION is not set
+    private final Map<Path, Shard> shards = new HashMap<>(); // guarded by this
+    private volatile FunctionIndex functions;
 
     /**
      * Parses the configured json file containing the openOBD function descriptions. Functions can be filtered by mode
@@ -43,47 +83,442 @@ public class FunctionsParser {
      */
     public FunctionsParser() throws IOException {
         // Path to the 'index' file containing all functions with basic info like code path and name (comparable to script.json in the script engine)
-        String filename = System.getenv("FUNCTIONS_FILE_LOCATION");
-        String minimumMode = System.getenv("FUNCTIONS_MINIMUM_MODE");
+        this(
+                Paths.get(System.getenv("FUNCTIONS_FILE_LOCATION")),
+                minimumModeFromEnvironment(),
+                CatalogSnapshot.fromEnvironment().orElse(null)
+        );
+    }
 
-        logger.debug("Using %s as functions file".formatted(filename));
+    /**
+     * @param location The json file containing the openOBD function descriptions, or a directory of them
+     * @param minimumMode Functions with a lower mode are skipped
+     */
+    public FunctionsParser(Path location, FunctionMode minimumMode) throws IOException {
+        this(location, minimumMode, null);
+    }
+
+    /**
+     * @param location The json file containing the openOBD function descriptions, or a directory of them
+     * @param minimumMode Functions with a lower mode are skipped
+     * @param snapshot The snapshot the unchanged shards are taken from and the parsed shards are written to, or null
+     */
+    public FunctionsParser(Path location, FunctionMode minimumMode, CatalogSnapshot snapshot) throws IOException {
+        logger.debug("Using %s as functions file".formatted(location));
 
-        FunctionMode mode;
+        this.location = location;
+        this.minimumMode = minimumMode.label;
+        this.snapshot = snapshot;
+
+        logger.info("Loading functions with at least mode: %s".formatted(minimumMode));
+
+        ShardParser parser = new ShardParser();
+        this.load(null != snapshot ? snapshot.read(parser::share) : Map.of(), parser);
+    }
+
+    private static FunctionMode minimumModeFromEnvironment() {
         try {
-            mode = FunctionMode.valueOf(minimumMode);
+            return FunctionMode.valueOf(System.getenv("FUNCTIONS_MINIMUM_MODE"));
         } catch (Exception e) {
-            mode = FunctionMode.UNDEFINED;
+            return FunctionMode.UNDEFINED;
         }
+    }
 
-        this.minimumMode = mode.label;
+    /**
+     * Reads the shards that were added or changed since the last load again, and drops the ones that were removed
+     *
+     * @return Whether the catalog changed, in which case getFunctions() returns the new one
+     * @throws IOException Thrown when the shards could not be listed, the catalog is left as it was. A shard that could
+     * not be read keeps the functions it had
+     */
+    public boolean reload() throws IOException {
+        return this.load(Map.of(), new ShardParser());
+    }
 
-        logger.info("Loading functions with at least mode: %s".formatted(mode));
+    /**
+     * @param snapshotted The shards in the snapshot by file name, used when their hash matches
+     * @return Whether the catalog changed
+     */
+    private synchronized boolean load(Map<String, CatalogSnapshot.Entry> snapshotted, ShardParser parser) throws IOException {
+        long start = System.nanoTime();
 
-        TypeReference<HashMap<UUID, FunctionDescription>> functionsType = new TypeReference<>() {};
+        Map<Path, BasicFileAttributes> files = this.listShards();
+        boolean removed = !files.keySet().containsAll(this.shards.keySet());
 
-        // Map functions described the .json file to a Java object, with a small filter on the mode the function is set to
-        new ObjectMapper().readValue(Paths.get(filename).toFile(), functionsType).forEach((uuid, description) -> {
-            if (this.minimumMode <= description.mode.label) {
-                this.functions.put(uuid, description);
+        // A shard with the same modification time and size as when it was loaded is not even read
+        List<Path> touched = new ArrayList<>();
+        files.forEach((file, attributes) -> {
+            Shard shard = this.shards.get(file);
 
-                logger.debug("Found function %s(%s) version %s".formatted(uuid, description.name, description.version));
-            } else {
-                logger.debug("Skipping function %s(%s) version %s, due to minimum mode (is had %s)".formatted(
-                        uuid,
-                        description.name,
-                        description.version,
-                        description.mode
-                ));
+            if (null == shard || !shard.isSameFile(attributes)) {
+                touched.add(file);
             }
         });
 
-        logger.info("Loaded %d function(s)".formatted(this.functions.size()));
+        if (null != this.functions && touched.isEmpty() && !removed) {
+            return false;
+        }
+
+        Map<Path, Shard> read = this.readAll(touched, files, snapshotted, parser);
+
+        int parsed = 0;
+        int fromSnapshot = 0;
+        boolean changed = removed || null == this.functions;
+
+        for (Map.Entry<Path, Shard> entry : read.entrySet()) {
+            Shard previous = this.shards.put(entry.getKey(), entry.getValue());
+
+            switch (entry.getValue().source) {
+                case PARSED -> parsed++;
+                case SNAPSHOT -> fromSnapshot++;
+            }
+
+            if (null == previous || !Arrays.equals(previous.hash, entry.getValue().hash)) {
+                changed = true;
+            }
+        }
+
+        this.shards.keySet().retainAll(files.keySet());
+
+        if (!changed) {
+            // Only touched, the catalog is the same
+            return false;
+        }
+
+        List<FunctionLauncher.Function> functions = new ArrayList<>();
+        for (Path file : files.keySet()) {
+            if (!this.shards.containsKey(file)) {
+                // Added, but it could not be read yet
+                continue;
+            }
+
+            for (FunctionLauncher.Function function : this.shards.get(file).functions) {
+                if (this.minimumMode <= function.description.mode().label) {
+                    functions.add(function);
+
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("Found function %s(%s) version %s".formatted(function.id, function.description.name(), function.description.version()));
+                    }
+                } else if (logger.isDebugEnabled()) {
+                    logger.debug("Skipping function %s(%s) version %s, due to minimum mode (is had %s)".formatted(
+                            function.id,
+                            function.description.name(),
+                            function.description.version(),
+                            function.description.mode()
+                    ));
+                }
+            }
+        }
+
+        this.functions = new FunctionIndex(functions);
+
+        logger.info("Loaded %d function(s) from %d shard(s) in %d ms, %d shard(s) parsed and %d taken from the snapshot".formatted(
+                this.functions.size(),
+                this.shards.size(),
+                Duration.ofNanos(System.nanoTime() - start).toMillis(),
+                parsed,
+                fromSnapshot
+        ));
+
+        // Also when the snapshot holds shards that are no longer used
+        if (null != this.snapshot && (0 < parsed || removed || fromSnapshot != snapshotted.size())) {
+            this.writeSnapshot();
+        }
+
+        return true;
     }
 
-    public Map<UUID, FunctionDescription> getFunctions() {
+    /**
+     * @return The shards with their attributes, in the order of their file names
+     */
+    private Map<Path, BasicFileAttributes> listShards() throws IOException {
+        List<Path> files;
+
+        if (Files.isDirectory(this.location)) {
+            try (Stream<Path> listed = Files.list(this.location)) {
+                // Files starting with a dot are left out, i.e. the ..data directory of a mounted Kubernetes ConfigMap
+                files = listed.filter(file -> file.getFileName().toString().endsWith(SHARD_EXTENSION))
+                        .filter(file -> !file.getFileName().toString().startsWith("."))
+                        .filter(Files::isRegularFile)
+                        .sorted()
+                        .toList();
+            }
+        } else {
+            files = List.of(this.location);
+        }
+
+        Map<Path, BasicFileAttributes> shards = new LinkedHashMap<>();
+        for (Path file : files) {
+            shards.put(file, Files.readAttributes(file, BasicFileAttributes.class));
+        }
+
+        return shards;
+    }
+
+    /**
+     * Reads the given shards, in parallel when there is more than one. On the first load every shard has to be read, on
+     * a reload a shard that could not be read (i.e. it is being written, or is broken) keeps the functions it had, so
+     * a single shard can't hold up the others. It is read again on the next reload.
+     *
+     * @return The shards that were read
+     */
+    private Map<Path, Shard> readAll(
+            List<Path> files,
+            Map<Path, BasicFileAttributes> attributes,
+            Map<String, CatalogSnapshot.Entry> snapshotted,
+            ShardParser parser
+    ) throws IOException {
+        Map<Path, Future<Shard>> reads = new LinkedHashMap<>();
+        ExecutorService pool = 1 < files.size()
+                ? Executors.newFixedThreadPool(Math.min(files.size(), Runtime.getRuntime().availableProcessors()), runnable -> {
+                    Thread thread = new Thread(runnable, "functions-parser");
+                    thread.setDaemon(true);
+
+                    return thread;
+                })
+                : null;
+
+        try {
+            for (Path file : files) {
+                Callable<Shard> read = () -> this.read(file, attributes.get(file), snapshotted, parser);
+
+                if (null != pool) {
+                    reads.put(file, pool.submit(read));
+                } else {
+                    FutureTask<Shard> task = new FutureTask<>(read);
+                    task.run();
+
+                    reads.put(file, task);
+                }
+            }
+
+            Map<Path, Shard> read = new LinkedHashMap<>();
+            for (Map.Entry<Path, Future<Shard>> shard : reads.entrySet()) {
+                try {
+                    read.put(shard.getKey(), shard.getValue().get());
+                } catch (ExecutionException e) {
+                    if (!(e.getCause() instanceof IOException cause)) {
+                        throw new IllegalStateException(e.getCause());
+                    }
+
+                    if (null == this.functions) {
+                        throw cause;
+                    }
+
+                    logger.error("Could not reload shard %s, keeping the functions it had: %s".formatted(shard.getKey(), cause.getMessage()));
+                }
+            }
+
+            return read;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+
+            throw new InterruptedIOException("Interrupted while loading the functions");
+        } finally {
+            if (null != pool) {
+                pool.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Reads a single shard, which is only parsed when it isn't loaded or in the snapshot with the same content already.
+     * The attributes are taken before the content is read, so a shard that is written meanwhile is read again next time
+     */
+    private Shard read(
+            Path file,
+            BasicFileAttributes attributes,
+            Map<String, CatalogSnapshot.Entry> snapshotted,
+            ShardParser parser
+    ) throws IOException {
+        byte[] content = Files.readAllBytes(file);
+        byte[] hash = hash(content);
+        long modified = attributes.lastModifiedTime().toMillis();
+
+        Shard loaded = this.shards.get(file);
+        if (null != loaded && Arrays.equals(loaded.hash, hash)) {
+            return new Shard(modified, attributes.size(), hash, loaded.functions, Source.LOADED);
+        }
+
+        CatalogSnapshot.Entry entry = snapshotted.get(file.getFileName().toString());
+        if (null != entry && Arrays.equals(entry.hash(), hash)) {
+            return new Shard(modified, attributes.size(), hash, entry.functions(), Source.SNAPSHOT);
+        }
+
+        try {
+            return new Shard(modified, attributes.size(), hash, parser.parse(content), Source.PARSED);
+        } catch (IOException e) {
+            throw new IOException("Could not parse %s: %s".formatted(file, e.getMessage()), e);
+        }
+    }
+
+    private void writeSnapshot() {
+        Map<String, CatalogSnapshot.Entry> entries = new HashMap<>();
+        this.shards.forEach((file, shard) -> entries.put(file.getFileName().toString(), new CatalogSnapshot.Entry(shard.hash, shard.functions)));
+
+        try {
+            this.snapshot.write(entries);
+        } catch (IOException e) {
+            // Only costs the next restart some time
+            logger.error("Could not write the snapshot of the functions", e);
+        }
+    }
+
+    private static byte[] hash(byte[] content) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(content);
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform has to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return The loaded functions, by the id the Function Broker knows them by
+     */
+    public FunctionIndex getFunctions() {
         return this.functions;
     }
 
+    private enum Source {
+        LOADED, SNAPSHOT, PARSED
+    }
+
+    /**
+     * A loaded shard
+     *
+     * @param modified Modification time of the file in milliseconds, when it was read
+     * @param size Size of the file in bytes, when it was read
+     * @param hash SHA-256 hash of the content
+     * @param functions All functions in the shard, whatever their mode
+     * @param source Where the functions came from when the shard was last read
+     */
+    private record Shard(long modified, long size, byte[] hash, List<FunctionLauncher.Function> functions, Source source) {
+        private boolean isSameFile(BasicFileAttributes attributes) {
+            return this.modified == attributes.lastModifiedTime().toMillis() && this.size == attributes.size();
+        }
+    }
+
+    /**
+     * Parses the content of shards, the values the functions have in common are shared between all shards it parses
+     */
+    private static class ShardParser {
+        private final Map<String, String> sharedStrings = new ConcurrentHashMap<>();
+        private final Map<List<String>, List<String>> sharedClusters = new ConcurrentHashMap<>();
+
+        /**
+         * @return All functions in the shard, whatever their mode
+         */
+        private List<FunctionLauncher.Function> parse(byte[] content) throws IOException {
+            List<FunctionLauncher.Function> functions = new ArrayList<>();
+
+            try (JsonParser parser = new JsonFactory().createParser(content)) {
+                if (JsonToken.START_OBJECT != parser.nextToken()) {
+                    throw new JsonParseException(parser, "Expected an object with the functions by their id");
+                }
+
+                // Map functions described the .json file to a Java object
+                while (JsonToken.FIELD_NAME == parser.nextToken()) {
+                    UUID uuid;
+                    try {
+                        uuid = UUID.fromString(parser.currentName());
+                    } catch (IllegalArgumentException e) {
+                        throw new JsonParseException(parser, "Expected a function id, got %s".formatted(parser.currentName()));
+                    }
+
+                    parser.nextToken();
+                    functions.add(new FunctionLauncher.Function(uuid.toString(), this.parseDescription(parser)));
+                }
+            }
+
+            return functions;
+        }
+
+        /**
+         * Reads a single function description, the parser is on its START_OBJECT and is left on its END_OBJECT
+         */
+        private FunctionDescription parseDescription(JsonParser parser) throws IOException {
+            if (JsonToken.START_OBJECT != parser.currentToken()) {
+                throw new JsonParseException(parser, "Expected a function description object");
+            }
+
+            String name = null, signature = null, description = null, version = null, author = null, executor = null, runtime = null;
+            FunctionMode mode = FunctionMode.UNDEFINED;
+            List<String> clusters = null;
+            Integer maxRuntime = null, callDeadline = null;
+
+            while (JsonToken.FIELD_NAME == parser.nextToken()) {
+                String field = parser.currentName();
+                JsonToken value = parser.nextToken();
+
+                switch (field) {
+                    case "name" -> name = parser.getValueAsString();
+                    case "signature" -> signature = parser.getValueAsString();
+                    case "description" -> description = parser.getValueAsString();
+                    case "version" -> version = this.share(parser.getValueAsString());
+                    case "author" -> author = this.share(parser.getValueAsString());
+                    case "executor" -> executor = this.share(parser.getValueAsString());
+                    case "runtime" -> runtime = this.share(parser.getValueAsString());
+                    case "mode" -> mode = parseMode(parser);
+                    case "clusters" -> clusters = this.parseClusters(parser);
+                    case "max_runtime" -> maxRuntime = parseInteger(parser);
+                    case "call_deadline" -> callDeadline = parseInteger(parser);
+                    default -> {
+                        if (value.isStructStart()) {
+                            parser.skipChildren();
+                        }
+                    }
+                }
+            }
+
+            return new FunctionDescription(name, signature, description, version, author, executor, runtime, mode, clusters, maxRuntime, callDeadline);
+        }
+
+        /**
+         * The mode is either its number or its name, like Jackson maps an enum
+         */
+        private static FunctionMode parseMode(JsonParser parser) throws IOException {
+            return switch (parser.currentToken()) {
+                case VALUE_NUMBER_INT -> FunctionMode.values()[parser.getIntValue()];
+                case VALUE_STRING -> FunctionMode.valueOf(parser.getText());
+                case VALUE_NULL -> FunctionMode.UNDEFINED;
+                default -> throw new JsonParseException(parser, "Expected the mode as a number or name");
+            };
+        }
+
+        private static Integer parseInteger(JsonParser parser) throws IOException {
+            return switch (parser.currentToken()) {
+                case VALUE_NUMBER_INT -> parser.getIntValue();
+                case VALUE_STRING -> Integer.valueOf(parser.getText());
+                case VALUE_NULL -> null;
+                default -> throw new JsonParseException(parser, "Expected a number");
+            };
+        }
+
+        private List<String> parseClusters(JsonParser parser) throws IOException {
+            if (JsonToken.VALUE_NULL == parser.currentToken()) {
+                return null;
+            }
+
+            if (JsonToken.START_ARRAY != parser.currentToken()) {
+                throw new JsonParseException(parser, "Expected the clusters as an array");
+            }
+
+            List<String> clusters = new ArrayList<>();
+            while (JsonToken.END_ARRAY != parser.nextToken()) {
+                if (JsonToken.VALUE_NULL != parser.currentToken()) {
+                    clusters.add(this.share(parser.getValueAsString()));
+                }
+            }
+
+            return this.sharedClusters.computeIfAbsent(clusters, List::copyOf);
+        }
+
+        private String share(String value) {
+            return null != value ? this.sharedStrings.computeIfAbsent(value, shared -> shared) : null;
+        }
+    }
+
     public enum FunctionMode {
         UNDEFINED(0),
         DEVELOPMENT(1),
@@ -110,7 +545,17 @@ public class FunctionsParser {
             @JsonProperty("author") String author,
             @JsonProperty("executor") String executor,
             @JsonProperty("runtime") String runtime,
-            @JsonProperty("mode") FunctionMode mode
+            @JsonProperty("mode") FunctionMode mode,
+            @JsonProperty("clusters") List<String> clusters,
+            @JsonProperty("max_runtime") Integer maxRuntime,
+            @JsonProperty("call_deadline") Integer callDeadline
     ) {
+        /**
+         * @param clusterId The cluster to check
+         * @return Whether this function should be registered on the given cluster
+         */
+        public boolean isServedOn(String clusterId) {
+            return null == this.clusters || this.clusters.isEmpty() || this.clusters.contains(clusterId);
+        }
     }
 }
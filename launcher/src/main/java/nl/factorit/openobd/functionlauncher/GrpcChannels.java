@@ -0,0 +1,135 @@
+package nl.factorit.openobd.functionlauncher;
+
+import io.grpc.ChannelCredentials;
+import io.grpc.Grpc;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.netty.shaded.io.grpc.netty.NettyChannelBuilder;
+import io.grpc.netty.shaded.io.netty.channel.Channel;
+import io.grpc.netty.shaded.io.netty.channel.EventLoopGroup;
+import io.grpc.netty.shaded.io.netty.channel.epoll.Epoll;
+import io.grpc.netty.shaded.io.netty.channel.epoll.EpollEventLoopGroup;
+import io.grpc.netty.shaded.io.netty.channel.epoll.EpollSocketChannel;
+import io.grpc.netty.shaded.io.netty.channel.nio.NioEventLoopGroup;
+import io.grpc.netty.shaded.io.netty.channel.socket.nio.NioSocketChannel;
+import io.grpc.netty.shaded.io.netty.util.concurrent.DefaultThreadFactory;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Builds the gRPC channels to the Function Broker and the executors. By default these get the settings of gRPC itself,
+ * setting OPENOBD_GRPC_TUNING (_any_ value) tunes them for a Linux host with few, busy channels:
+ * - All channels share a single event loop group of OPENOBD_GRPC_EVENT_LOOP_THREADS (default 1) threads, on the
+ *   native epoll transport (NIO where epoll is not available, i.e. on another OS or in a native image without it)
+ * - Messages from the Function Broker are handled on the event loop itself (a direct executor), instead of being handed
+ *   to a thread of gRPC's unbounded default executor first. Its streams only queue the message (see BrokerStream)
+ * - Messages from the executors are handled on a fixed amount of threads, as they wait for the ExecutionRegistry
+ * - The HTTP/2 flow-control window starts at OPENOBD_GRPC_FLOW_CONTROL_WINDOW (in bytes, default 4 MiB) instead of
+ *   1 MiB, so a burst of calls isn't held up waiting for window updates. It is still tuned to the connection from there
+ *
+ * The event loop group and threads are created once and kept for the life of the process, so channels that are
+ * rebuilt (i.e. after a lost connection or an in-process restart) keep using the same threads.
+ */
+public final class GrpcChannels {
+    private static final int DEFAULT_EVENT_LOOP_THREADS = 1;
+    private static final int DEFAULT_FLOW_CONTROL_WINDOW = 4 * 1024 * 1024;
+    private static final int EXECUTOR_CALLBACK_THREADS = 2;
+    private static final Logger logger = Logger.getLogger("GrpcChannels");
+
+    private GrpcChannels() {
+    }
+
+    /**
+     * @return Whether OPENOBD_GRPC_TUNING is set
+     */
+    public static boolean isTuned() {
+        return null != System.getenv("OPENOBD_GRPC_TUNING");
+    }
+
+    /**
+     * @param target The host (and port) of the Function Broker
+     */
+    public static ManagedChannelBuilder<?> forBroker(String target, ChannelCredentials credentials) {
+        return forBroker(target, credentials, isTuned());
+    }
+
+    /**
+     * @param tuned Whether to tune the channel, regardless of OPENOBD_GRPC_TUNING (i.e. to compare both)
+     */
+    public static ManagedChannelBuilder<?> forBroker(String target, ChannelCredentials credentials, boolean tuned) {
+        if (!tuned) {
+            return Grpc.newChannelBuilder(target, credentials);
+        }
+
+        return tuned(target, credentials).directExecutor();
+    }
+
+    /**
+     * @param target The host (and port) of the executor's gRPC service
+     */
+    public static ManagedChannelBuilder<?> forExecutor(String target, ChannelCredentials credentials) {
+        if (!isTuned()) {
+            return Grpc.newChannelBuilder(target, credentials);
+        }
+
+        return tuned(target, credentials).executor(Shared.EXECUTOR_CALLBACKS);
+    }
+
+    private static NettyChannelBuilder tuned(String target, ChannelCredentials credentials) {
+        return NettyChannelBuilder.forTarget(target, credentials)
+                .eventLoopGroup(Shared.EVENT_LOOP_GROUP)
+                .channelType(Shared.CHANNEL_TYPE)
+                .initialFlowControlWindow(Shared.FLOW_CONTROL_WINDOW);
+    }
+
+    /**
+     * Created when the first tuned channel is built
+     */
+    private static class Shared {
+        private static final EventLoopGroup EVENT_LOOP_GROUP;
+        private static final Class<? extends Channel> CHANNEL_TYPE;
+        private static final int FLOW_CONTROL_WINDOW;
+        private static final ExecutorService EXECUTOR_CALLBACKS = Executors.newFixedThreadPool(EXECUTOR_CALLBACK_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "grpc-executor-callbacks");
+            thread.setDaemon(true);
+
+            return thread;
+        });
+
+        static {
+            int threads;
+            try {
+                threads = Math.max(1, Integer.parseInt(System.getenv("OPENOBD_GRPC_EVENT_LOOP_THREADS")));
+            } catch (NumberFormatException e) {
+                threads = DEFAULT_EVENT_LOOP_THREADS;
+            }
+
+            int window;
+            try {
+                window = Math.max(64 * 1024, Integer.parseInt(System.getenv("OPENOBD_GRPC_FLOW_CONTROL_WINDOW")));
+            } catch (NumberFormatException e) {
+                window = DEFAULT_FLOW_CONTROL_WINDOW;
+            }
+
+            FLOW_CONTROL_WINDOW = window;
+
+            DefaultThreadFactory threadFactory = new DefaultThreadFactory("grpc-event-loop", true);
+
+            if (Epoll.isAvailable()) {
+                EVENT_LOOP_GROUP = new EpollEventLoopGroup(threads, threadFactory);
+                CHANNEL_TYPE = EpollSocketChannel.class;
+            } else {
+                logger.info("Epoll is not available, using NIO: %s".formatted(Epoll.unavailabilityCause().getMessage()));
+
+                EVENT_LOOP_GROUP = new NioEventLoopGroup(threads, threadFactory);
+                CHANNEL_TYPE = NioSocketChannel.class;
+            }
+
+            logger.info("Tuned gRPC channels share %d %s event loop thread(s), with a flow-control window of %d bytes".formatted(
+                    threads,
+                    Epoll.isAvailable() ? "epoll" : "NIO",
+                    FLOW_CONTROL_WINDOW
+            ));
+        }
+    }
+}
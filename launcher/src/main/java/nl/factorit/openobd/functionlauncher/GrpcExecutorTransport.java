@@ -0,0 +1,345 @@
+package nl.factorit.openobd.functionlauncher;
+
+import io.grpc.ConnectivityState;
+import io.grpc.Deadline;
+import io.grpc.InsecureChannelCredentials;
+import io.grpc.ManagedChannel;
+import io.grpc.stub.StreamObserver;
+import nl.factorit.openobd.functionlauncher.executor.*;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Launches functions on an executor over a single long-lived bidirectional gRPC stream (see executor.proto), on which
+ * all launches, their acks and the status of the started functions are multiplexed. The stream is (re)opened on the
+ * first launch after it was closed. The completion of the started functions is pushed on the same stream.
+ *
+ * Configured per executor with OPENOBD_EXECUTOR_GRPC_HOSTS, i.e. "python=executor:9090,java=10.0.0.54:9090". The
+ * executors are expected on the same private network as the launcher, so plaintext channels are used.
+ */
+public class GrpcExecutorTransport implements ExecutorTransport {
+    private static final Duration ACK_TIMEOUT = Duration.ofMillis(ExecutorClient.EXECUTOR_HTTP_TIMEOUT);
+    private static final Duration MINIMUM_ACK_TIMEOUT = Duration.ofMillis(250);
+    private static final Logger logger = Logger.getLogger("GrpcExecutorTransport");
+
+    private final String executor;
+    private final ManagedChannel channel;
+    private final FunctionExecutorGrpc.FunctionExecutorStub functionExecutor;
+    private final AtomicLong requestIds = new AtomicLong();
+    private final AdaptiveTimeout ackTimeout;
+
+    private ExecutorStream stream;
+    private volatile CompletionListener completionListener = (executor, runtimeId, succeeded) -> {};
+
+    /**
+     * @param executor The executor as configured for a function, i.e. "python"
+     * @param host The host (and port) the executor's gRPC service is reached on
+     */
+    public GrpcExecutorTransport(String executor, String host) {
+        this.executor = executor;
+        this.channel = GrpcChannels.forExecutor(host, InsecureChannelCredentials.create()).build();
+        this.functionExecutor = FunctionExecutorGrpc.newStub(this.channel);
+        this.ackTimeout = new AdaptiveTimeout("Ack from %s".formatted(executor), MINIMUM_ACK_TIMEOUT, ACK_TIMEOUT);
+    }
+
+    /**
+     * @return A transport for every endpoint configured in OPENOBD_EXECUTOR_GRPC_HOSTS, by executor. An executor can be
+     * listed more than once to launch on multiple endpoints, i.e. python=executor-a:9090,python=executor-b:9090
+     */
+    public static Map<String, List<ExecutorTransport>> fromEnvironment() {
+        Map<String, List<ExecutorTransport>> transports = new HashMap<>();
+
+        String hosts = System.getenv("OPENOBD_EXECUTOR_GRPC_HOSTS");
+        if (null == hosts || hosts.isBlank()) {
+            return transports;
+        }
+
+        for (String entry : hosts.split(",")) {
+            String[] executorAndHost = entry.trim().split("=", 2);
+
+            if (2 != executorAndHost.length || executorAndHost[0].isBlank() || executorAndHost[1].isBlank()) {
+                throw new IllegalArgumentException("Invalid executor gRPC host '%s', expected <executor>=<host>:<port>".formatted(entry));
+            }
+
+            logger.info("Using gRPC on %s for executor %s".formatted(executorAndHost[1].trim(), executorAndHost[0].trim()));
+
+            // An executor listed more than once has multiple endpoints
+            transports.computeIfAbsent(executorAndHost[0].trim(), executor -> new ArrayList<>())
+                    .add(new GrpcExecutorTransport(executorAndHost[0].trim(), executorAndHost[1].trim()));
+        }
+
+        return transports;
+    }
+
+    /**
+     * The time waited for the ack follows the ack times of the executor (see AdaptiveTimeout), but never runs past the
+     * deadline of the call
+     */
+    @Override
+    public ExecutorClient.FunctionResponse startFunction(ExecutorClient.FunctionAndSessionInfo functionAndSessionInfo, Deadline deadline) throws ExecutorClient.FunctionNotStartedException, ExecutorClient.FunctionStartedWithException {
+        if (deadline.isExpired()) {
+            throw new ExecutorClient.FunctionNotStartedException(new TimeoutException("The deadline of the call passed"));
+        }
+
+        String functionId = functionAndSessionInfo.function().id;
+
+        logger.debug("Starting function %s on %s:%s".formatted(functionId, this.executor, functionAndSessionInfo.getRuntimeId()));
+
+        LaunchRequest request = LaunchRequest.newBuilder()
+                .setRequestId(this.requestIds.incrementAndGet())
+                .setFunctionId(functionId)
+                .setSessionInfo(functionAndSessionInfo.session().toByteString())
+                .setRuntime(functionAndSessionInfo.getRuntimeId())
+                .setIdempotencyKey(functionAndSessionInfo.idempotencyKey())
+                .build();
+
+        boolean ackTimeoutIsAdaptive = this.ackTimeout.isShorterThan(deadline);
+        long sent = System.nanoTime();
+
+        CompletableFuture<LaunchAck> pendingAck;
+        try {
+            pendingAck = this.launch(request);
+        } catch (RuntimeException e) {
+            throw new ExecutorClient.ExecutorUnreachableException(e);
+        }
+
+        LaunchAck ack;
+        try {
+            ack = pendingAck.get(this.ackTimeout.get(deadline).toNanos(), TimeUnit.NANOSECONDS);
+
+            this.ackTimeout.record(Duration.ofNanos(System.nanoTime() - sent));
+        } catch (ExecutionException e) {
+            // The stream closed after the request was sent, so the function could have been started
+            throw new ExecutorClient.ExecutorFailedException(e.getCause());
+        } catch (TimeoutException e) {
+            pendingAck.cancel(false);
+
+            if (ackTimeoutIsAdaptive) {
+                this.ackTimeout.recordTimeout();
+            }
+
+            throw new ExecutorClient.FunctionStartedWithException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+
+            throw new ExecutorClient.FunctionStartedWithException(e);
+        }
+
+        if (!ack.getStarted()) {
+            throw new ExecutorClient.FunctionNotStartedException(new IllegalStateException(ack.getError()));
+        }
+
+        // The same response as the HTTP API gives
+        ExecutorClient.FunctionResponse response = new ExecutorClient.FunctionResponse();
+        response.put("runtime_id", ack.getRuntimeId());
+        response.put("function_id", functionId);
+
+        return response;
+    }
+
+    /**
+     * Sends the request on the stream, opening a new stream should the previous one be closed
+     *
+     * @return The ack of the executor, once received
+     */
+    private synchronized CompletableFuture<LaunchAck> launch(LaunchRequest request) {
+        ExecutorStream stream = this.getStream();
+
+        CompletableFuture<LaunchAck> ack = new CompletableFuture<>();
+        stream.pendingAcks.put(request.getRequestId(), ack);
+
+        // Only completes the request once the ack was received, or the stream was closed
+        ack.whenComplete((result, error) -> stream.pendingAcks.remove(request.getRequestId()));
+
+        try {
+            stream.outgoing.onNext(LauncherMessage.newBuilder().setLaunch(request).build());
+        } catch (RuntimeException e) {
+            ack.cancel(false);
+            stream.closed = true;
+
+            throw e;
+        }
+
+        return ack;
+    }
+
+    private synchronized ExecutorStream getStream() {
+        if (null == this.stream || this.stream.closed) {
+            logger.debug("Opening stream to executor %s".formatted(this.executor));
+
+            this.stream = new ExecutorStream();
+            this.stream.outgoing = this.functionExecutor.openExecutorStream(this.stream);
+        }
+
+        return this.stream;
+    }
+
+    /**
+     * Opens the stream and waits for the channel to be READY
+     */
+    @Override
+    public boolean probe(String executor) {
+        this.getStream();
+
+        CountDownLatch ready = new CountDownLatch(1);
+        Runnable checkState = new Runnable() {
+            @Override
+            public void run() {
+                ConnectivityState state = GrpcExecutorTransport.this.channel.getState(true);
+
+                if (ConnectivityState.READY == state) {
+                    ready.countDown();
+                } else if (ConnectivityState.SHUTDOWN != state) {
+                    GrpcExecutorTransport.this.channel.notifyWhenStateChanged(state, this);
+                }
+            }
+        };
+        checkState.run();
+
+        try {
+            return ready.await(ACK_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+
+            return false;
+        }
+    }
+
+    /**
+     * Sends the cancel on the stream, the executor pushes a FunctionStatus once the function is stopped
+     */
+    @Override
+    public synchronized boolean cancelFunction(String executor, String runtimeId, String reason) throws IOException {
+        logger.debug("Cancelling function run %s on %s: %s".formatted(runtimeId, executor, reason));
+
+        try {
+            this.getStream().outgoing.onNext(LauncherMessage.newBuilder()
+                    .setCancel(CancelRequest.newBuilder().setRuntimeId(runtimeId).setReason(reason).build())
+                    .build());
+        } catch (RuntimeException e) {
+            this.stream.closed = true;
+
+            throw new IOException("Could not send the cancel to executor %s".formatted(executor), e);
+        }
+
+        return true;
+    }
+
+    /**
+     * Completions are pushed on the stream, so there is no need to poll
+     */
+    @Override
+    public Optional<Set<String>> getRunningFunctions(String executor) {
+        return Optional.empty();
+    }
+
+    /**
+     * The executor service can't list its functions, so every function is assumed to be there
+     */
+    @Override
+    public Optional<Set<String>> getFunctions(String executor) {
+        return Optional.empty();
+    }
+
+    @Override
+    public void onCompletion(CompletionListener listener) {
+        this.completionListener = listener;
+    }
+
+    @Override
+    public void close(Duration timeout) throws InterruptedException {
+        synchronized (this) {
+            if (null != this.stream && !this.stream.closed) {
+                this.stream.closed = true;
+                this.stream.outgoing.onCompleted();
+            }
+        }
+
+        this.channel.shutdown();
+
+        if (!this.channel.awaitTermination(timeout.toNanos(), TimeUnit.NANOSECONDS)) {
+            logger.debug("Channel to executor %s did not close in time, forcing it".formatted(this.executor));
+
+            this.channel.shutdownNow();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return this.channel.authority();
+    }
+
+    /**
+     * Incoming half of a stream to the executor, with the launches that are waiting for their ack on it
+     */
+    private class ExecutorStream implements StreamObserver<ExecutorMessage> {
+        private final Map<Long, CompletableFuture<LaunchAck>> pendingAcks = new ConcurrentHashMap<>(); // by request id
+        private StreamObserver<LauncherMessage> outgoing;
+        private volatile boolean closed = false;
+
+        @Override
+        public void onNext(ExecutorMessage message) {
+            switch (message.getMessageCase()) {
+                case ACK -> {
+                    CompletableFuture<LaunchAck> ack = this.pendingAcks.get(message.getAck().getRequestId());
+
+                    if (null != ack) {
+                        ack.complete(message.getAck());
+                    } else {
+                        logger.debug("Received ack for unknown launch %d".formatted(message.getAck().getRequestId()));
+                    }
+                }
+                case STATUS -> {
+                    FunctionStatus status = message.getStatus();
+
+                    logger.debug("Function run %s on %s is %s: %s".formatted(
+                            status.getRuntimeId(),
+                            GrpcExecutorTransport.this.executor,
+                            status.getState(),
+                            status.getDescription()
+                    ));
+
+                    if (FunctionState.FUNCTION_STATE_COMPLETED == status.getState()
+                            || FunctionState.FUNCTION_STATE_FAILED == status.getState()
+                            || FunctionState.FUNCTION_STATE_CANCELLED == status.getState()) {
+                        GrpcExecutorTransport.this.completionListener.completed(
+                                GrpcExecutorTransport.this.executor,
+                                status.getRuntimeId(),
+                                FunctionState.FUNCTION_STATE_COMPLETED == status.getState()
+                        );
+                    }
+                }
+                default -> logger.debug("Ignoring empty message from executor %s".formatted(GrpcExecutorTransport.this.executor));
+            }
+        }
+
+        @Override
+        public void onError(Throwable cause) {
+            logger.error("Stream to executor %s closed: %s".formatted(GrpcExecutorTransport.this.executor, cause.getMessage()));
+
+            this.close(cause);
+        }
+
+        @Override
+        public void onCompleted() {
+            logger.debug("Stream to executor %s completed".formatted(GrpcExecutorTransport.this.executor));
+
+            this.close(new IllegalStateException("Executor %s closed the stream".formatted(GrpcExecutorTransport.this.executor)));
+        }
+
+        private void close(Throwable cause) {
+            this.closed = true;
+
+            this.pendingAcks.values().forEach(ack -> ack.completeExceptionally(cause));
+        }
+    }
+}
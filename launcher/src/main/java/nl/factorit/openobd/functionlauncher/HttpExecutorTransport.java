@@ -0,0 +1,236 @@
+package nl.factorit.openobd.functionlauncher;
+
+import io.grpc.Deadline;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Launches functions with a HTTP request per launch on the executor's API (see the Python executor). Connections are
+ * reused through the JVM's keep-alive pool
+ */
+public class HttpExecutorTransport implements ExecutorTransport {
+    private static final Duration MINIMUM_TIMEOUT = Duration.ofMillis(250);
+    private static final Logger logger = Logger.getLogger("HttpExecutorTransport");
+
+    private final String executorHost;
+    private final ExecutorHttpApi api = new ExecutorHttpApi(this::probe);
+    private final Map<String, Timeouts> timeouts = new ConcurrentHashMap<>(); // by executor
+
+    /**
+     * @param executorHost The host all executors are reached on, the executor is the first part of the path
+     */
+    public HttpExecutorTransport(String executorHost) {
+        this.executorHost = executorHost;
+    }
+
+    /**
+     * The connect and read timeouts follow the response times of the executor (see AdaptiveTimeout), but never run past
+     * the deadline of the call
+     */
+    @Override
+    public ExecutorClient.FunctionResponse startFunction(ExecutorClient.FunctionAndSessionInfo functionAndSessionInfo, Deadline deadline) throws ExecutorClient.FunctionNotStartedException, ExecutorClient.FunctionStartedWithException {
+        logger.debug("Starting function %s on %s:%s".formatted(
+                functionAndSessionInfo.function().id,
+                functionAndSessionInfo.getFunctionExecutor(),
+                functionAndSessionInfo.getRuntimeId()
+        ));
+
+        return this.api.launch(functionAndSessionInfo, deadline, protobuf -> this.send(functionAndSessionInfo, deadline, protobuf));
+    }
+
+    private ChannelHttpClient.Response send(ExecutorClient.FunctionAndSessionInfo functionAndSessionInfo, Deadline deadline, boolean protobuf) {
+        HttpURLConnection executorConnection;
+        OutputStream output;
+        Timeouts timeouts = this.timeouts.computeIfAbsent(functionAndSessionInfo.getFunctionExecutor(), Timeouts::new);
+        boolean connectTimeoutIsAdaptive = timeouts.connect.isShorterThan(deadline);
+        boolean readTimeoutIsAdaptive = timeouts.read.isShorterThan(deadline);
+
+        try {
+            // The actual URL is constructed like: <HOST>/<PATH>/function/<FUNCTION_ID>,
+            // for example: ptc-internal-pdflatex-service-401.acc.jifeline.cloud/python/function/36af611a-832e-40dd-9946-a5dd24b4c0b9
+            // The given payload should contain the session the function should be executed for
+            URL url = new URL(
+                String.join("/",
+                    this.executorHost,
+                    functionAndSessionInfo.getFunctionExecutor(),
+                    "function",
+                    functionAndSessionInfo.function().id
+                )
+            );
+
+            executorConnection = (HttpURLConnection) url.openConnection();
+            executorConnection.setReadTimeout(toMillis(timeouts.read.get(deadline)));
+            executorConnection.setConnectTimeout(toMillis(timeouts.connect.get(deadline)));
+            executorConnection.setDoInput(true);
+            executorConnection.setDoOutput(true);
+
+            executorConnection.setRequestMethod("POST");
+            executorConnection.setRequestProperty("RuntimeId", functionAndSessionInfo.getRuntimeId());
+            executorConnection.setRequestProperty("Idempotency-Key", functionAndSessionInfo.idempotencyKey());
+
+            if (protobuf) {
+                // The size is known up front, so the body is streamed instead of buffered first
+                executorConnection.setRequestProperty("Content-Type", ExecutorClient.PROTOBUF_CONTENT_TYPE);
+                executorConnection.setFixedLengthStreamingMode(functionAndSessionInfo.getProtobufSize());
+            } else {
+                executorConnection.setRequestProperty("Content-Type", ExecutorClient.JSON_CONTENT_TYPE);
+            }
+
+            // Connected explicitly to measure it, a connection reused from the keep-alive pool takes no time at all
+            long connectStart = System.nanoTime();
+            executorConnection.connect();
+            timeouts.connect.record(Duration.ofNanos(System.nanoTime() - connectStart));
+
+            output = executorConnection.getOutputStream();
+        } catch (SocketTimeoutException e) {
+            if (connectTimeoutIsAdaptive) {
+                timeouts.connect.recordTimeout();
+            }
+
+            throw new ExecutorClient.ExecutorUnreachableException(e);
+        } catch (IOException e) {
+            throw new ExecutorClient.ExecutorUnreachableException(e);
+        }
+
+        long requestStart = System.nanoTime();
+
+        try {
+            if (protobuf) {
+                functionAndSessionInfo.writeProtobuf(output);
+            } else {
+                output.write(functionAndSessionInfo.toRequest().toJson().getBytes(StandardCharsets.UTF_8));
+            }
+
+            output.close();
+
+            int status = executorConnection.getResponseCode();
+            byte[] body = readResponse(executorConnection, status);
+
+            if (status < 400) {
+                timeouts.read.record(Duration.ofNanos(System.nanoTime() - requestStart));
+            }
+
+            return new ChannelHttpClient.Response(status, body);
+        } catch (SocketTimeoutException e) {
+            if (readTimeoutIsAdaptive) {
+                timeouts.read.recordTimeout();
+            }
+
+            throw new ExecutorClient.FunctionStartedWithException(e);
+        } catch (IOException e) {
+            throw new ExecutorClient.FunctionStartedWithException(e);
+        }
+    }
+
+    /**
+     * Calls the health route of an executor, which also leaves an open connection to it in the JVM's keep-alive pool
+     */
+    @Override
+    public boolean probe(String executor) {
+        try {
+            return this.api.probed(executor, this.request("GET", executor));
+        } catch (IOException e) {
+            logger.debug("Executor %s could not be probed: %s".formatted(executor, e.getMessage()));
+
+            return false;
+        }
+    }
+
+    /**
+     * Deletes the function from the executor's running functions, which terminates it
+     */
+    @Override
+    public boolean cancelFunction(String executor, String runtimeId, String reason) throws IOException {
+        logger.debug("Cancelling function run %s on %s: %s".formatted(runtimeId, executor, reason));
+
+        return ExecutorHttpApi.cancelled(executor, runtimeId, this.request("DELETE", executor, "running_functions", runtimeId).status());
+    }
+
+    /**
+     * A single request for all functions running on the executor, on its running_functions route
+     */
+    @Override
+    public Optional<Set<String>> getRunningFunctions(String executor) throws IOException {
+        return ExecutorHttpApi.listed(executor, "running_functions", this.request("GET", executor, "running_functions"));
+    }
+
+    /**
+     * The functions the executor extracted, on its functions route
+     */
+    @Override
+    public Optional<Set<String>> getFunctions(String executor) throws IOException {
+        return ExecutorHttpApi.listed(executor, "functions", this.request("GET", executor, "functions"));
+    }
+
+    /**
+     * Sends a request without a body
+     *
+     * @param path The parts of the path, i.e. "python", "functions"
+     */
+    private ChannelHttpClient.Response request(String method, String... path) throws IOException {
+        HttpURLConnection executorConnection = (HttpURLConnection) new URL(this.executorHost + "/" + String.join("/", path)).openConnection();
+        executorConnection.setReadTimeout(ExecutorClient.EXECUTOR_HTTP_TIMEOUT);
+        executorConnection.setConnectTimeout(ExecutorClient.EXECUTOR_HTTP_TIMEOUT);
+        executorConnection.setRequestMethod(method);
+
+        int status = executorConnection.getResponseCode();
+
+        return new ChannelHttpClient.Response(status, readResponse(executorConnection, status));
+    }
+
+    /**
+     * Reads the full response, otherwise the connection can't be reused. Closing it (instead of disconnecting) hands
+     * the connection back to the JVM's keep-alive pool, so all clusters reuse the same executor connections
+     */
+    private static byte[] readResponse(HttpURLConnection executorConnection, int status) throws IOException {
+        try (InputStream input = status < 400 ? executorConnection.getInputStream() : executorConnection.getErrorStream()) {
+            return null != input ? input.readAllBytes() : new byte[0];
+        }
+    }
+
+    @Override
+    public void onCompletion(CompletionListener listener) {
+        // The HTTP API can't push completions, the registry polls getRunningFunctions instead
+    }
+
+    /**
+     * @return The timeout in milliseconds, as HttpURLConnection takes it (where 0 means no timeout at all)
+     */
+    private static int toMillis(Duration timeout) {
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, timeout.toMillis()));
+    }
+
+    @Override
+    public void close(Duration timeout) {
+        // Idle keep-alive connections are closed by the JVM
+    }
+
+    @Override
+    public String toString() {
+        return this.executorHost;
+    }
+
+    /**
+     * The timeouts of requests to a single executor
+     */
+    private static class Timeouts {
+        private final AdaptiveTimeout connect;
+        private final AdaptiveTimeout read;
+
+        private Timeouts(String executor) {
+            this.connect = new AdaptiveTimeout("Connect to %s".formatted(executor), MINIMUM_TIMEOUT, Duration.ofMillis(ExecutorClient.EXECUTOR_HTTP_TIMEOUT));
+            this.read = new AdaptiveTimeout("Read from %s".formatted(executor), MINIMUM_TIMEOUT, Duration.ofMillis(ExecutorClient.EXECUTOR_HTTP_TIMEOUT));
+        }
+    }
+}
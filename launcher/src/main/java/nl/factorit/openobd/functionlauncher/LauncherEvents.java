@@ -0,0 +1,258 @@
+package nl.factorit.openobd.functionlauncher;
+
+import jdk.jfr.Category;
+import jdk.jfr.Configuration;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * JDK Flight Recorder events of the Function Launcher, so it can be profiled in production without a metrics stack. The
+ * events only cost something while a recording is running, which can be started with the process by setting
+ * FLIGHT_RECORDING (see startRecording), or at any time with `jcmd <pid> JFR.start`.
+ *
+ * The events are cheap enough to stay enabled under full load: none of them records a stack trace, the events sent for
+ * every message or call only hold a few fields, and the messages sent are only recorded when they are slow (their
+ * threshold can be lowered in the settings of a recording, i.e. `nl.factorit.openobd.BrokerMessageSent#threshold=0 ms`).
+ */
+public final class LauncherEvents {
+    private static final String DEFAULT_SETTINGS = "default";
+    private static final Duration DEFAULT_MAX_AGE = Duration.ofHours(6);
+    private static final long MAX_SIZE = 512L * 1024 * 1024;
+    private static final Logger logger = Logger.getLogger("LauncherEvents");
+    private static final List<Class<? extends Event>> EVENTS = List.of(
+            BrokerMessageReceived.class,
+            BrokerMessageSent.class,
+            ExecutorLaunch.class,
+            RegistrationSent.class,
+            RegistrationAcked.class,
+            ClusterPhase.class,
+            TokenRefresh.class
+    );
+
+    private LauncherEvents() {
+    }
+
+    /**
+     * Starts a recording to the file in FLIGHT_RECORDING, with the JDK's own events of the settings in
+     * FLIGHT_RECORDING_SETTINGS ("default", which is made to stay on in production, or "profile") and all events of the
+     * launcher. Only the last FLIGHT_RECORDING_MAX_AGE (in minutes, default 360) minutes and at most 512 MB are kept.
+     * The recording is written to the file when it is stopped (see Server), and can be dumped while it runs with
+     * `jcmd <pid> JFR.dump name=function_launcher`
+     *
+     * @return The recording, empty when FLIGHT_RECORDING is not set or the Flight Recorder is not available (i.e. in a
+     * native image built without it)
+     */
+    public static Optional<Recording> startRecording() {
+        String destination = System.getenv("FLIGHT_RECORDING");
+        if (null == destination) {
+            return Optional.empty();
+        }
+
+        if (!FlightRecorder.isAvailable()) {
+            logger.error("Not recording to %s, the Flight Recorder is not available".formatted(destination));
+
+            return Optional.empty();
+        }
+
+        String settings = null != System.getenv("FLIGHT_RECORDING_SETTINGS")
+                ? System.getenv("FLIGHT_RECORDING_SETTINGS")
+                : DEFAULT_SETTINGS;
+
+        Duration maxAge;
+        try {
+            maxAge = Duration.ofMinutes(Math.max(1, Integer.parseInt(System.getenv("FLIGHT_RECORDING_MAX_AGE"))));
+        } catch (NumberFormatException e) {
+            maxAge = DEFAULT_MAX_AGE;
+        }
+
+        try {
+            Recording recording = new Recording(Configuration.getConfiguration(settings));
+            recording.setName("function_launcher");
+            recording.setToDisk(true);
+            recording.setMaxAge(maxAge);
+            recording.setMaxSize(MAX_SIZE);
+            recording.setDestination(Path.of(destination));
+
+            for (Class<? extends Event> event : EVENTS) {
+                recording.enable(event);
+            }
+
+            recording.start();
+
+            logger.info("Recording to %s, with the %s settings".formatted(destination, settings));
+
+            return Optional.of(recording);
+        } catch (IOException | ParseException | IllegalStateException | SecurityException e) {
+            logger.error("Could not start recording to %s: %s".formatted(destination, e.getMessage()));
+
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Stops the recording, which writes it to its destination. The JVM stops (and writes) it as well when it exits, in
+     * its own shutdown hook, so the end of the drain might be missing when that one was first
+     */
+    public static void stopRecording(Recording recording) {
+        try {
+            if (RecordingState.RUNNING == recording.getState()) {
+                recording.stop();
+            }
+
+            logger.info("Recorded to %s".formatted(recording.getDestination()));
+        } catch (IllegalStateException e) {
+            logger.debug("Recording was stopped by the JVM already: %s".formatted(e.getMessage()));
+        } finally {
+            recording.close();
+        }
+    }
+
+    @Name("nl.factorit.openobd.BrokerMessageReceived")
+    @Label("Broker Message Received")
+    @Description("A message received from the Function Broker, on the thread of gRPC that received it")
+    @Category({"openOBD", "Function Launcher", "Function Broker"})
+    @StackTrace(false)
+    public static class BrokerMessageReceived extends Event {
+        @Label("Stream")
+        public int stream;
+
+        @Label("Type")
+        public String type;
+
+        @Label("Data")
+        @Description("The kind of message, i.e. FUNCTION_CALL or FUNCTION_BROKER_TOKEN")
+        public String data;
+    }
+
+    @Name("nl.factorit.openobd.BrokerMessageSent")
+    @Label("Broker Message Sent")
+    @Description("A message sent to the Function Broker, from building it to writing it to its stream")
+    @Category({"openOBD", "Function Launcher", "Function Broker"})
+    @StackTrace(false)
+    @Threshold("1 ms")
+    public static class BrokerMessageSent extends Event {
+        @Label("Type")
+        public String type;
+
+        @Label("Data")
+        @Description("The kind of message, i.e. FUNCTION_CALL or FUNCTION_REGISTRATION")
+        public String data;
+
+        @Label("Size")
+        @DataAmount
+        public int size;
+    }
+
+    @Name("nl.factorit.openobd.ExecutorLaunch")
+    @Label("Executor Launch")
+    @Description("A function launched on an executor, including its retries")
+    @Category({"openOBD", "Function Launcher", "Executor"})
+    @StackTrace(false)
+    public static class ExecutorLaunch extends Event {
+        @Label("Function Id")
+        public String functionId;
+
+        @Label("Executor")
+        public String executor;
+
+        @Label("Endpoint")
+        @Description("The endpoint of the last attempt")
+        public String endpoint;
+
+        @Label("Attempts")
+        public int attempts;
+
+        @Label("Outcome")
+        @Description("started, not_found, not_started or started_with_exception")
+        public String outcome;
+    }
+
+    @Name("nl.factorit.openobd.RegistrationSent")
+    @Label("Registration Sent")
+    @Description("The registration of a function, sent on every stream of a connection")
+    @Category({"openOBD", "Function Launcher", "Function Broker"})
+    @StackTrace(false)
+    public static class RegistrationSent extends Event {
+        @Label("Function Id")
+        public String functionId;
+
+        @Label("State")
+        public String state;
+
+        @Label("Streams")
+        @Description("The streams it was sent on")
+        public int streams;
+    }
+
+    @Name("nl.factorit.openobd.RegistrationAcked")
+    @Label("Registration Acked")
+    @Description("The response of the Function Broker to the registration of a function")
+    @Category({"openOBD", "Function Launcher", "Function Broker"})
+    @StackTrace(false)
+    public static class RegistrationAcked extends Event {
+        @Label("Cluster")
+        public String cluster;
+
+        @Label("Function Id")
+        public String functionId;
+
+        @Label("State")
+        public String state;
+
+        @Label("Response")
+        public String response;
+
+        @Label("Description")
+        public String description;
+    }
+
+    @Name("nl.factorit.openobd.ClusterPhase")
+    @Label("Cluster Phase")
+    @Description("The time the connection to a cluster spent in a phase, committed when it moves to the next one")
+    @Category({"openOBD", "Function Launcher", "Function Broker"})
+    @StackTrace(false)
+    public static class ClusterPhase extends Event {
+        @Label("Cluster")
+        public String cluster;
+
+        @Label("Phase")
+        @Description("CONNECTING, AUTHENTICATING, REGISTERING, READY, BACKOFF or DRAINING")
+        public String phase;
+
+        @Label("Next Phase")
+        public String next;
+
+        @Label("Recovery Attempt")
+        @Description("The attempt to recover the lost connection, 0 when it was not lost")
+        public int attempt;
+    }
+
+    @Name("nl.factorit.openobd.TokenRefresh")
+    @Label("Token Refresh")
+    @Description("A token received from the Function Broker, with its ping")
+    @Category({"openOBD", "Function Launcher", "Function Broker"})
+    @StackTrace(false)
+    public static class TokenRefresh extends Event {
+        @Label("Cluster")
+        public String cluster;
+
+        @Label("Changed")
+        @Description("Whether it differs from the previous token")
+        public boolean changed;
+    }
+}
@@ -71,6 +71,13 @@ public class Logger {
         print(Level.DEBUG.label, this.context, text);
     }
 
+    /**
+     * @return Whether debug messages are printed, to skip building messages that would be thrown away
+     */
+    public boolean isDebugEnabled() {
+        return Logger.CURRENT_LOG_LEVEL.ordinal() >= Level.DEBUG.ordinal();
+    }
+
     private static void print(String level, String context, String text) {
         System.out.printf("%s | [%s] [%s]: %s%n", getTime(), level, context, text);
     }
@@ -0,0 +1,145 @@
+package nl.factorit.openobd.functionlauncher;
+
+import java.util.Map;
+import java.util.StringJoiner;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Simple set of named counters and histograms, which can safely be updated from multiple threads and will be
+ * periodically logged by the Function Launcher
+ */
+public class Metrics {
+    private final String name;
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+
+    /**
+     * @param name Name of the set of counters (i.e. the cluster they are kept for)
+     */
+    public Metrics(String name) {
+        this.name = name;
+    }
+
+    public void increment(String counter) {
+        this.add(counter, 1);
+    }
+
+    public void add(String counter, long amount) {
+        this.counters.computeIfAbsent(counter, key -> new LongAdder()).add(amount);
+    }
+
+    public long get(String counter) {
+        LongAdder value = this.counters.get(counter);
+
+        return null == value ? 0 : value.sum();
+    }
+
+    /**
+     * Records a value (i.e. a duration in milliseconds) in the histogram with the given name
+     */
+    public void record(String histogram, long value) {
+        this.histograms.computeIfAbsent(histogram, key -> new Histogram()).record(value);
+    }
+
+    public Histogram getHistogram(String histogram) {
+        return this.histograms.computeIfAbsent(histogram, key -> new Histogram());
+    }
+
+    /**
+     * @return All counters and histograms (sorted by name) with their current values
+     */
+    public String toString() {
+        StringJoiner values = new StringJoiner(", ", "%s: ".formatted(this.name), "");
+        values.setEmptyValue("%s: no metrics yet".formatted(this.name));
+
+        new TreeMap<>(this.counters).forEach((counter, value) -> values.add("%s=%d".formatted(counter, value.sum())));
+        new TreeMap<>(this.histograms).forEach((histogram, value) -> values.add("%s=%s".formatted(histogram, value)));
+
+        return values.toString();
+    }
+
+    /**
+     * Histogram of non-negative values with a fixed amount of buckets: exact below 16, above that every power of two is
+     * divided in 8 buckets, so a percentile is off by at most 12.5%
+     */
+    public static class Histogram {
+        private static final int EXACT_BUCKETS = 16;
+        private static final int SUB_BUCKET_BITS = 3;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(EXACT_BUCKETS + (Long.SIZE - 4) * (1 << SUB_BUCKET_BITS));
+        private final LongAdder count = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        public void record(long value) {
+            value = Math.max(0, value);
+
+            this.buckets.incrementAndGet(bucketOf(value));
+            this.count.increment();
+            this.max.accumulate(value);
+        }
+
+        public long getCount() {
+            return this.count.sum();
+        }
+
+        /**
+         * @param percentile Percentile to return, between 0 and 100
+         * @return The (upper bound of the bucket of the) value below which the given percentile of values are
+         */
+        public long getPercentile(double percentile) {
+            long total = this.count.sum();
+            if (0 == total) {
+                return 0;
+            }
+
+            long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+            long seen = 0;
+            for (int bucket = 0; bucket < this.buckets.length(); bucket++) {
+                seen += this.buckets.get(bucket);
+
+                if (rank <= seen) {
+                    return Math.min(upperBoundOf(bucket), this.max.get());
+                }
+            }
+
+            return this.max.get();
+        }
+
+        private static int bucketOf(long value) {
+            if (value < EXACT_BUCKETS) {
+                return (int) value;
+            }
+
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & ((1 << SUB_BUCKET_BITS) - 1);
+
+            return EXACT_BUCKETS + (exponent - 4) * (1 << SUB_BUCKET_BITS) + subBucket;
+        }
+
+        private static long upperBoundOf(int bucket) {
+            if (bucket < EXACT_BUCKETS) {
+                return bucket;
+            }
+
+            int exponent = (bucket - EXACT_BUCKETS) / (1 << SUB_BUCKET_BITS) + 4;
+            int subBucket = (bucket - EXACT_BUCKETS) % (1 << SUB_BUCKET_BITS);
+            long lowerBound = (long) ((1 << SUB_BUCKET_BITS) + subBucket) << (exponent - SUB_BUCKET_BITS);
+
+            return lowerBound + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+        }
+
+        public String toString() {
+            return "[count=%d p50=%d p90=%d p99=%d max=%d]".formatted(
+                    this.getCount(),
+                    this.getPercentile(50),
+                    this.getPercentile(90),
+                    this.getPercentile(99),
+                    this.max.get()
+            );
+        }
+    }
+}
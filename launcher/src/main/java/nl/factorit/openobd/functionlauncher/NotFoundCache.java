@@ -0,0 +1,54 @@
+package nl.factorit.openobd.functionlauncher;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers for a short while which functions their executor did not have, so calls for them fail without another
+ * request to the executor. A function is forgotten when it expires, or when the executor lists it again (see
+ * ExecutorClient.reconcile).
+ */
+public class NotFoundCache {
+    private final long ttl; // in nanoseconds, 0 when disabled
+    private final Map<String, Long> expiries = new ConcurrentHashMap<>(); // by function id, in System.nanoTime()
+
+    /**
+     * @param ttl How long a function is remembered, zero to not remember functions at all
+     */
+    public NotFoundCache(Duration ttl) {
+        this.ttl = Math.max(0, ttl.toNanos());
+    }
+
+    /**
+     * @param functionId The function the executor responded not to have
+     */
+    public void add(String functionId) {
+        if (0 != this.ttl) {
+            this.expiries.put(functionId, System.nanoTime() + this.ttl);
+        }
+    }
+
+    /**
+     * @return Whether the executor did not have the function a moment ago, an expired function is forgotten
+     */
+    public boolean contains(String functionId) {
+        Long expiry = this.expiries.get(functionId);
+
+        if (null == expiry) {
+            return false;
+        }
+
+        if (0 <= System.nanoTime() - expiry) {
+            this.expiries.remove(functionId, expiry);
+
+            return false;
+        }
+
+        return true;
+    }
+
+    public void remove(String functionId) {
+        this.expiries.remove(functionId);
+    }
+}
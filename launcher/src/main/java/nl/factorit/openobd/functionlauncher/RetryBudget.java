@@ -0,0 +1,56 @@
+package nl.factorit.openobd.functionlauncher;
+
+import java.time.Duration;
+
+/**
+ * Limits the retries to a fraction of the requests, so retries can't multiply the load on executors that are already
+ * failing. Every request deposits a fraction of a token and every retry takes a whole token, the budget starts (and is
+ * capped) at a fixed amount of tokens to allow a burst of retries.
+ */
+public class RetryBudget {
+    private static final Duration BASE_BACKOFF = Duration.ofMillis(25);
+    private static final Duration MAX_BACKOFF = Duration.ofSeconds(1);
+
+    private final double ratio;
+    private final double maxTokens;
+    private double tokens;
+
+    /**
+     * @param ratio The fraction of the requests that can be retried, i.e. 0.1 for 10%
+     * @param maxTokens The amount of retries that can be done in a burst
+     */
+    public RetryBudget(double ratio, int maxTokens) {
+        this.ratio = ratio;
+        this.maxTokens = maxTokens;
+        this.tokens = maxTokens;
+    }
+
+    /**
+     * Should be called for every request (not for its retries)
+     */
+    public synchronized void deposit() {
+        this.tokens = Math.min(this.maxTokens, this.tokens + this.ratio);
+    }
+
+    /**
+     * @return Whether a retry may be done, the token is taken when it may
+     */
+    public synchronized boolean tryWithdraw() {
+        if (this.tokens < 1) {
+            return false;
+        }
+
+        this.tokens--;
+
+        return true;
+    }
+
+    /**
+     * @param retry The number of the retry, starting at 1
+     * @return The time to wait before the retry: exponential, with full jitter so retries of calls that failed at the
+     * same moment are spread out
+     */
+    public static Duration backoff(int retry) {
+        return Backoff.fullJitter(retry, BASE_BACKOFF, MAX_BACKOFF);
+    }
+}
@@ -1,64 +1,248 @@
 package nl.factorit.openobd.functionlauncher;
 
+import jdk.jfr.Recording;
+
+import java.io.IOException;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.*;
 
 import java.time.Duration;
 
 /**
- * Manages the Function Launcher thread, main entry to the application
+ * Manages the Function Launcher thread, main entry to the application.
+ *
+ * When the Function Launcher fails (i.e. a cluster could not be recovered) it is rebuilt in-process, keeping the parsed
+ * catalog, the executor connections and the JIT compiled code (see FunctionLauncher.Resources). Only when it keeps
+ * failing, MAX_IN_PROCESS_RESTARTS (default 3) times without running for RESTART_RESET_AFTER in between, the process
+ * exits so it is restarted from scratch.
  */
 public class Server {
     public static final int MAX_ITERATIONS = 10;
     public static final Duration SLEEP_TIME_IN_SECONDS = Duration.ofSeconds(1);
+    // Maximum wait between two attempts, the waits are random up to an exponentially growing maximum
+    public static final Duration MAX_BACKOFF = Duration.ofSeconds(30);
+    // Stays below the 10 seconds Docker waits after asking a container to stop, before killing it
+    public static final Duration DRAIN_TIMEOUT = Duration.ofSeconds(8);
+    private static final int DEFAULT_MAX_IN_PROCESS_RESTARTS = 3;
+    // A launcher that ran this long is considered healthy, its failure does not count towards the maximum restarts
+    private static final Duration RESTART_RESET_AFTER = Duration.ofMinutes(10);
 
     private static final Logger logger = Logger.getLogger("Server");
 
+    // Held while a launcher is created and while the shutdown hook drains it, so no launcher is created unnoticed
+    private static final ReentrantLock LIFECYCLE = new ReentrantLock();
+    // Guards shuttingDown and creator, so the shutdown hook only interrupts the creation of a launcher
+    private static final Object CREATION = new Object();
+
+    private static volatile FunctionLauncher launcher = null; // replaced while holding LIFECYCLE
+    private static volatile boolean shuttingDown = false;
+    private static volatile long shutdownDeadline = 0; // System.nanoTime() the drain must be done by
+    private static Thread creator = null; // creating a launcher
+
     /**
      * Start the Function Launcher and register a Shutdown hook to gracefully stop it when shutting down the application
      */
     public static void main(String[] args) throws InterruptedException, LauncherCouldNotBeStartedException {
+        // Started first, so the startup is recorded as well
+        Optional<Recording> recording = LauncherEvents.startRecording();
+
         // Set the base loggers log level to what we want
-        FunctionLauncher launcher = createFunctionLauncher();
+        FunctionLauncher.Resources resources = createResources();
 
-        // Give the Function Launcher a bit of time to gracefully shut down, but force it should it take too long
+        // Give the Function Launcher a bit of time to gracefully drain, but force it should it take too long
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-            logger.info("Shutting down, waiting for max %s second(s)...".formatted(MAX_ITERATIONS * SLEEP_TIME_IN_SECONDS.toSeconds()));
-            launcher.requestShutdown();
+            logger.info("Shutting down, draining for max %s second(s)...".formatted(DRAIN_TIMEOUT.toSeconds()));
 
-            try {
-                for (int iteration = 0; iteration < MAX_ITERATIONS && launcher.isRunning(); iteration++) {
-                    Thread.sleep(SLEEP_TIME_IN_SECONDS.toMillis());
-                    logger.debug("Function Launcher is still running, waiting %s more time(s)...".formatted((MAX_ITERATIONS - 1) - iteration));
+            synchronized (CREATION) {
+                shutdownDeadline = System.nanoTime() + DRAIN_TIMEOUT.toNanos();
+                shuttingDown = true;
+
+                // A launcher that is being created may wait long for its clusters (i.e. authenticating), it won't be
+                // served anyway
+                if (null != creator) {
+                    creator.interrupt();
                 }
+            }
+
+            // Waits for a launcher that is being created, so it is drained before the resources it uses are closed. One
+            // that is not created in time drains itself (see createFunctionLauncher)
+            try {
+                if (LIFECYCLE.tryLock(remaining().toNanos(), TimeUnit.NANOSECONDS)) {
+                    try {
+                        FunctionLauncher current = launcher;
+                        if (null != current) {
+                            current.drain(remaining());
+                        }
 
-                if (launcher.isRunning()) {
-                    logger.error("Max wait time hit, forcing shutdown...");
+                        resources.close(remaining());
+                    } finally {
+                        LIFECYCLE.unlock();
+                    }
+                } else {
+                    logger.error("Function Launcher was not created within %d ms, not draining".formatted(DRAIN_TIMEOUT.toMillis()));
                 }
             } catch (InterruptedException e) {
-                throw new RuntimeException(e);
+                Thread.currentThread().interrupt();
             }
+
+            // Only after draining, so the drain is recorded as well
+            recording.ifPresent(LauncherEvents::stopRecording);
         }));
 
-        launcher.run();
+        int maxRestarts;
+        try {
+            maxRestarts = Integer.parseInt(System.getenv("MAX_IN_PROCESS_RESTARTS"));
+        } catch (NumberFormatException e) {
+            maxRestarts = DEFAULT_MAX_IN_PROCESS_RESTARTS;
+        }
+
+        int restarts = 0;
+        while (true) {
+            FunctionLauncher current = createFunctionLauncher(resources);
+
+            if (null == current) {
+                // The shutdown hook already drained the previous one
+                break;
+            }
+
+            long start = System.nanoTime();
+            try {
+                current.run();
+            } catch (RuntimeException e) {
+                logger.error("Function Launcher failed: %s".formatted(e.getMessage()), e);
+
+                current.fail();
+                current.drain(DRAIN_TIMEOUT);
+            }
+
+            if (shuttingDown || !current.hasFailed()) {
+                break;
+            }
+
+            // It was drained when it stopped, so the shutdown hook of System.exit doesn't drain it again
+            LIFECYCLE.lock();
+            try {
+                launcher = null;
+            } finally {
+                LIFECYCLE.unlock();
+            }
+
+            if (0 < RESTART_RESET_AFTER.compareTo(Duration.ofNanos(System.nanoTime() - start))) {
+                restarts++;
+            } else {
+                restarts = 1;
+            }
+
+            if (maxRestarts < restarts) {
+                logger.error("Function Launcher failed %d time(s) in a row, exiting".formatted(restarts));
+
+                System.exit(1);
+            }
+
+            Duration backoff = Backoff.fullJitter(restarts, SLEEP_TIME_IN_SECONDS, MAX_BACKOFF);
+
+            logger.info("Restarting the Function Launcher in-process in %d ms (%d/%d)".formatted(backoff.toMillis(), restarts, maxRestarts));
+
+            Thread.sleep(backoff.toMillis());
+        }
 
         logger.info("Done...");
     }
 
     /**
-     * Tries to create the Function Launcher, retrying should it fail
+     * Tries to create the parts of the Function Launcher that are kept over in-process restarts, retrying should it fail
      *
-     * @return Fully initialized Function Launcher
+     * @return The resources for every Function Launcher
      */
-    private static FunctionLauncher createFunctionLauncher() throws InterruptedException, LauncherCouldNotBeStartedException {
+    private static FunctionLauncher.Resources createResources() throws InterruptedException, LauncherCouldNotBeStartedException {
+        return withRetries(FunctionLauncher.Resources::new);
+    }
+
+    /**
+     * Tries to create the Function Launcher, retrying should it fail. Every attempt holds LIFECYCLE, so the shutdown
+     * hook either waits for it and drains the new launcher, or ran before and no launcher is created at all. An attempt
+     * is interrupted by the shutdown hook, a launcher that is created during the shutdown drains itself
+     *
+     * @return Fully initialized Function Launcher, null when the application is shutting down
+     */
+    private static FunctionLauncher createFunctionLauncher(FunctionLauncher.Resources resources) throws InterruptedException, LauncherCouldNotBeStartedException {
+        return withRetries(() -> {
+            LIFECYCLE.lock();
+            try {
+                synchronized (CREATION) {
+                    if (shuttingDown) {
+                        return null;
+                    }
+
+                    creator = Thread.currentThread();
+                }
+
+                FunctionLauncher created;
+                try {
+                    created = new FunctionLauncher(resources);
+                } catch (RuntimeException e) {
+                    if (stopCreating()) {
+                        logger.info("Stopped creating the Function Launcher, shutting down");
+
+                        return null;
+                    }
+
+                    throw e;
+                }
+
+                if (stopCreating()) {
+                    // The shutdown hook might have stopped waiting for it
+                    created.drain(remaining());
+
+                    return null;
+                }
+
+                launcher = created;
+
+                return launcher;
+            } finally {
+                LIFECYCLE.unlock();
+            }
+        });
+    }
+
+    /**
+     * Ends the creation of a launcher, after which the shutdown hook no longer interrupts it
+     *
+     * @return Whether the application is shutting down
+     */
+    private static boolean stopCreating() {
+        synchronized (CREATION) {
+            creator = null;
+
+            if (shuttingDown) {
+                // Interrupted by the shutdown hook, the launcher is stopped either way
+                Thread.interrupted();
+            }
+
+            return shuttingDown;
+        }
+    }
+
+    /**
+     * @return The time left to drain in, since the application started shutting down
+     */
+    private static Duration remaining() {
+        return Duration.ofNanos(Math.max(0, shutdownDeadline - System.nanoTime()));
+    }
+
+    private static <T> T withRetries(Creation<T> creation) throws InterruptedException, LauncherCouldNotBeStartedException {
         Exception latestError = null;
 
         for (int currentTry = 0; currentTry < MAX_ITERATIONS; currentTry++) {
             try {
-                return new FunctionLauncher();
+                return creation.create();
             } catch (Exception e) {
-                logger.error("Could not create Function Launcher (%s), trying %s more time(s)".formatted(e.getClass(), (MAX_ITERATIONS - currentTry)));
+                logger.error("Could not create Function Launcher (%s: %s), trying %s more time(s)".formatted(e.getClass(), e.getMessage(), (MAX_ITERATIONS - currentTry)));
 
-                Thread.sleep((currentTry + 1) * SLEEP_TIME_IN_SECONDS.toMillis()); // Incremental backoff
+                Thread.sleep(Backoff.fullJitter(currentTry + 1, SLEEP_TIME_IN_SECONDS, MAX_BACKOFF).toMillis());
 
                 latestError = e;
             }
@@ -67,6 +251,10 @@ public class Server {
         throw new LauncherCouldNotBeStartedException(latestError);
     }
 
+    private interface Creation<T> {
+        T create() throws IOException;
+    }
+
     public static class LauncherCouldNotBeStartedException extends Throwable {
         public LauncherCouldNotBeStartedException(Throwable cause) {
             super("Function Launcher could not be started due to a %s: %s".formatted(cause.getClass(), cause.getMessage()), cause);
@@ -0,0 +1,330 @@
+package nl.factorit.openobd.functionlauncher;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.*;
+
+/**
+ * Decides which part of the function catalog this Function Launcher registers, so multiple launcher replicas can
+ * divide the catalog between them. Every function id is mapped on a consistent hash ring of the live replicas, so when
+ * a replica joins or leaves only the functions of that replica move.
+ *
+ * Sharding is configured with SHARD_COUNT (the amount of replicas) and either SHARD_INDEX (a static index of this
+ * replica) or SHARD_LOCK_DIRECTORY (a directory shared by all replicas, in which every replica claims a slot by
+ * locking a file). Without a SHARD_COUNT every function is registered.
+ */
+public abstract class ShardCoordinator {
+    private static final Logger logger = Logger.getLogger("ShardCoordinator");
+
+    // The slot is claimed by the process, so it is kept when a Function Launcher has to be created again
+    private static ShardCoordinator instance;
+
+    // Index of the slot claimed by this replica
+    protected int self;
+    private Ring ring;
+
+    /**
+     * @return The replicas that are currently alive, including this one
+     */
+    protected abstract Set<Integer> findMembers();
+
+    /**
+     * Releases the claimed slot, so another replica can take over
+     */
+    public void release() {
+        synchronized (ShardCoordinator.class) {
+            instance = null;
+        }
+    }
+
+    /**
+     * @param functionId Id of the function as known by the Function Broker
+     * @return Whether this replica should register the given function
+     */
+    public synchronized boolean owns(String functionId) {
+        return this.self == this.ring.ownerOf(functionId);
+    }
+
+    /**
+     * Checks which replicas are alive and recalculates the hash ring should that have changed
+     *
+     * @return Whether the members changed, meaning this replica could own different functions
+     */
+    public synchronized boolean refresh() {
+        Set<Integer> members = this.findMembers();
+
+        if (null != this.ring && this.ring.members.equals(members)) {
+            return false;
+        }
+
+        logger.info("Replica %d now shares the function catalog with replicas %s".formatted(this.self, members));
+
+        this.ring = new Ring(members);
+
+        return true;
+    }
+
+    /**
+     * Creates the coordinator as configured in the environment, or returns the one that was already created for this
+     * process
+     *
+     * @return A coordinator, which owns every function if sharding is not configured
+     * @throws IOException Thrown when the lock directory could not be used
+     * @throws IllegalArgumentException Thrown when sharding is configured incompletely, naming the variable
+     */
+    public static synchronized ShardCoordinator fromEnvironment() throws IOException {
+        if (null != instance) {
+            return instance;
+        }
+
+        String shardCount = System.getenv("SHARD_COUNT");
+        String shardIndex = System.getenv("SHARD_INDEX");
+        String lockDirectory = System.getenv("SHARD_LOCK_DIRECTORY");
+
+        ShardCoordinator coordinator;
+        if (null == shardCount) {
+            coordinator = new Static(0, 1);
+        } else if (null != lockDirectory) {
+            coordinator = new Locked(Path.of(lockDirectory), parseVariable("SHARD_COUNT", shardCount));
+        } else if (null != shardIndex) {
+            coordinator = new Static(parseVariable("SHARD_INDEX", shardIndex), parseVariable("SHARD_COUNT", shardCount));
+        } else {
+            throw new IllegalArgumentException("SHARD_COUNT is set, but neither SHARD_INDEX nor SHARD_LOCK_DIRECTORY is");
+        }
+
+        coordinator.refresh();
+
+        instance = coordinator;
+
+        return coordinator;
+    }
+
+    private static int parseVariable(String variable, String value) {
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("%s should be a number, not '%s'".formatted(variable, value), e);
+        }
+    }
+
+    /**
+     * Replica with a fixed index out of a fixed amount of replicas, all replicas are assumed to be alive (i.e. a
+     * StatefulSet). A replica that goes down will have its functions offline until it is restarted
+     */
+    static class Static extends ShardCoordinator {
+        private final Set<Integer> members = new TreeSet<>();
+
+        Static(int index, int count) {
+            if (index < 0 || count <= index) {
+                throw new IllegalArgumentException("Shard index %d is not within the shard count %d".formatted(index, count));
+            }
+
+            this.self = index;
+
+            for (int member = 0; member < count; member++) {
+                this.members.add(member);
+            }
+        }
+
+        @Override
+        protected Set<Integer> findMembers() {
+            return this.members;
+        }
+    }
+
+    /**
+     * Replica that claims a slot by locking a file in a directory shared by all replicas (i.e. on the same host).
+     * Locks are released by the OS when a replica dies, so the other replicas take over its functions on their next
+     * refresh
+     *
+     * A replica finds the others by trying to lock their slots, so for a moment it holds the lock of a free slot
+     * itself. Another replica probing (or claiming) that slot at the same moment finds it locked. So a slot is only
+     * taken as alive when it is still locked after PROBE_ATTEMPTS probes, and a replica that finds every slot locked
+     * tries again before it gives up. A replica starting while a free slot is probed might claim a later free slot,
+     * which doesn't matter as long as there is one.
+     */
+    static class Locked extends ShardCoordinator {
+        private static final int PROBE_ATTEMPTS = 3;
+        private static final Duration PROBE_PAUSE = Duration.ofMillis(10); // A probe only holds a lock for microseconds
+
+        private final Path directory;
+        private final int count;
+        private final FileChannel slotChannel;
+        private final FileLock slotLock;
+
+        Locked(Path directory, int count) throws IOException {
+            this.directory = directory;
+            this.count = count;
+
+            Files.createDirectories(directory);
+
+            FileChannel channel = null;
+            FileLock lock = null;
+            for (int attempt = 0; attempt < PROBE_ATTEMPTS && null == lock; attempt++) {
+                if (0 < attempt && !pause()) {
+                    break;
+                }
+
+                for (int slot = 0; slot < count && null == lock; slot++) {
+                    channel = this.openSlot(slot);
+                    lock = tryLock(channel);
+
+                    if (null == lock) {
+                        channel.close();
+                    } else {
+                        this.self = slot;
+                    }
+                }
+            }
+
+            if (null == lock) {
+                throw new IOException("All %d shard slots in %s are already claimed".formatted(count, directory));
+            }
+
+            this.slotChannel = channel;
+            this.slotLock = lock;
+
+            logger.info("Claimed shard slot %d of %d in %s".formatted(this.self, count, directory));
+        }
+
+        private FileChannel openSlot(int slot) throws IOException {
+            return FileChannel.open(
+                    this.directory.resolve("slot-%d.lock".formatted(slot)),
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE
+            );
+        }
+
+        private static FileLock tryLock(FileChannel channel) throws IOException {
+            try {
+                return channel.tryLock();
+            } catch (OverlappingFileLockException e) {
+                return null; // Already locked within this JVM
+            }
+        }
+
+        /**
+         * @return Whether the pause was not interrupted
+         */
+        private static boolean pause() {
+            try {
+                Thread.sleep(PROBE_PAUSE.toMillis());
+
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+
+                return false;
+            }
+        }
+
+        @Override
+        protected Set<Integer> findMembers() {
+            Set<Integer> members = new TreeSet<>();
+            for (int slot = 0; slot < this.count; slot++) {
+                if (slot != this.self) {
+                    members.add(slot);
+                }
+            }
+
+            // Only the slots that were locked are probed again, a slot is alive when it was locked every time
+            for (int attempt = 0; attempt < PROBE_ATTEMPTS && !members.isEmpty(); attempt++) {
+                if (0 < attempt && !pause()) {
+                    break;
+                }
+
+                members.removeIf(slot -> !this.isLocked(slot));
+            }
+
+            members.add(this.self);
+
+            return members;
+        }
+
+        /**
+         * @return Whether the slot is locked by another replica (or one of its probes), a slot that could not be
+         * checked is assumed to be
+         */
+        private boolean isLocked(int slot) {
+            try (FileChannel channel = this.openSlot(slot)) {
+                FileLock lock = tryLock(channel);
+
+                if (null == lock) {
+                    return true;
+                }
+
+                lock.release();
+
+                return false;
+            } catch (IOException e) {
+                logger.error("Could not check shard slot %d, assuming it is alive".formatted(slot), e);
+
+                return true;
+            }
+        }
+
+        @Override
+        public void release() {
+            super.release();
+
+            try {
+                this.slotLock.release();
+                this.slotChannel.close();
+            } catch (IOException e) {
+                logger.error("Could not release shard slot %d".formatted(this.self), e);
+            }
+        }
+    }
+
+    /**
+     * Consistent hash ring, every member is placed on the ring multiple times to spread the functions evenly
+     */
+    private static class Ring {
+        private static final int VIRTUAL_NODES = 128;
+
+        private final Set<Integer> members;
+        private final TreeMap<Long, Integer> nodes = new TreeMap<>();
+
+        private Ring(Set<Integer> members) {
+            this.members = Set.copyOf(members);
+
+            for (int member : members) {
+                for (int node = 0; node < VIRTUAL_NODES; node++) {
+                    this.nodes.put(hash("%d#%d".formatted(member, node)), member);
+                }
+            }
+        }
+
+        private int ownerOf(String functionId) {
+            Map.Entry<Long, Integer> node = this.nodes.ceilingEntry(hash(functionId));
+
+            return null != node ? node.getValue() : this.nodes.firstEntry().getValue();
+        }
+
+        /**
+         * FNV-1a followed by the murmur3 finalizer, stable across processes (unlike identity based hashes)
+         */
+        private static long hash(String value) {
+            long hash = 0xcbf29ce484222325L;
+            for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+                hash ^= b;
+                hash *= 0x100000001b3L;
+            }
+
+            hash ^= hash >>> 33;
+            hash *= 0xff51afd7ed558ccdL;
+            hash ^= hash >>> 33;
+            hash *= 0xc4ceb9fe1a85ec53L;
+            hash ^= hash >>> 33;
+
+            return hash;
+        }
+    }
+}
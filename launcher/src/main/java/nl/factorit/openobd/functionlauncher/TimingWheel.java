@@ -0,0 +1,131 @@
+package nl.factorit.openobd.functionlauncher;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Hierarchical timing wheel, to expire large amounts of timers that are mostly cancelled before they expire (i.e. one
+ * for every running function). Scheduling and cancelling are O(1), timers are moved to a finer wheel when their
+ * slot on a coarser wheel comes up. The wheel does not keep time itself, it is advanced by calling {@link #advance}
+ *
+ * @param <T> The item a timer is kept for
+ */
+public class TimingWheel<T> {
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int LEVELS = 4;
+
+    private final long tickMillis;
+    private final List<List<Deque<Timer<T>>>> levels = new ArrayList<>();
+    private long currentTick;
+
+    /**
+     * @param tickMillis The resolution of the wheel, timers expire at most this late. With 4 levels of 64 slots the
+     *                   wheel spans 64^4 ticks, timers beyond that are rescheduled when they come up
+     * @param nowMillis The current time
+     */
+    public TimingWheel(long tickMillis, long nowMillis) {
+        this.tickMillis = tickMillis;
+        this.currentTick = nowMillis / tickMillis;
+
+        for (int level = 0; level < LEVELS; level++) {
+            List<Deque<Timer<T>>> slots = new ArrayList<>(SLOTS);
+
+            for (int slot = 0; slot < SLOTS; slot++) {
+                slots.add(new ArrayDeque<>());
+            }
+
+            this.levels.add(slots);
+        }
+    }
+
+    /**
+     * @param item The item to return once the timer expires
+     * @param expiresAtMillis The time at which the timer expires
+     * @return The timer, which can be cancelled
+     */
+    public synchronized Timer<T> schedule(T item, long expiresAtMillis) {
+        Timer<T> timer = new Timer<>(item, Math.max(this.currentTick + 1, (expiresAtMillis + this.tickMillis - 1) / this.tickMillis));
+
+        this.add(timer);
+
+        return timer;
+    }
+
+    private void add(Timer<T> timer) {
+        long ticks = timer.expiresAtTick - this.currentTick;
+
+        for (int level = 0; level < LEVELS; level++) {
+            if (ticks < 1L << (SLOT_BITS * (level + 1)) || LEVELS - 1 == level) {
+                // Timers beyond the last level are put in the furthest slot and rescheduled when it comes up
+                long tick = Math.min(timer.expiresAtTick, this.currentTick + (1L << (SLOT_BITS * LEVELS)) - 1);
+
+                this.levels.get(level).get((int) (tick >>> (SLOT_BITS * level)) & (SLOTS - 1)).add(timer);
+
+                return;
+            }
+        }
+    }
+
+    /**
+     * Moves the wheel up to the given time
+     *
+     * @param nowMillis The current time
+     * @return The items of the timers that expired, in the order they expired
+     */
+    public synchronized List<T> advance(long nowMillis) {
+        List<T> expired = new ArrayList<>();
+        long targetTick = nowMillis / this.tickMillis;
+
+        while (this.currentTick < targetTick) {
+            this.currentTick++;
+
+            // Each time a wheel has gone round, the next slot of the coarser wheel is spread over the finer wheels
+            for (int level = 1; level < LEVELS && 0 == (this.currentTick & ((1L << (SLOT_BITS * level)) - 1)); level++) {
+                Deque<Timer<T>> slot = this.levels.get(level).get((int) (this.currentTick >>> (SLOT_BITS * level)) & (SLOTS - 1));
+
+                for (Timer<T> timer = slot.poll(); null != timer; timer = slot.poll()) {
+                    if (!timer.cancelled) {
+                        this.add(timer);
+                    }
+                }
+            }
+
+            Deque<Timer<T>> slot = this.levels.get(0).get((int) this.currentTick & (SLOTS - 1));
+            for (Timer<T> timer = slot.poll(); null != timer; timer = slot.poll()) {
+                if (timer.cancelled) {
+                    continue;
+                }
+
+                if (timer.expiresAtTick <= this.currentTick) {
+                    timer.cancelled = true;
+                    expired.add(timer.item);
+                } else {
+                    this.add(timer);
+                }
+            }
+        }
+
+        return expired;
+    }
+
+    /**
+     * A scheduled timer, cancelled timers are removed from the wheel when their slot comes up
+     */
+    public static class Timer<T> {
+        private final T item;
+        private final long expiresAtTick;
+        private volatile boolean cancelled = false;
+
+        private Timer(T item, long expiresAtTick) {
+            this.item = item;
+            this.expiresAtTick = expiresAtTick;
+        }
+
+        public void cancel() {
+            this.cancelled = true;
+        }
+    }
+}
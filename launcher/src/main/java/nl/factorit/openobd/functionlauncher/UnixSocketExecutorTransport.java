@@ -0,0 +1,177 @@
+package nl.factorit.openobd.functionlauncher;
+
+import io.grpc.Deadline;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.net.UnixDomainSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Launches functions like HttpExecutorTransport, on an executor that runs next to the Function Launcher (i.e. as a
+ * sidecar) and listens on a Unix domain socket, i.e. uvicorn --uds /run/executor/executor.sock. Such an executor is
+ * configured as an endpoint in OPENOBD_EXECUTOR_HOST: unix:/run/executor/executor.sock
+ *
+ * A local socket skips the TCP stack of the loopback interface and doesn't need a port. HttpURLConnection can only
+ * connect over TCP, so the requests are sent by a ChannelHttpClient.
+ */
+public class UnixSocketExecutorTransport implements ExecutorTransport {
+    public static final String SCHEME = "unix:";
+    private static final Duration MINIMUM_TIMEOUT = Duration.ofMillis(250);
+    private static final Logger logger = Logger.getLogger("UnixSocketExecutorTransport");
+
+    private final ChannelHttpClient client;
+    private final ExecutorHttpApi api = new ExecutorHttpApi(this::probe);
+    private final Map<String, AdaptiveTimeout> timeouts = new ConcurrentHashMap<>(); // by executor
+
+    /**
+     * @param endpoint The socket of the executor, i.e. unix:/run/executor/executor.sock
+     */
+    public UnixSocketExecutorTransport(String endpoint) {
+        this(new ChannelHttpClient(UnixDomainSocketAddress.of(endpoint.substring(SCHEME.length()))));
+    }
+
+    /**
+     * @param client The client to send the requests with, which can connect to another kind of socket (i.e. to compare
+     *               it with TCP)
+     */
+    public UnixSocketExecutorTransport(ChannelHttpClient client) {
+        this.client = client;
+    }
+
+    /**
+     * The timeout follows the response times of the executor (see AdaptiveTimeout), but never runs past the deadline of
+     * the call. Connecting to a local socket doesn't wait, the executor either accepts it or it isn't there
+     */
+    @Override
+    public ExecutorClient.FunctionResponse startFunction(ExecutorClient.FunctionAndSessionInfo functionAndSessionInfo, Deadline deadline) throws ExecutorClient.FunctionNotStartedException, ExecutorClient.FunctionStartedWithException {
+        logger.debug("Starting function %s on %s:%s".formatted(
+                functionAndSessionInfo.function().id,
+                functionAndSessionInfo.getFunctionExecutor(),
+                functionAndSessionInfo.getRuntimeId()
+        ));
+
+        return this.api.launch(functionAndSessionInfo, deadline, protobuf -> this.send(functionAndSessionInfo, deadline, protobuf));
+    }
+
+    private ChannelHttpClient.Response send(ExecutorClient.FunctionAndSessionInfo functionAndSessionInfo, Deadline deadline, boolean protobuf) {
+        String executor = functionAndSessionInfo.getFunctionExecutor();
+        AdaptiveTimeout timeout = this.timeouts.computeIfAbsent(executor, name -> new AdaptiveTimeout("Read from %s".formatted(name), MINIMUM_TIMEOUT, Duration.ofMillis(ExecutorClient.EXECUTOR_HTTP_TIMEOUT)));
+        boolean timeoutIsAdaptive = timeout.isShorterThan(deadline);
+
+        byte[] body;
+        try {
+            if (protobuf) {
+                ByteArrayOutputStream output = new ByteArrayOutputStream(functionAndSessionInfo.getProtobufSize());
+                functionAndSessionInfo.writeProtobuf(output);
+                body = output.toByteArray();
+            } else {
+                body = functionAndSessionInfo.toRequest().toJson().getBytes(StandardCharsets.UTF_8);
+            }
+        } catch (IOException e) {
+            throw new ExecutorClient.FunctionNotStartedException(e);
+        }
+
+        Map<String, String> headers = Map.of(
+                "Content-Type", protobuf ? ExecutorClient.PROTOBUF_CONTENT_TYPE : ExecutorClient.JSON_CONTENT_TYPE,
+                "RuntimeId", functionAndSessionInfo.getRuntimeId(),
+                "Idempotency-Key", functionAndSessionInfo.idempotencyKey()
+        );
+
+        long requestStart = System.nanoTime();
+        ChannelHttpClient.Response response;
+
+        try {
+            response = this.client.exchange(
+                    "POST",
+                    "/%s/function/%s".formatted(executor, functionAndSessionInfo.function().id),
+                    headers,
+                    body,
+                    timeout.get(deadline)
+            );
+        } catch (ChannelHttpClient.ConnectFailedException e) {
+            throw new ExecutorClient.ExecutorUnreachableException(e);
+        } catch (SocketTimeoutException e) {
+            if (timeoutIsAdaptive) {
+                timeout.recordTimeout();
+            }
+
+            throw new ExecutorClient.FunctionStartedWithException(e);
+        } catch (IOException e) {
+            throw new ExecutorClient.FunctionStartedWithException(e);
+        }
+
+        if (response.status() < 400) {
+            timeout.record(Duration.ofNanos(System.nanoTime() - requestStart));
+        }
+
+        return response;
+    }
+
+    /**
+     * Calls the health route of an executor, which also leaves an open connection to it
+     */
+    @Override
+    public boolean probe(String executor) {
+        try {
+            return this.api.probed(executor, this.get("/%s".formatted(executor)));
+        } catch (IOException e) {
+            logger.debug("Executor %s could not be probed: %s".formatted(executor, e.getMessage()));
+
+            return false;
+        }
+    }
+
+    /**
+     * Deletes the function from the executor's running functions, which terminates it
+     */
+    @Override
+    public boolean cancelFunction(String executor, String runtimeId, String reason) throws IOException {
+        logger.debug("Cancelling function run %s on %s: %s".formatted(runtimeId, executor, reason));
+
+        ChannelHttpClient.Response response = this.client.exchange(
+                "DELETE",
+                "/%s/running_functions/%s".formatted(executor, runtimeId),
+                Map.of(),
+                null,
+                Duration.ofMillis(ExecutorClient.EXECUTOR_HTTP_TIMEOUT)
+        );
+
+        return ExecutorHttpApi.cancelled(executor, runtimeId, response.status());
+    }
+
+    @Override
+    public Optional<Set<String>> getRunningFunctions(String executor) throws IOException {
+        return ExecutorHttpApi.listed(executor, "running_functions", this.get("/%s/running_functions".formatted(executor)));
+    }
+
+    @Override
+    public Optional<Set<String>> getFunctions(String executor) throws IOException {
+        return ExecutorHttpApi.listed(executor, "functions", this.get("/%s/functions".formatted(executor)));
+    }
+
+    private ChannelHttpClient.Response get(String target) throws IOException {
+        return this.client.exchange("GET", target, Map.of(), null, Duration.ofMillis(ExecutorClient.EXECUTOR_HTTP_TIMEOUT));
+    }
+
+    @Override
+    public void onCompletion(CompletionListener listener) {
+        // The HTTP API can't push completions, the registry polls getRunningFunctions instead
+    }
+
+    @Override
+    public void close(Duration timeout) {
+        this.client.close();
+    }
+
+    @Override
+    public String toString() {
+        return this.client.toString();
+    }
+}
@@ -0,0 +1,110 @@
+package nl.factorit.openobd.functionlauncher;
+
+import com.jifeline.OpenOBD.FunctionBroker.Messages.*;
+import com.jifeline.OpenOBD.SessionController.Messages.SessionInfo;
+import nl.factorit.openobd.functionlauncher.broker.communication.OutgoingMessage;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.Duration;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+
+/**
+ * Warms up the Function Launcher before any function is registered ONLINE, so the first calls don't pay for opening
+ * the executor connections, class loading and the JIT compilation of the call path. Can be skipped by setting
+ * SKIP_WARM_UP (_any_ value), the amount of times the call path is run is set with WARM_UP_ITERATIONS
+ */
+public class WarmUp {
+    private static final int DEFAULT_ITERATIONS = 2000;
+    private static final Duration PRECONNECT_TIMEOUT = Duration.ofSeconds(10);
+    private static final Logger logger = Logger.getLogger("WarmUp");
+
+    private WarmUp() {
+    }
+
+    /**
+     * @param dispatcher The dispatcher the functions will be launched with
+     * @param catalog All functions known to the Function Launcher
+     */
+    public static void run(Dispatcher dispatcher, FunctionIndex catalog) throws InterruptedException {
+        if (null != System.getenv("SKIP_WARM_UP")) {
+            logger.info("Skipping warm-up");
+
+            return;
+        }
+
+        int iterations;
+        try {
+            iterations = Integer.parseInt(System.getenv("WARM_UP_ITERATIONS"));
+        } catch (NumberFormatException e) {
+            iterations = DEFAULT_ITERATIONS;
+        }
+
+        long start = System.nanoTime();
+
+        Set<String> executors = new TreeSet<>();
+        catalog.getFunctions().forEach(function -> executors.add(function.description.executor()));
+
+        Set<String> unhealthy = dispatcher.preconnect(executors, PRECONNECT_TIMEOUT);
+        if (!unhealthy.isEmpty()) {
+            // Not a reason to stop, the executor could still come up before the first call
+            logger.error("Executor(s) %s did not respond to be healthy".formatted(unhealthy));
+        }
+
+        runCallPath(iterations);
+
+        logger.info("Warmed up %d executor(s) and the call path in %d ms".formatted(
+                executors.size(),
+                Duration.ofNanos(System.nanoTime() - start).toMillis()
+        ));
+    }
+
+    /**
+     * Runs everything a call goes through, except for the actual network traffic, with synthetic data
+     */
+    private static void runCallPath(int iterations) {
+        String functionId = UUID.randomUUID().toString();
+
+        FunctionLauncher.Function function = new FunctionLauncher.Function(
+                functionId,
+                new FunctionsParser.FunctionDescription("warm-up", "warm-up", "warm-up", "0", "warm-up", "warm-up", "warm-up", FunctionsParser.FunctionMode.UNDEFINED, List.of(), null, null)
+        );
+
+        FunctionUpdate incoming = FunctionUpdate.newBuilder()
+                .setType(FunctionUpdateType.FUNCTION_UPDATE_TYPE_REQUEST)
+                .setFunctionCall(FunctionCall.newBuilder()
+                        .setId(functionId)
+                        .setSessionInfo(SessionInfo.newBuilder().setId(UUID.randomUUID().toString()).build())
+                        .build())
+                .build();
+        byte[] received = incoming.toByteArray();
+
+        String executorResponse = "{\"runtime_id\": \"%s\", \"function_id\": \"%s\"}".formatted(UUID.randomUUID(), functionId);
+
+        try {
+            for (int iteration = 0; iteration < iterations; iteration++) {
+                FunctionCall call = FunctionUpdate.parseFrom(received).getFunctionCall();
+
+                ExecutorClient.FunctionAndSessionInfo request = new ExecutorClient.FunctionAndSessionInfo(function, call.getSessionInfo(), UUID.randomUUID().toString());
+                request.toRequest().toJson();
+                request.writeProtobuf(OutputStream.nullOutputStream());
+                ExecutorClient.FunctionResponse.fromJson(executorResponse);
+
+                new OutgoingMessage.FunctionCallResponse(
+                        call,
+                        FunctionUpdateResponse.FUNCTION_UPDATE_SUCCESS,
+                        "Function %s has been started successfully".formatted(call.getId())
+                ).toFunctionUpdate().toByteArray();
+                new OutgoingMessage.FunctionRegistrationMessage(
+                        function.toRegistration(FunctionRegistrationState.FUNCTION_REGISTRATION_STATE_ONLINE)
+                ).toFunctionUpdate().toByteArray();
+            }
+        } catch (IOException e) {
+            // Only costs some speed on the first calls
+            logger.error("Could not warm up the call path", e);
+        }
+    }
+}
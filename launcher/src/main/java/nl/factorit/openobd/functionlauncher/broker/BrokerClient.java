@@ -1,18 +1,24 @@
 package nl.factorit.openobd.functionlauncher.broker;
 
 import com.jifeline.OpenOBD.FunctionBroker.Messages.FunctionBrokerToken;
-import com.jifeline.OpenOBD.FunctionBroker.Messages.FunctionUpdate;
 import com.jifeline.OpenOBD.FunctionBroker.functionBrokerGrpc;
 import com.jifeline.OpenOBD.SessionController.Messages.Authenticate;
 import io.grpc.*;
+import nl.factorit.openobd.functionlauncher.GrpcChannels;
 import nl.factorit.openobd.functionlauncher.Logger;
+import nl.factorit.openobd.functionlauncher.Metrics;
 import nl.factorit.openobd.functionlauncher.broker.BrokerInterceptor.Header;
 import nl.factorit.openobd.functionlauncher.broker.communication.BrokerCommunicator;
+import nl.factorit.openobd.functionlauncher.broker.communication.IncomingMessage;
 import nl.factorit.openobd.functionlauncher.broker.communication.OutgoingMessage;
+import nl.factorit.openobd.functionlauncher.broker.communication.ReplayBuffer;
 
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 
 /**
@@ -20,13 +26,35 @@ import java.util.concurrent.atomic.AtomicReference;
  */
 public class BrokerClient {
     private static final Logger logger = Logger.getLogger("BrokerClient");
-    private static final String DEFAULT_CLUSTER_ID = "001";
     private static final String DEFAULT_GRPC_HOST = "grpc.openobd.com";
+    private static final int DEFAULT_BROKER_STREAMS = 1;
+    private static final Duration CHANNEL_READY_TIMEOUT = Duration.ofSeconds(10);
+    private static final Duration AUTHENTICATE_TIMEOUT = Duration.ofSeconds(10);
+    private static final Duration DEFAULT_KEEPALIVE_TIME = Duration.ofSeconds(30);
+    private static final Duration KEEPALIVE_TIMEOUT = Duration.ofSeconds(10);
+    private static final Duration DEFAULT_IDLE_TIMEOUT = Duration.ofSeconds(90);
 
     private final AtomicReference<List<Header>> headers = new AtomicReference<>(new ArrayList<>());
-    private final BrokerCommunicator communicator;
+    private final ClusterConfig cluster;
+    private final ReplayBuffer replayBuffer;
+    private final Metrics metrics;
+    private final ManagedChannel channel;
+    private BrokerCommunicator communicator; // set once authenticated
+
+    /**
+     * Connects to the Function Broker of the given cluster, the client can be used once it is authenticated
+     *
+     * @param cluster the cluster to authenticate on, with its credentials
+     * @param replayBuffer holds the responses that could not be sent, shared with the previous client of the cluster
+     * @param metrics the metrics of the cluster, shared with the previous client of the cluster
+     *
+     * @see #authenticate()
+     */
+    public BrokerClient(ClusterConfig cluster, ReplayBuffer replayBuffer, Metrics metrics) {
+        this.cluster = cluster;
+        this.replayBuffer = replayBuffer;
+        this.metrics = metrics;
 
-    public BrokerClient() throws BrokerAuthenticationException {
         String grpcHost = System.getenv("OPENOBD_GRPC_HOST");
 
         if (null == grpcHost) {
@@ -35,15 +63,33 @@ public class BrokerClient {
 
         logger.debug("Using %s as gRPC host".formatted(grpcHost));
 
-        Channel channel;
+        ManagedChannelBuilder<?> channelBuilder;
         if (null != System.getenv("DEV_MODE")) {
             logger.debug("Using insecure credentials for gRPC");
-            channel = Grpc.newChannelBuilder(grpcHost, InsecureChannelCredentials.create()).build();
+            channelBuilder = GrpcChannels.forBroker(grpcHost, InsecureChannelCredentials.create());
         } else {
-            channel = Grpc.newChannelBuilder(grpcHost, TlsChannelCredentials.create()).build();
+            channelBuilder = GrpcChannels.forBroker(grpcHost, TlsChannelCredentials.create());
+        }
+
+        // HTTP/2 pings notice a dead connection (i.e. dropped by a load balancer without a reset) within the keepalive
+        // time and timeout, instead of when the OS gives up on it
+        Duration keepaliveTime = getDuration("OPENOBD_BROKER_KEEPALIVE", DEFAULT_KEEPALIVE_TIME);
+        if (!keepaliveTime.isZero()) {
+            channelBuilder
+                    .keepAliveTime(keepaliveTime.toNanos(), TimeUnit.NANOSECONDS)
+                    .keepAliveTimeout(KEEPALIVE_TIMEOUT.toNanos(), TimeUnit.NANOSECONDS);
         }
 
-        String token = retrieveFunctionBrokerToken(channel).getValue();
+        this.channel = channelBuilder.build();
+
+        awaitReady(this.channel, CHANNEL_READY_TIMEOUT);
+    }
+
+    /**
+     * Authenticates on the Function Broker and opens the communication streams with it
+     */
+    public void authenticate() throws BrokerAuthenticationException {
+        String token = retrieveFunctionBrokerToken(this.channel, this.cluster).getValue();
 
         this.headers.set(List.of(
                 Header.fromBearerToken(token)
@@ -51,25 +97,78 @@ public class BrokerClient {
 
         logger.debug("Opening Function stream on the Function Broker");
 
-        functionBrokerGrpc.functionBrokerStub functionBroker = functionBrokerGrpc.newStub(channel)
+        functionBrokerGrpc.functionBrokerStub functionBroker = functionBrokerGrpc.newStub(this.channel)
                 .withInterceptors(new BrokerInterceptor(this.headers));
 
-        this.communicator = BrokerCommunicator.startCommunications(functionBroker);
+        int streams;
+        try {
+            streams = Math.max(1, Integer.parseInt(System.getenv("OPENOBD_BROKER_STREAMS")));
+        } catch (NumberFormatException e) {
+            streams = DEFAULT_BROKER_STREAMS;
+        }
+
+        this.communicator = BrokerCommunicator.startCommunications(
+                functionBroker,
+                streams,
+                getDuration("OPENOBD_BROKER_IDLE_TIMEOUT", DEFAULT_IDLE_TIMEOUT),
+                this.replayBuffer,
+                this.metrics
+        );
     }
 
-    private FunctionBrokerToken retrieveFunctionBrokerToken(Channel channel) {
-        functionBrokerGrpc.functionBrokerBlockingStub synchronousBroker = functionBrokerGrpc.newBlockingStub(channel);
+    /**
+     * @return The duration in seconds the environment variable is set to (0 disables), or the default when not set
+     */
+    private static Duration getDuration(String variable, Duration defaultDuration) {
+        try {
+            return Duration.ofSeconds(Math.max(0, Long.parseLong(System.getenv(variable))));
+        } catch (NumberFormatException e) {
+            return defaultDuration;
+        }
+    }
+
+    /**
+     * Connects the channel and waits for it to be READY, so the connection (and TLS handshake) is done before any
+     * function is registered. Should it not be READY in time, the first call on it will report what is wrong
+     */
+    private static void awaitReady(ManagedChannel channel, Duration timeout) {
+        CountDownLatch ready = new CountDownLatch(1);
+        long start = System.nanoTime();
+
+        Runnable checkState = new Runnable() {
+            @Override
+            public void run() {
+                ConnectivityState state = channel.getState(true);
 
-        String clusterId = System.getenv("OPENOBD_CLUSTER_ID");
+                if (ConnectivityState.READY == state) {
+                    ready.countDown();
+                } else if (ConnectivityState.SHUTDOWN != state) {
+                    channel.notifyWhenStateChanged(state, this);
+                }
+            }
+        };
+        checkState.run();
 
-        if (null == clusterId) {
-            clusterId = DEFAULT_CLUSTER_ID;
+        try {
+            if (ready.await(timeout.toMillis(), TimeUnit.MILLISECONDS)) {
+                logger.debug("Channel READY in %d ms".formatted(Duration.ofNanos(System.nanoTime() - start).toMillis()));
+            } else {
+                logger.error("Channel not READY within %d ms, state is %s".formatted(timeout.toMillis(), channel.getState(false)));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
+    }
+
+    private FunctionBrokerToken retrieveFunctionBrokerToken(Channel channel, ClusterConfig cluster) {
+        // Interrupting the thread cancels the call as well, i.e. when shutting down
+        functionBrokerGrpc.functionBrokerBlockingStub synchronousBroker = functionBrokerGrpc.newBlockingStub(channel)
+                .withDeadlineAfter(AUTHENTICATE_TIMEOUT.toNanos(), TimeUnit.NANOSECONDS);
 
         Authenticate auth = Authenticate.newBuilder()
-                .setClientId(System.getenv("OPENOBD_PARTNER_CLIENT_ID"))
-                .setClientSecret(System.getenv("OPENOBD_PARTNER_CLIENT_SECRET"))
-                .setClusterId(clusterId)
+                .setClientId(cluster.clientId())
+                .setClientSecret(cluster.clientSecret())
+                .setClusterId(cluster.clusterId())
                 .build();
 
         logger.debug("Authenticating as client %s on cluster %s's Function Broker".formatted(auth.getClientId(), auth.getClusterId()));
@@ -91,12 +190,30 @@ public class BrokerClient {
     }
 
     /**
-     * Stops all communications with the FunctionBroker
+     * Stops all communications with the FunctionBroker, waiting for it to have received everything that was sent
+     *
+     * @param timeout maximum time to wait for the Function Broker
+     * @return whether all streams were closed in time
      *
      * @see BrokerCommunicator
      */
-    public void stopCommunications() {
-        this.communicator.stopCommunications();
+    public boolean stopCommunications(Duration timeout) throws InterruptedException {
+        return this.communicator.stopCommunications(timeout);
+    }
+
+    /**
+     * Closes the channel to the Function Broker, forcefully when it isn't closed within the given time
+     *
+     * @param timeout maximum time to wait for the channel to close gracefully
+     */
+    public void close(Duration timeout) throws InterruptedException {
+        this.channel.shutdown();
+
+        if (!this.channel.awaitTermination(timeout.toNanos(), TimeUnit.NANOSECONDS)) {
+            logger.debug("Channel did not close in time, forcing it");
+
+            this.channel.shutdownNow();
+        }
     }
 
     /**
@@ -112,17 +229,62 @@ public class BrokerClient {
         this.communicator.send(message);
     }
 
+    /**
+     * Sends a batch of registrations to the Function Broker, pipelined without other messages in between
+     *
+     * @param registrations the registrations to send
+     *
+     * @see BrokerCommunicator
+     */
+    public void sendRegistrations(List<OutgoingMessage.FunctionRegistrationMessage> registrations) {
+        this.communicator.sendRegistrations(registrations);
+    }
+
+    /**
+     * Sends a response to the Function Broker, on the stream the original message was received on
+     *
+     * @param message the response to send
+     * @param stream the stream the message that is responded to was received on
+     *
+     * @see BrokerCommunicator
+     */
+    public void send(OutgoingMessage<?> message, int stream) {
+        this.communicator.send(message, stream);
+    }
+
     /**
      * Get a message that was sent by the Function Broker if any
      *
-     * @return Optional with a Function update or an empty optional
+     * @return Optional with a Function update (and the stream it was received on) or an empty optional
      *
      * @see BrokerCommunicator
      */
-    public Optional<FunctionUpdate> receive() {
+    public Optional<IncomingMessage> receive() {
         return this.communicator.receive();
     }
 
+    /**
+     * Takes all messages that were received, but not read yet
+     *
+     * @return the received messages, oldest first
+     *
+     * @see BrokerCommunicator
+     */
+    public List<IncomingMessage> drainReceived() {
+        return this.communicator.drainReceived();
+    }
+
+    /**
+     * Replaces a single function stream, i.e. when the Function Broker instance behind it is going down
+     *
+     * @param stream the stream to replace
+     *
+     * @see BrokerCommunicator
+     */
+    public void replaceStream(int stream) {
+        this.communicator.replaceStream(stream);
+    }
+
     public static class BrokerAuthenticationException extends RuntimeException {
         public BrokerAuthenticationException() {
             super("Could not authenticate with the Function Broker!");
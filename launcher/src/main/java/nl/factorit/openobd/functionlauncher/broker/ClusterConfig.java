@@ -0,0 +1,61 @@
+package nl.factorit.openobd.functionlauncher.broker;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Value object describing a single openOBD cluster the Function Launcher serves its functions on, together with the
+ * Partner API credentials used to authenticate on that cluster's Function Broker
+ *
+ * @param clusterId id of the cluster (i.e. 001 for Europe)
+ * @param clientId the Partner API credentials id used on this cluster
+ * @param clientSecret the Partner API credentials secret used on this cluster
+ */
+public record ClusterConfig(String clusterId, String clientId, String clientSecret) {
+    private static final String DEFAULT_CLUSTER_ID = "001";
+
+    /**
+     * Reads the configured clusters from the environment. OPENOBD_CLUSTER_ID can contain a comma separated list of
+     * cluster ids (i.e. "001,002"). Every cluster uses the OPENOBD_PARTNER_CLIENT_ID and OPENOBD_PARTNER_CLIENT_SECRET
+     * credentials, unless these are overridden for a specific cluster with OPENOBD_PARTNER_CLIENT_ID_<CLUSTER_ID> and
+     * OPENOBD_PARTNER_CLIENT_SECRET_<CLUSTER_ID>
+     *
+     * @return All configured clusters, at least containing the default cluster
+     */
+    public static List<ClusterConfig> fromEnvironment() {
+        String clusterIds = System.getenv("OPENOBD_CLUSTER_ID");
+
+        if (null == clusterIds || clusterIds.isBlank()) {
+            clusterIds = DEFAULT_CLUSTER_ID;
+        }
+
+        Set<String> uniqueClusterIds = new LinkedHashSet<>();
+        for (String clusterId : clusterIds.split(",")) {
+            if (!clusterId.isBlank()) {
+                uniqueClusterIds.add(clusterId.trim());
+            }
+        }
+
+        List<ClusterConfig> clusters = new ArrayList<>();
+        for (String clusterId : uniqueClusterIds) {
+            clusters.add(new ClusterConfig(
+                    clusterId,
+                    getClusterVariable("OPENOBD_PARTNER_CLIENT_ID", clusterId),
+                    getClusterVariable("OPENOBD_PARTNER_CLIENT_SECRET", clusterId)
+            ));
+        }
+
+        return clusters;
+    }
+
+    /**
+     * Retrieves a cluster specific environment variable, falling back to the shared variable when it isn't set
+     */
+    private static String getClusterVariable(String name, String clusterId) {
+        String value = System.getenv("%s_%s".formatted(name, clusterId));
+
+        return null != value ? value : System.getenv(name);
+    }
+}
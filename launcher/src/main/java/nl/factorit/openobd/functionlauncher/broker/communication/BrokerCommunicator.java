@@ -3,70 +3,363 @@ package nl.factorit.openobd.functionlauncher.broker.communication;
 import com.jifeline.OpenOBD.FunctionBroker.Messages.FunctionUpdate;
 import com.jifeline.OpenOBD.FunctionBroker.functionBrokerGrpc;
 import io.grpc.stub.StreamObserver;
+import nl.factorit.openobd.functionlauncher.LauncherEvents;
 import nl.factorit.openobd.functionlauncher.Logger;
+import nl.factorit.openobd.functionlauncher.Metrics;
 
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
 
 /**
- * Communicator that provides the public interface for the communication to and from the Function Broker
+ * Communicator that provides the public interface for the communication to and from the Function Broker. It keeps a
+ * pool of function streams open over the same channel, so the load is spread over multiple HTTP/2 streams (and with
+ * that, possibly multiple Function Broker instances)
  */
 public class BrokerCommunicator {
+    // Amount of times a stream is replaced without receiving anything, before the whole connection is considered lost
+    private static final int MAX_STREAM_REPLACEMENTS = 3;
     private static final Logger logger = Logger.getLogger("BrokerCommunicator");
 
-    private final BrokerStream.Incoming incomingStream;
-    private final BrokerStream.Outgoing outgoingStream;
+    private final functionBrokerGrpc.functionBrokerStub functionBroker;
+    private final List<FunctionStream> streams = new CopyOnWriteArrayList<>();
+    private final Queue<IncomingMessage> messages = new LinkedBlockingQueue<>(); // FIFO queue, shared by all streams
+    private final ReplayBuffer replayBuffer;
+    private final Duration idleTimeout; // Duration.ZERO when silent streams are not detected
+    private final Metrics metrics;
 
-    private BrokerCommunicator(BrokerStream.Incoming incomingStream, BrokerStream.Outgoing outgoingStream) {
-        this.incomingStream = incomingStream;
-        this.outgoingStream = outgoingStream;
+    // Latest registration of every function, mirrored on every (replaced) stream
+    private final Map<String, OutgoingMessage.FunctionRegistrationMessage> registrations = new ConcurrentHashMap<>();
+
+    private BrokerCommunicator(functionBrokerGrpc.functionBrokerStub functionBroker, Duration idleTimeout, ReplayBuffer replayBuffer, Metrics metrics) {
+        this.functionBroker = functionBroker;
+        this.idleTimeout = idleTimeout;
+        this.replayBuffer = replayBuffer;
+        this.metrics = metrics;
     }
 
     /**
      * Initialized the BrokerCommunicator for the given stub
      *
      * @param functionBroker The fully initialized Function Brokers gRPC stub
+     * @param streamCount The amount of function streams to open
+     * @param idleTimeout How long a stream may be silent before it is considered dead, Duration.ZERO to never
+     * @param replayBuffer Holds the responses that could not be sent, possibly by an earlier communicator
+     * @param metrics Where the silent streams are counted
      *
      * @return A ready to use BrokerCommunicator
      */
-    public static BrokerCommunicator startCommunications(functionBrokerGrpc.functionBrokerStub functionBroker) {
-        logger.debug("starting Broker communication streams");
+    public static BrokerCommunicator startCommunications(
+            functionBrokerGrpc.functionBrokerStub functionBroker,
+            int streamCount,
+            Duration idleTimeout,
+            ReplayBuffer replayBuffer,
+            Metrics metrics
+    ) {
+        logger.debug("starting %d Broker communication stream(s)".formatted(streamCount));
+
+        BrokerCommunicator communicator = new BrokerCommunicator(functionBroker, idleTimeout, replayBuffer, metrics);
+
+        for (int index = 0; index < streamCount; index++) {
+            communicator.streams.add(communicator.openStream(index));
+        }
+
+        return communicator;
+    }
+
+    private FunctionStream openStream(int index) {
+        BrokerStream.Incoming incomingStream = new BrokerStream.Incoming(index, this.messages);
+
+        StreamObserver<FunctionUpdate> requestStream = this.functionBroker.openFunctionStream(incomingStream);
+
+        return new FunctionStream(incomingStream, new BrokerStream.Outgoing(requestStream));
+    }
+
+    /**
+     * Replaces a (failed) stream with a new one over the same channel and mirrors all registrations on it, the other
+     * streams are left untouched
+     *
+     * @param index The stream to replace
+     * @throws BrokerStream.StreamEndingException Thrown when the stream was replaced too often without success
+     */
+    public void replaceStream(int index) throws BrokerStream.StreamEndingException {
+        FunctionStream failedStream = this.streams.get(index);
+
+        int replacements = failedStream.incoming.hasReceived() ? 1 : failedStream.replacements + 1;
+        if (MAX_STREAM_REPLACEMENTS < replacements) {
+            throw null != failedStream.getClosingError()
+                    ? failedStream.getClosingError()
+                    : new BrokerStream.StreamEndingException(new IllegalStateException("Stream %d keeps failing".formatted(index)));
+        }
+
+        logger.info("Replacing Broker communication stream %d".formatted(index));
 
-        BrokerStream.Incoming incomingStream = new BrokerStream.Incoming();
+        try {
+            failedStream.stop();
+        } catch (RuntimeException e) {
+            logger.debug("Could not stop stream %d: %s".formatted(index, e.getMessage()));
+        }
 
-        StreamObserver<FunctionUpdate> requestStream = functionBroker.openFunctionStream(incomingStream);
+        FunctionStream replacement = this.openStream(index);
+        replacement.replacements = replacements;
 
-        BrokerStream.Outgoing outgoingStream = new BrokerStream.Outgoing(requestStream);
+        replacement.outgoing.sendAll(this.registrations.values());
 
-        return new BrokerCommunicator(incomingStream, outgoingStream);
+        this.streams.set(index, replacement);
     }
 
     /**
-     * Gracefully stops the communication streams to and from the Function Broker
+     * Gracefully stops the communication streams to and from the Function Broker. Completes the outgoing half of every
+     * stream and waits for the Function Broker to close the incoming half, meaning it received everything we sent
+     *
+     * @param timeout Maximum time to wait for all streams to be closed
+     * @return Whether all streams were closed in time
      */
-    public void stopCommunications() {
+    public boolean stopCommunications(Duration timeout) throws InterruptedException {
         logger.debug("Stopping Broker communication streams");
 
-        this.incomingStream.stop();
-        this.outgoingStream.stop();
+        long deadline = System.nanoTime() + timeout.toNanos();
+
+        // Last chance for the responses that are still held
+        this.replay();
+
+        this.streams.forEach(FunctionStream::stop);
+
+        boolean closed = true;
+        for (FunctionStream stream : this.streams) {
+            closed &= stream.incoming.awaitClosed(Duration.ofNanos(Math.max(0, deadline - System.nanoTime())));
+        }
+
+        return closed;
     }
 
     /**
-     * Send a message to the Function Broker (i.e. to register a function)
+     * Send a message to the Function Broker (i.e. to register a function). Registrations are mirrored on every stream,
+     * other messages are sent on the first stream
      *
      * @param message The message to send
-     * @throws BrokerStream.StreamEndingException Thrown when a message was sent with an already closed stream
+     * @throws BrokerStream.StreamEndingException Thrown when a message could not be sent on any of the streams
      */
     public void send(OutgoingMessage<?> message) throws BrokerStream.StreamEndingException {
-        this.outgoingStream.send(message);
+        if (!(message instanceof OutgoingMessage.FunctionRegistrationMessage registration)) {
+            this.send(message, 0);
+
+            return;
+        }
+
+        this.sendRegistrations(List.of(registration));
+    }
+
+    /**
+     * Sends a batch of registrations, pipelined on every stream without other messages in between
+     *
+     * @param batch The registrations to send
+     * @throws BrokerStream.StreamEndingException Thrown when the batch could not be sent on any of the streams
+     */
+    public void sendRegistrations(List<OutgoingMessage.FunctionRegistrationMessage> batch) throws BrokerStream.StreamEndingException {
+        batch.forEach(registration -> this.registrations.put(registration.message.getDetails().getId(), registration));
+
+        BrokerStream.StreamEndingException lastError = null;
+        int sent = 0;
+        for (FunctionStream stream : this.streams) {
+            try {
+                stream.outgoing.sendAll(batch);
+                sent++;
+            } catch (BrokerStream.StreamEndingException e) {
+                // The stream will be replaced (and get all registrations) the next time messages are received
+                lastError = e;
+            }
+        }
+
+        for (OutgoingMessage.FunctionRegistrationMessage registration : batch) {
+            LauncherEvents.RegistrationSent event = new LauncherEvents.RegistrationSent();
+            if (!event.isEnabled()) {
+                break;
+            }
+
+            event.functionId = registration.message.getDetails().getId();
+            event.state = registration.message.getState().name();
+            event.streams = sent;
+            event.commit();
+        }
+
+        if (0 == sent && null != lastError) {
+            throw lastError;
+        }
+    }
+
+    /**
+     * Send a message to the Function Broker on a specific stream, i.e. the response to a message received on it. A
+     * response to a call is held in the replay buffer when the stream failed or was not confirmed to work yet, it is
+     * replayed once a stream works (see receive). Responses that are still held are replayed before it
+     *
+     * @param message The message to send
+     * @param stream The stream to send it on, should that stream have been replaced its replacement is used
+     * @throws BrokerStream.StreamEndingException Thrown when a message (other than a response to a call) was sent with
+     * an already closed stream
+     */
+    public void send(OutgoingMessage<?> message, int stream) throws BrokerStream.StreamEndingException {
+        FunctionStream target = this.streams.get(stream);
+
+        if (!(message instanceof OutgoingMessage.FunctionCallResponse)) {
+            target.outgoing.send(message);
+
+            return;
+        }
+
+        if (!target.isConfirmed()) {
+            this.replayBuffer.hold(message);
+
+            return;
+        }
+
+        try {
+            if (this.replayBuffer.isEmpty()) {
+                target.outgoing.send(message);
+            } else {
+                // The held responses go first, rather than waiting for the next receive to replay them
+                this.replayBuffer.replay(target.outgoing, message);
+            }
+        } catch (BrokerStream.StreamEndingException e) {
+            logger.debug("Holding %s until stream %d is replaced".formatted(message, stream));
+
+            this.replayBuffer.hold(message);
+        }
+    }
+
+    /**
+     * Replays the held responses on the first stream that is confirmed to work
+     */
+    private void replay() {
+        if (this.replayBuffer.isEmpty()) {
+            return;
+        }
+
+        for (FunctionStream stream : this.streams) {
+            if (!stream.isConfirmed()) {
+                continue;
+            }
+
+            try {
+                this.replayBuffer.replay(stream.outgoing);
+
+                return;
+            } catch (BrokerStream.StreamEndingException e) {
+                logger.debug("Could not replay the held responses: %s".formatted(e.getMessage()));
+            }
+        }
     }
 
     /**
-     * Retrieves an update from the Function Broker, if any is available
+     * Retrieves an update from the Function Broker, if any is available on any of the streams. Silent and failed
+     * streams are replaced before reading, after which the held responses are replayed
      *
      * @return Optional loaded with an update, if any
-     * @throws BrokerStream.StreamEndingException  Thrown when a response was read with an already closed stream
+     * @throws BrokerStream.StreamEndingException Thrown when a failed stream could not be replaced, or all streams are
+     * silent (meaning the connection is dead)
+     */
+    public Optional<IncomingMessage> receive() throws BrokerStream.StreamEndingException {
+        this.detectSilentStreams();
+
+        for (int index = 0; index < this.streams.size(); index++) {
+            if (null != this.streams.get(index).getClosingError()) {
+                this.replaceStream(index);
+            }
+        }
+
+        this.replay();
+
+        return Optional.ofNullable(this.messages.poll());
+    }
+
+    /**
+     * Fails the streams on which nothing was received for longer than the idle timeout. A stream behind a load balancer
+     * can silently die (i.e. the connection is dropped without a reset), in which case neither side gets an error while
+     * the Function Broker keeps routing calls to it. Should all streams be silent, the connection itself is considered
+     * dead and replacing streams over it won't help
+     *
+     * @throws BrokerStream.StreamEndingException Thrown when all streams are silent
+     */
+    private void detectSilentStreams() throws BrokerStream.StreamEndingException {
+        if (this.idleTimeout.isZero()) {
+            return;
+        }
+
+        long now = System.nanoTime();
+        Duration shortestSilence = null;
+
+        for (FunctionStream stream : this.streams) {
+            Duration silence = stream.incoming.getSilence(now);
+
+            if (null == shortestSilence || silence.compareTo(shortestSilence) < 0) {
+                shortestSilence = silence;
+            }
+
+            if (0 < silence.compareTo(this.idleTimeout) && null == stream.getClosingError()) {
+                stream.incoming.markSilent(silence);
+
+                this.metrics.increment("silent_streams");
+                this.metrics.record("silence_detected_ms", silence.toMillis());
+            }
+        }
+
+        if (null != shortestSilence && 0 < shortestSilence.compareTo(this.idleTimeout)) {
+            this.metrics.increment("silent_connections");
+
+            throw new BrokerStream.StreamEndingException(new IllegalStateException(
+                    "Nothing received on any stream for %d ms".formatted(shortestSilence.toMillis())
+            ));
+        }
+    }
+
+    /**
+     * Takes all messages that were received but not read yet, without checking or replacing the streams
+     *
+     * @return The received messages, oldest first
      */
-    public Optional<FunctionUpdate> receive() throws BrokerStream.StreamEndingException {
-        return this.incomingStream.receive();
+    public List<IncomingMessage> drainReceived() {
+        List<IncomingMessage> received = new ArrayList<>();
+
+        for (IncomingMessage message = this.messages.poll(); null != message; message = this.messages.poll()) {
+            received.add(message);
+        }
+
+        return received;
+    }
+
+    /**
+     * A single bidirectional function stream, consisting of its incoming and outgoing half
+     */
+    private static class FunctionStream {
+        private final BrokerStream.Incoming incoming;
+        private final BrokerStream.Outgoing outgoing;
+        private int replacements = 0;
+
+        private FunctionStream(BrokerStream.Incoming incoming, BrokerStream.Outgoing outgoing) {
+            this.incoming = incoming;
+            this.outgoing = outgoing;
+        }
+
+        private BrokerStream.StreamEndingException getClosingError() {
+            return null != this.incoming.closingError ? this.incoming.closingError : this.outgoing.closingError;
+        }
+
+        /**
+         * @return Whether the stream works: the Function Broker sent something on it and it didn't fail since
+         */
+        private boolean isConfirmed() {
+            return this.incoming.hasReceived() && null == this.getClosingError();
+        }
+
+        private void stop() {
+            this.incoming.stop();
+            this.outgoing.stop();
+        }
     }
 }
@@ -2,16 +2,19 @@ package nl.factorit.openobd.functionlauncher.broker.communication;
 
 import com.jifeline.OpenOBD.FunctionBroker.Messages.FunctionUpdate;
 import io.grpc.stub.StreamObserver;
+import nl.factorit.openobd.functionlauncher.LauncherEvents;
 import nl.factorit.openobd.functionlauncher.Logger;
 
-import java.util.NoSuchElementException;
-import java.util.Optional;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.List;
 import java.util.Queue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 public abstract class BrokerStream {
     // Error that caused the stream to stop
-    protected StreamEndingException closingError = null;
+    protected volatile StreamEndingException closingError = null;
 
     /**
      * Gracefully stop the Stream
@@ -24,38 +27,88 @@ public abstract class BrokerStream {
     static class Incoming extends BrokerStream implements StreamObserver<FunctionUpdate> {
         private static final Logger logger = Logger.getLogger("BrokerStream:Incoming");
 
-        private final Queue<FunctionUpdate> messages = new LinkedBlockingQueue<>(); // FIFO queue
+        private final int index;
+        private final Queue<IncomingMessage> messages; // FIFO queue, shared with the other streams of the communicator
+        private final CountDownLatch closed = new CountDownLatch(1);
+        private volatile boolean received = false;
+        private volatile long lastReceivedAt = System.nanoTime(); // or when the stream was opened
 
         /**
-         * Reads a message from the queue if any is available and removes is from the queue
+         * @param index The index of this stream within its communicator, added to every received message
+         * @param messages The queue all received messages are added to
+         */
+        public Incoming(int index, Queue<IncomingMessage> messages) {
+            this.index = index;
+            this.messages = messages;
+        }
+
+        /**
+         * @return Whether the stream has received at least a single message
+         */
+        public boolean hasReceived() {
+            return this.received;
+        }
+
+        /**
+         * @param now The current System.nanoTime()
+         * @return How long ago the last message was received, or the stream was opened when it received nothing yet
+         */
+        public Duration getSilence(long now) {
+            return Duration.ofNanos(now - this.lastReceivedAt);
+        }
+
+        /**
+         * Fails the stream because the Function Broker has not sent anything on it for too long, while it pings every
+         * stream regularly. The connection behind it is most likely dead without either side having noticed it
          *
-         * @return The oldest message in the queue, if any
-         * @throws StreamEndingException Thrown when the stream was closed
+         * @param silence How long nothing was received
          */
-        public Optional<FunctionUpdate> receive() throws StreamEndingException {
+        public void markSilent(Duration silence) {
             if (null != this.closingError) {
-                throw this.closingError;
+                return;
             }
 
-            try {
-                return Optional.of(this.messages.remove());
-            } catch (NoSuchElementException e) {
-                return Optional.empty();
-            }
+            this.closingError = new StreamEndingException(new IllegalStateException(
+                    "Nothing received on stream %d for %d ms".formatted(this.index, silence.toMillis())
+            ));
+
+            logger.error("Stream is silent and considered closed", this.closingError);
+        }
+
+        /**
+         * Waits until the Function Broker closed the stream, which it does after it received everything we sent
+         *
+         * @param timeout Maximum time to wait
+         * @return Whether the stream was closed in time
+         */
+        public boolean awaitClosed(Duration timeout) throws InterruptedException {
+            return this.closed.await(timeout.toNanos(), TimeUnit.NANOSECONDS);
         }
 
         @Override
         public void stop() {
+            // The incoming half is closed by the Function Broker, after the outgoing half has been completed
             logger.debug("Stopping stream");
-
-            this.onCompleted();
         }
 
         @Override
         public void onNext(FunctionUpdate message) {
-            logger.debug("Received message: %s - %s".formatted(message.getType().name(), message.getFunctionDataCase().name()));
+            // Called on the event loop when the channel is tuned (see GrpcChannels), so nothing is formatted for nothing
+            if (logger.isDebugEnabled()) {
+                logger.debug("Received message on stream %d: %s - %s".formatted(this.index, message.getType().name(), message.getFunctionDataCase().name()));
+            }
 
-            this.messages.add(message);
+            LauncherEvents.BrokerMessageReceived event = new LauncherEvents.BrokerMessageReceived();
+            if (event.isEnabled()) {
+                event.stream = this.index;
+                event.type = message.getType().name();
+                event.data = message.getFunctionDataCase().name();
+                event.commit();
+            }
+
+            this.received = true;
+            this.lastReceivedAt = System.nanoTime();
+            this.messages.add(new IncomingMessage(message, this.index, System.nanoTime()));
         }
 
         @Override
@@ -63,11 +116,15 @@ public abstract class BrokerStream {
             this.closingError = new StreamEndingException(cause);
 
             logger.error("Stream had an error and was closed", this.closingError);
+
+            this.closed.countDown();
         }
 
         @Override
         public void onCompleted() {
             logger.debug("Stream was completed");
+
+            this.closed.countDown();
         }
     }
 
@@ -78,22 +135,49 @@ public abstract class BrokerStream {
         private static final Logger logger = Logger.getLogger("BrokerStream:Outgoing");
 
         private final StreamObserver<FunctionUpdate> stream;
+        private final FunctionUpdate.Builder builder = FunctionUpdate.newBuilder(); // reused for every message, guarded by this
 
         public Outgoing(StreamObserver<FunctionUpdate> stream) {
             this.stream = stream;
         }
 
-        public void send(OutgoingMessage<?> message) throws StreamEndingException {
+        /**
+         * Sends the message on the stream, synchronized as gRPC streams don't allow concurrent writes and responses
+         * are sent from the dispatch threads
+         */
+        public synchronized void send(OutgoingMessage<?> message) throws StreamEndingException {
+            this.sendAll(List.of(message));
+        }
+
+        /**
+         * Sends all messages directly after each other, without other messages in between
+         */
+        public synchronized void sendAll(Collection<? extends OutgoingMessage<?>> messages) throws StreamEndingException {
             if (null != this.closingError) {
                 throw this.closingError;
             }
 
             try {
-                FunctionUpdate update = message.toFunctionUpdate();
-
-                logger.debug("Sending function update request: %s".formatted(message));
-
-                this.stream.onNext(update);
+                for (OutgoingMessage<?> message : messages) {
+                    LauncherEvents.BrokerMessageSent event = new LauncherEvents.BrokerMessageSent();
+                    event.begin();
+
+                    FunctionUpdate update = message.toFunctionUpdate(this.builder);
+
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("Sending function update request: %s".formatted(message));
+                    }
+
+                    this.stream.onNext(update);
+
+                    event.end();
+                    if (event.shouldCommit()) {
+                        event.type = update.getType().name();
+                        event.data = update.getFunctionDataCase().name();
+                        event.size = update.getSerializedSize();
+                        event.commit();
+                    }
+                }
             } catch (IllegalStateException e) {
                 this.closingError = new StreamEndingException(e);
 
@@ -104,7 +188,7 @@ public abstract class BrokerStream {
         }
 
         @Override
-        public void stop() {
+        public synchronized void stop() {
             logger.debug("Stopping Broker stream");
 
             this.stream.onCompleted();
@@ -0,0 +1,14 @@
+package nl.factorit.openobd.functionlauncher.broker.communication;
+
+import com.jifeline.OpenOBD.FunctionBroker.Messages.FunctionUpdate;
+
+/**
+ * Value object for a message received from the Function Broker, remembering the stream it arrived on so a response
+ * can be sent back on that same stream
+ *
+ * @param update The message as sent by the Function Broker
+ * @param stream Index of the function stream the message was received on
+ * @param receivedAt When the message was received (as System.nanoTime), the deadline of a call starts here
+ */
+public record IncomingMessage(FunctionUpdate update, int stream, long receivedAt) {
+}
@@ -2,15 +2,18 @@ package nl.factorit.openobd.functionlauncher.broker.communication;
 
 
 import com.jifeline.OpenOBD.FunctionBroker.Messages.*;
+import com.google.protobuf.ByteString;
+import com.jifeline.OpenOBD.SessionController.Messages.SessionInfo;
 
 /**
- * Value object for a message that will be sent to the Function Broker, via a gRPC stream
+ * Value object for a message that will be sent to the Function Broker, via a gRPC stream. Its description is only
+ * created when it is logged, messages that are sent often and don't change (registrations and ping replies) are built
+ * once and sent as is
  *
  * @param <T> The type of message that will be sent
  */
 public abstract class OutgoingMessage<T> {
     protected T message;
-    protected String messageDescription;
 
     /**
      * Function that constructs the FunctionUpdate's builder which will create the Function Update send to the Function Broker
@@ -19,19 +22,45 @@ public abstract class OutgoingMessage<T> {
      */
     protected abstract void addPayload(FunctionUpdate.Builder builder);
 
+    /**
+     * @return Description of the OutgoingMessage, only created when it is logged
+     */
+    protected abstract String describe();
+
     public FunctionUpdate toFunctionUpdate() {
-        FunctionUpdate.Builder builder = FunctionUpdate.newBuilder();
+        return this.toFunctionUpdate(FunctionUpdate.newBuilder());
+    }
+
+    /**
+     * @param builder The builder to (clear and) reuse, i.e. the one of the stream the message is sent on. The built
+     * FunctionUpdate does not change when the builder is reused afterwards
+     */
+    public FunctionUpdate toFunctionUpdate(FunctionUpdate.Builder builder) {
+        return this.build(builder);
+    }
 
-        this.addPayload(builder);
+    private FunctionUpdate build(FunctionUpdate.Builder builder) {
+        this.addPayload(builder.clear());
 
         return builder.build();
     }
 
+    /**
+     * Builds the FunctionUpdate ahead of time and has its size computed (which protobuf keeps with the message), so
+     * it costs nothing to send it on every stream, or to send it again
+     */
+    protected FunctionUpdate prepare() {
+        FunctionUpdate update = this.build(FunctionUpdate.newBuilder());
+        update.getSerializedSize();
+
+        return update;
+    }
+
     /**
      * @return Description of the OutgoingMessage
      */
     public String toString() {
-        return this.messageDescription;
+        return this.describe();
     }
 
     /**
@@ -40,7 +69,6 @@ public abstract class OutgoingMessage<T> {
     public static class FunctionCallMessage extends OutgoingMessage<FunctionCall> {
         public FunctionCallMessage(FunctionCall message) {
             this.message = message;
-            this.messageDescription = "Execution message for %s".formatted(this.message.getId());
         }
 
         @Override
@@ -48,15 +76,23 @@ public abstract class OutgoingMessage<T> {
             builder.setType(FunctionUpdateType.FUNCTION_UPDATE_TYPE_REQUEST)
                     .setFunctionCall(this.message);
         }
+
+        @Override
+        protected String describe() {
+            return "Execution message for %s".formatted(this.message.getId());
+        }
     }
 
     /**
-     * Message to request a FunctionRegistration, which should register an openOBD function with the Function Broker
+     * Message to request a FunctionRegistration, which should register an openOBD function with the Function Broker.
+     * It is mirrored on every stream (and again on every replaced one), so it is built once
      */
     public static class FunctionRegistrationMessage extends OutgoingMessage<FunctionRegistration> {
+        private final FunctionUpdate update;
+
         public FunctionRegistrationMessage(FunctionRegistration message) {
             this.message = message;
-            this.messageDescription = "Registration message for %s, %s".formatted(this.message.getDetails().getId(), this.message.getState());
+            this.update = this.prepare();
         }
 
         @Override
@@ -64,14 +100,40 @@ public abstract class OutgoingMessage<T> {
             builder.setType(FunctionUpdateType.FUNCTION_UPDATE_TYPE_REQUEST)
                     .setFunctionRegistration(this.message);
         }
+
+        @Override
+        public FunctionUpdate toFunctionUpdate(FunctionUpdate.Builder builder) {
+            return this.update;
+        }
+
+        @Override
+        protected String describe() {
+            return "Registration message for %s, %s".formatted(this.message.getDetails().getId(), this.message.getState());
+        }
     }
 
     /**
-     * Message to ping a FunctionRegistration, to prevent the stream from closing
+     * Message to ping a FunctionRegistration, to prevent the stream from closing. The token rarely changes, so the
+     * same reply can be sent as long as it doesn't (see isFor)
      */
     public static class FunctionBrokerTokenMessage extends OutgoingMessage<FunctionBrokerToken> {
+        private final String value;
+        private final FunctionUpdate update;
+
         public FunctionBrokerTokenMessage(FunctionBrokerToken message) {
-            this.message = message;
+            // The token is sent as bytes, protobuf would encode it again every time it is sent when given as text
+            this.value = message.getValue();
+            this.message = FunctionBrokerToken.newBuilder()
+                    .setValueBytes(ByteString.copyFromUtf8(this.value))
+                    .build();
+            this.update = this.prepare();
+        }
+
+        /**
+         * @return Whether this is the reply to a ping with the given token
+         */
+        public boolean isFor(FunctionBrokerToken token) {
+            return this.value.equals(token.getValue());
         }
 
         @Override
@@ -80,12 +142,22 @@ public abstract class OutgoingMessage<T> {
                     .setResponseDescription("Updated Broker token")
                     .setFunctionBrokerToken(this.message);
         }
+
+        @Override
+        public FunctionUpdate toFunctionUpdate(FunctionUpdate.Builder builder) {
+            return this.update;
+        }
+
+        @Override
+        protected String describe() {
+            return "Broker token message";
+        }
     }
 
     /**
      * Value object for a Response to an OutgoingMessage
      *
-     * @param <T> The type of OutgoingMessage this is a response to
+     * @param <T> The type of message this is a response to
      */
     public abstract static class Response<T> extends OutgoingMessage<T> {
         protected FunctionUpdateResponse responseType;
@@ -93,23 +165,31 @@ public abstract class OutgoingMessage<T> {
     }
 
     /**
-     * Response to a FunctionCallMessage containing the state of the function
+     * Response to a FunctionCall containing the state of the function. The Function Broker only needs the ids of the
+     * call and its session to match it to the call, so the rest of the call (i.e. the session's authentication token)
+     * is not sent back, nor kept while the response is held in the replay buffer
      */
-    public static class FunctionCallResponse extends Response<FunctionCallMessage> {
+    public static class FunctionCallResponse extends Response<FunctionCall> {
         public FunctionCallResponse(FunctionCall message, FunctionUpdateResponse responseType, String responseDescription) {
             this.responseType = responseType;
             this.responseDescription = responseDescription;
-            this.message = new FunctionCallMessage(message);
-            this.messageDescription = "%s response (%s) for %s".formatted(this.responseType, this.responseDescription, this.message);
+            this.message = FunctionCall.newBuilder()
+                    .setId(message.getId())
+                    .setSessionInfo(SessionInfo.newBuilder().setId(message.getSessionInfo().getId()))
+                    .build();
         }
 
         @Override
         protected void addPayload(FunctionUpdate.Builder builder) {
-            this.message.addPayload(builder);
-
             builder.setType(FunctionUpdateType.FUNCTION_UPDATE_TYPE_RESPONSE)
                     .setResponse(this.responseType)
-                    .setResponseDescription(this.responseDescription);
+                    .setResponseDescription(this.responseDescription)
+                    .setFunctionCall(this.message);
+        }
+
+        @Override
+        protected String describe() {
+            return "%s response (%s) for %s".formatted(this.responseType, this.responseDescription, this.message.getId());
         }
     }
 }
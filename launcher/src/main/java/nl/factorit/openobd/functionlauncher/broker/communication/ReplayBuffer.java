@@ -0,0 +1,104 @@
+package nl.factorit.openobd.functionlauncher.broker.communication;
+
+import nl.factorit.openobd.functionlauncher.Logger;
+import nl.factorit.openobd.functionlauncher.Metrics;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Holds the responses that could not be sent to the Function Broker, because their stream failed or was not confirmed
+ * to work yet, until they can be replayed on a healthy stream. The buffer outlives the streams (and the connection)
+ * it holds responses for. When it is full, the oldest response is dropped: its caller has waited the longest and has
+ * most likely given up already.
+ */
+public class ReplayBuffer {
+    private static final Logger logger = Logger.getLogger("ReplayBuffer");
+
+    private final int capacity;
+    private final Metrics metrics;
+    private final Deque<OutgoingMessage<?>> held = new ArrayDeque<>(); // oldest first, guarded by this
+    private volatile int size = 0;
+
+    /**
+     * @param capacity The maximum amount of responses held
+     * @param metrics Where the amount of held, replayed and dropped responses is counted
+     */
+    public ReplayBuffer(int capacity, Metrics metrics) {
+        this.capacity = capacity;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Holds the response behind the responses that are already held
+     */
+    public synchronized void hold(OutgoingMessage<?> message) {
+        if (this.capacity <= this.held.size()) {
+            OutgoingMessage<?> dropped = this.held.poll();
+
+            logger.error("Replay buffer is full, dropping %s".formatted(dropped));
+
+            this.metrics.increment("responses_dropped");
+        }
+
+        this.held.add(message);
+        this.size = this.held.size();
+
+        this.metrics.increment("responses_held");
+    }
+
+    /**
+     * @return Whether no response is held, without taking the lock
+     */
+    public boolean isEmpty() {
+        return 0 == this.size;
+    }
+
+    /**
+     * Replays all held responses, in the order they were held
+     *
+     * @param stream The stream to replay them on, which should be confirmed to work
+     * @throws BrokerStream.StreamEndingException Thrown when the stream failed, the responses are held again (some of
+     * them might have been sent, those are sent again on the next replay)
+     */
+    synchronized void replay(BrokerStream.Outgoing stream) throws BrokerStream.StreamEndingException {
+        if (this.held.isEmpty()) {
+            return;
+        }
+
+        this.replay(stream, List.of());
+    }
+
+    /**
+     * Replays all held responses followed by the given response, so it is not sent ahead of them
+     *
+     * @param stream The stream to send them on, which should be confirmed to work
+     * @param next The response to send after the held ones
+     * @throws BrokerStream.StreamEndingException Thrown when the stream failed, the responses are held again but the
+     * given response is not
+     */
+    synchronized void replay(BrokerStream.Outgoing stream, OutgoingMessage<?> next) throws BrokerStream.StreamEndingException {
+        this.replay(stream, List.of(next));
+    }
+
+    private void replay(BrokerStream.Outgoing stream, List<OutgoingMessage<?>> next) throws BrokerStream.StreamEndingException {
+        List<OutgoingMessage<?>> responses = new ArrayList<>(this.held);
+        responses.addAll(next);
+
+        stream.sendAll(responses);
+
+        int replayed = this.held.size();
+        if (0 == replayed) {
+            return;
+        }
+
+        this.held.clear();
+        this.size = 0;
+
+        logger.info("Replayed %d response(s)".formatted(replayed));
+
+        this.metrics.add("responses_replayed", replayed);
+    }
+}
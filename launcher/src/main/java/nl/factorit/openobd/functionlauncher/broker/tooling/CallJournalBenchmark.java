@@ -0,0 +1,123 @@
+package nl.factorit.openobd.functionlauncher.broker.tooling;
+
+import com.jifeline.OpenOBD.FunctionBroker.Messages.FunctionCall;
+import com.jifeline.OpenOBD.SessionController.Messages.SessionInfo;
+import nl.factorit.openobd.functionlauncher.CallJournal;
+import nl.factorit.openobd.functionlauncher.Logger;
+import nl.factorit.openobd.functionlauncher.Metrics;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Stream;
+
+/**
+ * Measures the append throughput of the CallJournal: JOURNAL_BENCHMARK_THREADS (default 8) threads journal the full
+ * lifecycle of JOURNAL_BENCHMARK_CALLS (default 1000000) calls in total, with a SessionInfo the size of a real one.
+ * Reports the calls and appends per second and the time a single append takes. The journal is written to a temporary
+ * directory, which is removed afterwards.
+ */
+public class CallJournalBenchmark {
+    private static final int DEFAULT_THREADS = 8;
+    private static final int DEFAULT_CALLS = 1_000_000;
+    private static final int TOKEN_SIZE = 900; // Roughly the size of a session's authentication token
+    private static final Logger logger = Logger.getLogger("CallJournalBenchmark");
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int threads = null != System.getenv("JOURNAL_BENCHMARK_THREADS")
+                ? Integer.parseInt(System.getenv("JOURNAL_BENCHMARK_THREADS"))
+                : DEFAULT_THREADS;
+        int calls = null != System.getenv("JOURNAL_BENCHMARK_CALLS")
+                ? Integer.parseInt(System.getenv("JOURNAL_BENCHMARK_CALLS"))
+                : DEFAULT_CALLS;
+
+        byte[] token = new byte[TOKEN_SIZE * 3 / 4];
+        ThreadLocalRandom.current().nextBytes(token);
+
+        FunctionCall call = FunctionCall.newBuilder()
+                .setId(UUID.randomUUID().toString())
+                .setSessionInfo(SessionInfo.newBuilder()
+                        .setId(UUID.randomUUID().toString())
+                        .setState("active")
+                        .setCreatedAt(System.currentTimeMillis())
+                        .setGrpcEndpoint("grpc.openobd.com")
+                        .setAuthenticationToken(Base64.getUrlEncoder().encodeToString(token))
+                        .build())
+                .build();
+
+        Path directory = Files.createTempDirectory("call-journal-benchmark");
+
+        try {
+            CallJournal journal = new CallJournal(directory, 16L * 1024 * 1024, Duration.ofMillis(10));
+            Metrics latencies = new Metrics("append");
+
+            // Warm up first, so the JIT compiler is done before measuring
+            run(journal, call, threads, calls / 10, new Metrics("warm_up"));
+
+            long start = System.nanoTime();
+            run(journal, call, threads, calls, latencies);
+            Duration took = Duration.ofNanos(System.nanoTime() - start);
+
+            journal.close();
+
+            logger.info("%d calls (%d appends) on %d thread(s) in %d ms: %d calls/s, %d appends/s".formatted(
+                    calls,
+                    calls * CallJournal.Event.values().length,
+                    threads,
+                    took.toMillis(),
+                    calls * 1_000_000_000L / Math.max(1, took.toNanos()),
+                    calls * CallJournal.Event.values().length * 1_000_000_000L / Math.max(1, took.toNanos())
+            ));
+            logger.info("Append latency in ns, %s".formatted(latencies));
+            logger.info(journal.getMetrics().toString());
+        } finally {
+            try (Stream<Path> files = Files.walk(directory)) {
+                for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Journals the lifecycle of the given amount of calls, divided over the threads
+     */
+    private static void run(CallJournal journal, FunctionCall call, int threads, int calls, Metrics latencies) throws InterruptedException {
+        List<Thread> workers = new ArrayList<>();
+
+        for (int worker = 0; worker < threads; worker++) {
+            int share = calls / threads + (worker < calls % threads ? 1 : 0);
+
+            Thread thread = new Thread(() -> {
+                String idempotencyKey = UUID.randomUUID().toString();
+
+                for (int i = 0; i < share; i++) {
+                    long start = System.nanoTime();
+                    long id = journal.received("001", call, idempotencyKey, System.currentTimeMillis());
+                    latencies.record("received", System.nanoTime() - start);
+
+                    start = System.nanoTime();
+                    journal.record(id, CallJournal.Event.DISPATCHED);
+                    latencies.record("event", System.nanoTime() - start);
+
+                    journal.record(id, CallJournal.Event.ACKED);
+                    journal.record(id, CallJournal.Event.RESPONDED);
+                }
+            });
+
+            thread.start();
+            workers.add(thread);
+        }
+
+        for (Thread worker : workers) {
+            worker.join();
+        }
+    }
+}
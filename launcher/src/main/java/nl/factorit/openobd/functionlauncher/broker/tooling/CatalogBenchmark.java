@@ -0,0 +1,215 @@
+package nl.factorit.openobd.functionlauncher.broker.tooling;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.jifeline.OpenOBD.Function.Messages.FunctionDetails;
+import com.jifeline.OpenOBD.FunctionBroker.Messages.FunctionRegistration;
+import com.jifeline.OpenOBD.FunctionBroker.Messages.FunctionRegistrationState;
+import nl.factorit.openobd.functionlauncher.CatalogSnapshot;
+import nl.factorit.openobd.functionlauncher.FunctionsParser;
+import nl.factorit.openobd.functionlauncher.Logger;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Stream;
+
+/**
+ * Measures how long it takes to load a catalog of CATALOG_BENCHMARK_FUNCTIONS (default 100000) functions and how much
+ * heap it takes per function, for the FunctionsParser and for the way the catalog used to be loaded: mapped as a whole
+ * by Jackson's ObjectMapper, with a FunctionRegistration built up front per function for a single cluster. The catalog
+ * is generated in a temporary file, which is removed afterwards.
+ *
+ * The same amount of functions is then divided over CATALOG_BENCHMARK_SHARDS (default 8) shards in a temporary
+ * directory, to measure loading them in parallel, loading them from a CatalogSnapshot (like after a restart) and
+ * reloading them after one of the shards changed.
+ *
+ * The heap is measured as the difference in used memory after collecting garbage, so run it with a fixed heap size
+ * (i.e. -Xms2g -Xmx2g) and nothing else running in the JVM.
+ */
+public class CatalogBenchmark {
+    private static final int DEFAULT_FUNCTIONS = 100_000;
+    private static final int DEFAULT_SHARDS = 8;
+    private static final int RUNS = 5;
+    private static final Logger logger = Logger.getLogger("CatalogBenchmark");
+
+    private interface Loader {
+        Object load(Path file) throws IOException;
+    }
+
+    private interface Run {
+        Object run() throws IOException;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int functions = null != System.getenv("CATALOG_BENCHMARK_FUNCTIONS")
+                ? Integer.parseInt(System.getenv("CATALOG_BENCHMARK_FUNCTIONS"))
+                : DEFAULT_FUNCTIONS;
+        int shards = null != System.getenv("CATALOG_BENCHMARK_SHARDS")
+                ? Integer.parseInt(System.getenv("CATALOG_BENCHMARK_SHARDS"))
+                : DEFAULT_SHARDS;
+
+        Path file = Files.createTempFile("catalog-benchmark", ".json");
+
+        try {
+            generate(file, functions);
+
+            logger.info("Generated %d functions in %d KiB of json".formatted(functions, Files.size(file) / 1024));
+
+            measure("ObjectMapper", file, functions, CatalogBenchmark::loadMapped);
+            measure("FunctionsParser", file, functions, loaded -> new FunctionsParser(loaded, FunctionsParser.FunctionMode.UNDEFINED).getFunctions());
+        } finally {
+            Files.delete(file);
+        }
+
+        Path directory = Files.createTempDirectory("catalog-benchmark");
+
+        try {
+            for (int shard = 0; shard < shards; shard++) {
+                generate(shardOf(directory, shard), functions / shards);
+            }
+
+            CatalogSnapshot snapshot = new CatalogSnapshot(directory.resolve(".catalog.snapshot"));
+            new FunctionsParser(directory, FunctionsParser.FunctionMode.UNDEFINED, snapshot);
+
+            time("%d shards, parsed in parallel".formatted(shards), () -> new FunctionsParser(directory, FunctionsParser.FunctionMode.UNDEFINED));
+            time("%d shards, from the snapshot".formatted(shards), () -> new FunctionsParser(directory, FunctionsParser.FunctionMode.UNDEFINED, snapshot));
+
+            FunctionsParser parser = new FunctionsParser(directory, FunctionsParser.FunctionMode.UNDEFINED);
+            time("%d shards, reloaded after 1 changed".formatted(shards), () -> {
+                generate(shardOf(directory, 0), functions / shards);
+
+                return parser.reload();
+            });
+        } finally {
+            try (Stream<Path> files = Files.walk(directory)) {
+                for (Path found : files.sorted(Comparator.reverseOrder()).toList()) {
+                    Files.delete(found);
+                }
+            }
+        }
+    }
+
+    private static Path shardOf(Path directory, int shard) {
+        return directory.resolve("shard-%03d.json".formatted(shard));
+    }
+
+    /**
+     * Loads the catalog like the Function Launcher used to
+     */
+    private static Object loadMapped(Path file) throws IOException {
+        Map<UUID, FunctionsParser.FunctionDescription> descriptions = new ObjectMapper().readValue(file.toFile(), new TypeReference<HashMap<UUID, FunctionsParser.FunctionDescription>>() {});
+        Map<String, FunctionRegistration> registrations = new HashMap<>();
+
+        descriptions.forEach((functionId, description) -> registrations.put(functionId.toString(), FunctionRegistration.newBuilder()
+                .setDetails(FunctionDetails.newBuilder()
+                        .setId(functionId.toString())
+                        .setName(description.name())
+                        .setVersion(description.version())
+                        .setDescription(description.description())
+                        .build())
+                .setSignature(description.signature())
+                .setState(FunctionRegistrationState.FUNCTION_REGISTRATION_STATE_OFFLINE)
+                .build()));
+
+        return List.of(descriptions, registrations);
+    }
+
+    private static void measure(String name, Path file, int functions, Loader loader) throws IOException, InterruptedException {
+        // Warm up first, so the JIT compiler is done before measuring
+        loader.load(file);
+
+        long fastest = Long.MAX_VALUE;
+        for (int run = 0; run < RUNS; run++) {
+            long start = System.nanoTime();
+            loader.load(file);
+            fastest = Math.min(fastest, System.nanoTime() - start);
+        }
+
+        long before = usedMemory();
+        Object catalog = loader.load(file);
+        long after = usedMemory();
+
+        logger.info("%s: loaded in %d ms, %d bytes of heap per function".formatted(
+                name,
+                Duration.ofNanos(fastest).toMillis(),
+                (after - before) / functions
+        ));
+
+        // Keeps the catalog reachable until its heap was measured
+        if (null == catalog) {
+            throw new IllegalStateException();
+        }
+    }
+
+    /**
+     * Reports the fastest of the runs, after a run to warm up
+     */
+    private static void time(String name, Run run) throws IOException {
+        run.run();
+
+        long fastest = Long.MAX_VALUE;
+        for (int i = 0; i < RUNS; i++) {
+            long start = System.nanoTime();
+            run.run();
+            fastest = Math.min(fastest, System.nanoTime() - start);
+        }
+
+        logger.info("%s: loaded in %d ms".formatted(name, Duration.ofNanos(fastest).toMillis()));
+    }
+
+    private static long usedMemory() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Writes a catalog where, like in a real one, the names and descriptions differ per function and the other values
+     * are one of a few
+     */
+    private static void generate(Path file, int functions) throws IOException {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        try (JsonGenerator generator = new JsonFactory().createGenerator(file.toFile(), JsonEncoding.UTF8)) {
+            generator.writeStartObject();
+
+            for (int function = 0; function < functions; function++) {
+                generator.writeObjectFieldStart(UUID.randomUUID().toString());
+                generator.writeStringField("name", "Function %d".formatted(function));
+                generator.writeStringField("signature", "function_%d(session: Session) -> None".formatted(function));
+                generator.writeStringField("description", "Reads and clears the diagnostic trouble codes of control unit %d".formatted(function));
+                generator.writeStringField("version", "1.%d.0".formatted(random.nextInt(10)));
+                generator.writeStringField("author", "author-%d".formatted(random.nextInt(20)));
+                generator.writeStringField("executor", "http://executor-%d:8000".formatted(random.nextInt(3)));
+                generator.writeStringField("runtime", "python3.%d".formatted(10 + random.nextInt(3)));
+                generator.writeNumberField("mode", random.nextInt(FunctionsParser.FunctionMode.values().length));
+                generator.writeArrayFieldStart("clusters");
+                generator.writeString("001");
+                if (random.nextBoolean()) {
+                    generator.writeString("002");
+                }
+                generator.writeEndArray();
+                generator.writeNumberField("max_runtime", 600);
+                generator.writeEndObject();
+            }
+
+            generator.writeEndObject();
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package nl.factorit.openobd.functionlauncher.broker.tooling;
+
+import com.jifeline.OpenOBD.SessionController.Messages.SessionInfo;
+import io.grpc.Deadline;
+import nl.factorit.openobd.functionlauncher.ChannelHttpClient;
+import nl.factorit.openobd.functionlauncher.ExecutorClient;
+import nl.factorit.openobd.functionlauncher.ExecutorTransport;
+import nl.factorit.openobd.functionlauncher.FunctionLauncher;
+import nl.factorit.openobd.functionlauncher.FunctionsParser;
+import nl.factorit.openobd.functionlauncher.HttpExecutorTransport;
+import nl.factorit.openobd.functionlauncher.Logger;
+import nl.factorit.openobd.functionlauncher.Metrics;
+import nl.factorit.openobd.functionlauncher.UnixSocketExecutorTransport;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the latency of launching a function on an executor on the same host: over TCP on localhost (with
+ * HttpURLConnection, like HttpExecutorTransport, and with the ChannelHttpClient) and over a Unix domain socket (see
+ * UnixSocketExecutorTransport). Every transport launches SOCKET_BENCHMARK_LAUNCHES (default 20000) functions one after
+ * the other, with a SessionInfo the size of a real one.
+ *
+ * The executor is a minimal HTTP/1.1 server in the same JVM that listens on both sockets and responds right away, so
+ * the difference is in the transport only. The socket is created in a temporary directory, which is removed afterwards.
+ */
+public class ExecutorSocketBenchmark {
+    private static final int DEFAULT_LAUNCHES = 20_000;
+    private static final int TOKEN_SIZE = 900; // Roughly the size of a session's authentication token
+    private static final byte[] HEALTH = "{\"healthy\": true, \"content_types\": [\"application/json\", \"application/x-protobuf\"]}".getBytes(StandardCharsets.UTF_8);
+    private static final Logger logger = Logger.getLogger("ExecutorSocketBenchmark");
+
+    public static void main(String[] args) throws IOException {
+        int launches = null != System.getenv("SOCKET_BENCHMARK_LAUNCHES")
+                ? Integer.parseInt(System.getenv("SOCKET_BENCHMARK_LAUNCHES"))
+                : DEFAULT_LAUNCHES;
+
+        byte[] token = new byte[TOKEN_SIZE * 3 / 4];
+        ThreadLocalRandom.current().nextBytes(token);
+
+        SessionInfo session = SessionInfo.newBuilder()
+                .setId(UUID.randomUUID().toString())
+                .setState("active")
+                .setCreatedAt(System.currentTimeMillis())
+                .setGrpcEndpoint("grpc.openobd.com")
+                .setAuthenticationToken(Base64.getUrlEncoder().encodeToString(token))
+                .build();
+
+        FunctionLauncher.Function function = new FunctionLauncher.Function(
+                UUID.randomUUID().toString(),
+                new FunctionsParser.FunctionDescription("benchmark", "benchmark", "benchmark", "0", "benchmark", "python", "python", FunctionsParser.FunctionMode.UNDEFINED, List.of(), null, null)
+        );
+
+        Path directory = Files.createTempDirectory("socket-benchmark");
+        Path socket = directory.resolve("executor.sock");
+
+        try (ServerSocketChannel tcp = ServerSocketChannel.open(StandardProtocolFamily.INET);
+             ServerSocketChannel unix = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            tcp.bind(new InetSocketAddress("localhost", 0));
+            unix.bind(UnixDomainSocketAddress.of(socket));
+
+            serve(tcp);
+            serve(unix);
+
+            int port = ((InetSocketAddress) tcp.getLocalAddress()).getPort();
+
+            measure("TCP, HttpURLConnection", new HttpExecutorTransport("http://localhost:%d".formatted(port)), function, session, launches);
+            measure("TCP, ChannelHttpClient", new UnixSocketExecutorTransport(new ChannelHttpClient(new InetSocketAddress("localhost", port))), function, session, launches);
+            measure("Unix domain socket", new UnixSocketExecutorTransport(UnixSocketExecutorTransport.SCHEME + socket), function, session, launches);
+        } finally {
+            Files.deleteIfExists(socket);
+            Files.delete(directory);
+        }
+    }
+
+    private static void measure(String name, ExecutorTransport transport, FunctionLauncher.Function function, SessionInfo session, int launches) {
+        Metrics latencies = new Metrics(name);
+
+        // Warm up first, so the JIT compiler is done before measuring
+        run(transport, function, session, launches / 10, new Metrics("warm_up"));
+
+        long start = System.nanoTime();
+        run(transport, function, session, launches, latencies);
+        Duration took = Duration.ofNanos(System.nanoTime() - start);
+
+        Metrics.Histogram latency = latencies.getHistogram("launch");
+
+        logger.info("%s: %d launches in %d ms, %d launches/s, latency in us p50=%.1f p90=%.1f p99=%.1f".formatted(
+                name,
+                launches,
+                took.toMillis(),
+                launches * 1_000_000_000L / Math.max(1, took.toNanos()),
+                latency.getPercentile(50) / 1000.0,
+                latency.getPercentile(90) / 1000.0,
+                latency.getPercentile(99) / 1000.0
+        ));
+
+        try {
+            transport.close(Duration.ofSeconds(1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void run(ExecutorTransport transport, FunctionLauncher.Function function, SessionInfo session, int launches, Metrics latencies) {
+        for (int i = 0; i < launches; i++) {
+            ExecutorClient.FunctionAndSessionInfo request = new ExecutorClient.FunctionAndSessionInfo(function, session, UUID.randomUUID().toString());
+
+            long start = System.nanoTime();
+            transport.startFunction(request, Deadline.after(5, TimeUnit.SECONDS));
+            latencies.record("launch", System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Accepts connections on a thread of its own, every connection is served on a thread of its own as well
+     */
+    private static void serve(ServerSocketChannel server) {
+        Thread acceptor = new Thread(() -> {
+            while (server.isOpen()) {
+                try {
+                    SocketChannel connection = server.accept();
+
+                    Thread handler = new Thread(() -> handle(connection), "executor-connection");
+                    handler.setDaemon(true);
+                    handler.start();
+                } catch (IOException e) {
+                    // The server was closed
+                }
+            }
+        }, "executor-acceptor");
+
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Answers the requests on a kept-alive connection: the health route, and a runtime id for every launch
+     */
+    private static void handle(SocketChannel connection) {
+        try (connection) {
+            if (connection.getLocalAddress() instanceof InetSocketAddress) {
+                // Like uvicorn, otherwise every response waits for the ACK of the previous one
+                connection.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            }
+
+            InputStream input = new BufferedInputStream(Channels.newInputStream(connection));
+            OutputStream output = Channels.newOutputStream(connection);
+            byte[] launched = "{\"runtime_id\": \"%s\"}".formatted(UUID.randomUUID()).getBytes(StandardCharsets.UTF_8);
+
+            String requestLine;
+            while (null != (requestLine = readLine(input))) {
+                int contentLength = 0;
+
+                String header;
+                while (null != (header = readLine(input)) && !header.isEmpty()) {
+                    if (header.toLowerCase(Locale.ROOT).startsWith("content-length:")) {
+                        contentLength = Integer.parseInt(header.substring(header.indexOf(':') + 1).trim());
+                    }
+                }
+
+                input.readNBytes(contentLength);
+
+                byte[] body = requestLine.startsWith("GET") ? HEALTH : launched;
+                byte[] head = "HTTP/1.1 200 OK\r\nContent-Type: application/json\r\nContent-Length: %d\r\n\r\n".formatted(body.length).getBytes(StandardCharsets.US_ASCII);
+
+                // Written at once, like uvicorn does
+                byte[] response = Arrays.copyOf(head, head.length + body.length);
+                System.arraycopy(body, 0, response, head.length, body.length);
+                output.write(response);
+            }
+        } catch (IOException e) {
+            // The client closed the connection
+        }
+    }
+
+    /**
+     * @return The line without its CR LF, null when the connection was closed
+     */
+    private static String readLine(InputStream input) throws IOException {
+        StringBuilder line = new StringBuilder();
+
+        int read;
+        while (-1 != (read = input.read())) {
+            if ('\n' == read) {
+                return line.toString();
+            } else if ('\r' != read) {
+                line.append((char) read);
+            }
+        }
+
+        return null;
+    }
+}
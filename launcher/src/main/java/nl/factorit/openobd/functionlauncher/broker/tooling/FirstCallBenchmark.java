@@ -0,0 +1,154 @@
+package nl.factorit.openobd.functionlauncher.broker.tooling;
+
+import com.jifeline.OpenOBD.FunctionBroker.Messages.FunctionUpdate;
+import io.grpc.Grpc;
+import io.grpc.InsecureServerCredentials;
+import io.grpc.Server;
+import nl.factorit.openobd.functionlauncher.Logger;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Measures the latency of the first call a Function Launcher handles after it registered its functions, with and
+ * without warm-up (see SKIP_WARM_UP). The launcher is started with the command given as arguments, against a stand-in
+ * Function Broker and a stub executor:
+ *
+ * <pre>
+ * java -cp function_launcher.jar ...FirstCallBenchmark java -jar function_launcher.jar
+ * </pre>
+ *
+ * Every one of the STARTUP_BENCHMARK_RUNS (default 5) runs starts the launcher twice, once without and once with
+ * warm-up. Make sure FUNCTIONS_FILE_LOCATION is set.
+ */
+public class FirstCallBenchmark {
+    private static final int DEFAULT_RUNS = 5;
+    private static final Duration MAX_STARTUP_TIME = Duration.ofMinutes(1);
+    private static final Duration MAX_CALL_TIME = Duration.ofSeconds(30);
+    private static final Duration MAX_STOP_TIME = Duration.ofSeconds(15);
+    private static final Logger logger = Logger.getLogger("FirstCallBenchmark");
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (0 == args.length) {
+            logger.error("Give the command that starts the Function Launcher as arguments");
+            System.exit(1);
+        }
+
+        int port = null != System.getenv("STAND_IN_BROKER_PORT")
+                ? Integer.parseInt(System.getenv("STAND_IN_BROKER_PORT"))
+                : StandInBroker.DEFAULT_PORT;
+        int executorPort = null != System.getenv("STUB_EXECUTOR_PORT")
+                ? Integer.parseInt(System.getenv("STUB_EXECUTOR_PORT"))
+                : StubExecutor.DEFAULT_PORT;
+        int runs = null != System.getenv("STARTUP_BENCHMARK_RUNS")
+                ? Integer.parseInt(System.getenv("STARTUP_BENCHMARK_RUNS"))
+                : DEFAULT_RUNS;
+
+        StandInBroker broker = new StandInBroker();
+        Server server = Grpc.newServerBuilderForPort(port, InsecureServerCredentials.create())
+                .addService(broker)
+                .build()
+                .start();
+
+        StubExecutor executor = new StubExecutor(executorPort);
+        executor.start();
+
+        ProcessBuilder launcher = new ProcessBuilder(args)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.DISCARD);
+
+        Map<String, String> environment = launcher.environment();
+        environment.put("DEV_MODE", "1");
+        environment.put("OPENOBD_GRPC_HOST", "localhost:%d".formatted(port));
+        environment.put("OPENOBD_EXECUTOR_HOST", "http://localhost:%d".formatted(executorPort));
+        environment.putIfAbsent("OPENOBD_PARTNER_CLIENT_ID", "first-call-benchmark");
+        environment.putIfAbsent("OPENOBD_PARTNER_CLIENT_SECRET", "first-call-benchmark");
+
+        List<Long> cold = new ArrayList<>();
+        List<Long> warm = new ArrayList<>();
+        for (int run = 1; run <= runs; run++) {
+            environment.put("SKIP_WARM_UP", "1");
+            measure(broker, launcher, run, "cold").ifPresent(cold::add);
+
+            environment.remove("SKIP_WARM_UP");
+            measure(broker, launcher, run, "warm").ifPresent(warm::add);
+        }
+
+        server.shutdownNow();
+        executor.stop();
+
+        report("Without warm-up", cold);
+        report("With warm-up", warm);
+    }
+
+    /**
+     * Starts the launcher, waits for it to come ONLINE and calls one of its functions
+     *
+     * @return The time it took for the call to be responded to, empty if the launcher did not respond in time
+     */
+    private static Optional<Long> measure(StandInBroker broker, ProcessBuilder launcher, int run, String label) throws IOException, InterruptedException {
+        CountDownLatch online = broker.expectOnline();
+        Process process = launcher.start();
+
+        try {
+            if (!online.await(MAX_STARTUP_TIME.toMillis(), TimeUnit.MILLISECONDS)) {
+                logger.error("Run %d (%s): no function came ONLINE within %d seconds".formatted(run, label, MAX_STARTUP_TIME.toSeconds()));
+
+                return Optional.empty();
+            }
+
+            long start = System.nanoTime();
+            Optional<CompletableFuture<FunctionUpdate>> call = broker.callRandomFunction();
+
+            if (call.isEmpty()) {
+                logger.error("Run %d (%s): no function to call".formatted(run, label));
+
+                return Optional.empty();
+            }
+
+            FunctionUpdate response = call.get().get(MAX_CALL_TIME.toMillis(), TimeUnit.MILLISECONDS);
+            long latency = Duration.ofNanos(System.nanoTime() - start).toMillis();
+
+            logger.info("Run %d (%s): first call responded with %s after %d ms".formatted(run, label, response.getResponse(), latency));
+
+            return Optional.of(latency);
+        } catch (ExecutionException | TimeoutException e) {
+            logger.error("Run %d (%s): first call was not responded to: %s".formatted(run, label, e.getMessage()));
+
+            return Optional.empty();
+        } finally {
+            process.destroy();
+
+            if (!process.waitFor(MAX_STOP_TIME.toMillis(), TimeUnit.MILLISECONDS)) {
+                process.destroyForcibly().waitFor();
+            }
+        }
+    }
+
+    private static void report(String label, List<Long> latencies) {
+        if (latencies.isEmpty()) {
+            logger.error("%s: no call was responded to".formatted(label));
+
+            return;
+        }
+
+        Collections.sort(latencies);
+        logger.info("%s, first call latency over %d run(s): min %d ms, median %d ms, max %d ms".formatted(
+                label,
+                latencies.size(),
+                latencies.get(0),
+                latencies.get(latencies.size() / 2),
+                latencies.get(latencies.size() - 1)
+        ));
+    }
+}
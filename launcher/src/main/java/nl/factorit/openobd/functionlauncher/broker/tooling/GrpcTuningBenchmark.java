@@ -0,0 +1,199 @@
+package nl.factorit.openobd.functionlauncher.broker.tooling;
+
+import com.jifeline.OpenOBD.FunctionBroker.Messages.FunctionCall;
+import com.jifeline.OpenOBD.FunctionBroker.Messages.FunctionUpdate;
+import com.jifeline.OpenOBD.FunctionBroker.functionBrokerGrpc;
+import com.jifeline.OpenOBD.SessionController.Messages.SessionInfo;
+import io.grpc.Grpc;
+import io.grpc.InsecureChannelCredentials;
+import io.grpc.InsecureServerCredentials;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.stub.StreamObserver;
+import nl.factorit.openobd.functionlauncher.GrpcChannels;
+import nl.factorit.openobd.functionlauncher.Logger;
+import nl.factorit.openobd.functionlauncher.Metrics;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Compares a channel to the Function Broker with gRPC's own settings to a tuned one (see GrpcChannels), on a stream to
+ * a loopback broker in the same JVM that sends back every FunctionUpdate it receives. Like BrokerStream, the received
+ * messages are put in a queue that another thread takes them from.
+ *
+ * For both channels GRPC_BENCHMARK_MESSAGES (default 20000) FunctionCalls with a SessionInfo the size of a real one are
+ * sent one at a time (the round trip latency), and then all at once (the throughput). The context switches of all
+ * threads of the JVM are counted from /proc, so this only reports them on Linux.
+ */
+public class GrpcTuningBenchmark {
+    private static final int DEFAULT_MESSAGES = 20_000;
+    private static final int TOKEN_SIZE = 900; // Roughly the size of a session's authentication token
+    private static final Logger logger = Logger.getLogger("GrpcTuningBenchmark");
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int messages = null != System.getenv("GRPC_BENCHMARK_MESSAGES")
+                ? Integer.parseInt(System.getenv("GRPC_BENCHMARK_MESSAGES"))
+                : DEFAULT_MESSAGES;
+
+        byte[] token = new byte[TOKEN_SIZE * 3 / 4];
+        ThreadLocalRandom.current().nextBytes(token);
+
+        FunctionUpdate update = FunctionUpdate.newBuilder()
+                .setFunctionCall(FunctionCall.newBuilder()
+                        .setId(UUID.randomUUID().toString())
+                        .setSessionInfo(SessionInfo.newBuilder()
+                                .setId(UUID.randomUUID().toString())
+                                .setState("active")
+                                .setCreatedAt(System.currentTimeMillis())
+                                .setGrpcEndpoint("grpc.openobd.com")
+                                .setAuthenticationToken(Base64.getUrlEncoder().encodeToString(token))
+                                .build())
+                        .build())
+                .build();
+
+        Server server = Grpc.newServerBuilderForPort(0, InsecureServerCredentials.create())
+                .addService(new EchoBroker())
+                .build()
+                .start();
+
+        try {
+            String target = "localhost:%d".formatted(server.getPort());
+
+            measure("gRPC defaults", GrpcChannels.forBroker(target, InsecureChannelCredentials.create(), false).build(), update, messages);
+            measure("Tuned", GrpcChannels.forBroker(target, InsecureChannelCredentials.create(), true).build(), update, messages);
+        } finally {
+            server.shutdownNow();
+        }
+    }
+
+    private static void measure(String name, ManagedChannel channel, FunctionUpdate update, int messages) throws InterruptedException {
+        BlockingQueue<FunctionUpdate> received = new LinkedBlockingQueue<>();
+        StreamObserver<FunctionUpdate> stream = functionBrokerGrpc.newStub(channel).openFunctionStream(new StreamObserver<>() {
+            @Override
+            public void onNext(FunctionUpdate message) {
+                received.add(message);
+            }
+
+            @Override
+            public void onError(Throwable cause) {
+                logger.error("Stream failed", cause);
+            }
+
+            @Override
+            public void onCompleted() {
+            }
+        });
+
+        // Warm up first, so the JIT compiler is done before measuring
+        roundTrips(stream, received, update, messages / 10, new Metrics("warm_up"));
+        burst(stream, received, update, messages / 10);
+
+        Metrics latencies = new Metrics(name);
+        long switches = contextSwitches();
+        long start = System.nanoTime();
+        roundTrips(stream, received, update, messages, latencies);
+        Duration took = Duration.ofNanos(System.nanoTime() - start);
+        long roundTripSwitches = contextSwitches() - switches;
+
+        Metrics.Histogram latency = latencies.getHistogram("round_trip");
+        logger.info("%s, one at a time: %d round trips/s, latency in us p50=%.1f p90=%.1f p99=%.1f, %.2f context switches per message".formatted(
+                name,
+                messages * 1_000_000_000L / Math.max(1, took.toNanos()),
+                latency.getPercentile(50) / 1000.0,
+                latency.getPercentile(90) / 1000.0,
+                latency.getPercentile(99) / 1000.0,
+                (double) roundTripSwitches / messages
+        ));
+
+        switches = contextSwitches();
+        start = System.nanoTime();
+        burst(stream, received, update, messages);
+        took = Duration.ofNanos(System.nanoTime() - start);
+        long burstSwitches = contextSwitches() - switches;
+
+        logger.info("%s, all at once: %d messages/s, %.2f context switches per message".formatted(
+                name,
+                messages * 1_000_000_000L / Math.max(1, took.toNanos()),
+                (double) burstSwitches / messages
+        ));
+
+        stream.onCompleted();
+        channel.shutdown().awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+    private static void roundTrips(StreamObserver<FunctionUpdate> stream, BlockingQueue<FunctionUpdate> received, FunctionUpdate update, int messages, Metrics latencies) throws InterruptedException {
+        for (int i = 0; i < messages; i++) {
+            long start = System.nanoTime();
+            stream.onNext(update);
+            received.take();
+            latencies.record("round_trip", System.nanoTime() - start);
+        }
+    }
+
+    private static void burst(StreamObserver<FunctionUpdate> stream, BlockingQueue<FunctionUpdate> received, FunctionUpdate update, int messages) throws InterruptedException {
+        for (int i = 0; i < messages; i++) {
+            stream.onNext(update);
+        }
+
+        for (int i = 0; i < messages; i++) {
+            received.take();
+        }
+    }
+
+    /**
+     * @return The voluntary and involuntary context switches of all (living) threads of the JVM, 0 when not on Linux
+     */
+    private static long contextSwitches() {
+        long switches = 0;
+
+        try (Stream<Path> tasks = Files.list(Path.of("/proc/self/task"))) {
+            for (Path task : tasks.toList()) {
+                try (Stream<String> lines = Files.lines(task.resolve("status"))) {
+                    switches += lines.filter(line -> line.contains("ctxt_switches"))
+                            .mapToLong(line -> Long.parseLong(line.substring(line.indexOf(':') + 1).trim()))
+                            .sum();
+                } catch (IOException e) {
+                    // The thread ended in the meantime
+                }
+            }
+        } catch (IOException e) {
+            return 0;
+        }
+
+        return switches;
+    }
+
+    /**
+     * Sends back every FunctionUpdate it receives
+     */
+    private static class EchoBroker extends functionBrokerGrpc.functionBrokerImplBase {
+        @Override
+        public StreamObserver<FunctionUpdate> openFunctionStream(StreamObserver<FunctionUpdate> responseObserver) {
+            return new StreamObserver<>() {
+                @Override
+                public void onNext(FunctionUpdate update) {
+                    responseObserver.onNext(update);
+                }
+
+                @Override
+                public void onError(Throwable cause) {
+                }
+
+                @Override
+                public void onCompleted() {
+                    responseObserver.onCompleted();
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package nl.factorit.openobd.functionlauncher.broker.tooling;
+
+import com.jifeline.OpenOBD.FunctionBroker.Messages.FunctionBrokerToken;
+import com.jifeline.OpenOBD.FunctionBroker.Messages.FunctionCall;
+import com.jifeline.OpenOBD.FunctionBroker.Messages.FunctionRegistrationState;
+import com.jifeline.OpenOBD.FunctionBroker.Messages.FunctionUpdate;
+import com.jifeline.OpenOBD.FunctionBroker.Messages.FunctionUpdateResponse;
+import com.jifeline.OpenOBD.SessionController.Messages.SessionInfo;
+import nl.factorit.openobd.functionlauncher.FunctionLauncher;
+import nl.factorit.openobd.functionlauncher.FunctionsParser;
+import nl.factorit.openobd.functionlauncher.Logger;
+import nl.factorit.openobd.functionlauncher.broker.communication.OutgoingMessage;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Base64;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.IntSupplier;
+
+/**
+ * Measures the bytes allocated (on the heap of the measuring thread) and sent for every message the launcher sends most:
+ * the response to a call, a registration mirrored on all streams of a connection, and the reply to a ping of the Function
+ * Broker. Every message is built the way BrokerStream does, with the builder of its stream, and then serialized to a
+ * null stream the way gRPC does.
+ *
+ * Every kind is measured OUTGOING_BENCHMARK_MESSAGES (default 200000) times, after as many to warm up. The heap is only
+ * measured when the JVM supports it (HotSpot does), the amounts are averages and include the garbage of the JIT compiler
+ * itself. Unlike with JMH, escape analysis is not prevented, so the numbers are what the launcher itself allocates.
+ */
+public class OutgoingMessageBenchmark {
+    private static final int DEFAULT_MESSAGES = 200_000;
+    private static final int STREAMS = 4; // The default of OPENOBD_BROKER_STREAMS is lower, a few more show the mirroring
+    private static final int TOKEN_SIZE = 900; // Roughly the size of a session's authentication token
+    private static final Logger logger = Logger.getLogger("OutgoingMessageBenchmark");
+
+    public static void main(String[] args) {
+        int messages = null != System.getenv("OUTGOING_BENCHMARK_MESSAGES")
+                ? Integer.parseInt(System.getenv("OUTGOING_BENCHMARK_MESSAGES"))
+                : DEFAULT_MESSAGES;
+
+        byte[] token = new byte[TOKEN_SIZE * 3 / 4];
+        ThreadLocalRandom.current().nextBytes(token);
+
+        FunctionCall call = FunctionCall.newBuilder()
+                .setId(UUID.randomUUID().toString())
+                .setSessionInfo(SessionInfo.newBuilder()
+                        .setId(UUID.randomUUID().toString())
+                        .setState("active")
+                        .setCreatedAt(System.currentTimeMillis())
+                        .setGrpcEndpoint("grpc.openobd.com")
+                        .setAuthenticationToken(Base64.getUrlEncoder().encodeToString(token))
+                        .build())
+                .build();
+
+        FunctionLauncher.Function function = new FunctionLauncher.Function(
+                UUID.randomUUID().toString(),
+                new FunctionsParser.FunctionDescription("benchmark", "benchmark", "benchmark", "0", "benchmark", "python", "python", FunctionsParser.FunctionMode.UNDEFINED, List.of(), null, null)
+        );
+
+        FunctionBrokerToken brokerToken = FunctionBrokerToken.newBuilder()
+                .setValue(Base64.getUrlEncoder().encodeToString(token))
+                .build();
+
+        FunctionUpdate.Builder builder = FunctionUpdate.newBuilder(); // Like the one every stream keeps
+
+        measure("Call response", messages, () -> send(builder, new OutgoingMessage.FunctionCallResponse(
+                call,
+                FunctionUpdateResponse.FUNCTION_UPDATE_SUCCESS,
+                "Function has been started successfully"
+        )));
+
+        measure("Registration on %d streams".formatted(STREAMS), messages, () -> {
+            OutgoingMessage.FunctionRegistrationMessage registration = new OutgoingMessage.FunctionRegistrationMessage(
+                    function.toRegistration(FunctionRegistrationState.FUNCTION_REGISTRATION_STATE_ONLINE)
+            );
+
+            int sent = 0;
+            for (int stream = 0; stream < STREAMS; stream++) {
+                sent += send(builder, registration);
+            }
+
+            return sent;
+        });
+
+        // The token of a ping rarely changes, so the reply to the previous one is sent again (see ClusterSession)
+        OutgoingMessage.FunctionBrokerTokenMessage[] reply = {new OutgoingMessage.FunctionBrokerTokenMessage(brokerToken)};
+        measure("Ping reply", messages, () -> {
+            if (!reply[0].isFor(brokerToken)) {
+                reply[0] = new OutgoingMessage.FunctionBrokerTokenMessage(brokerToken);
+            }
+
+            return send(builder, reply[0]);
+        });
+    }
+
+    /**
+     * @return The amount of bytes sent
+     */
+    private static int send(FunctionUpdate.Builder builder, OutgoingMessage<?> message) {
+        FunctionUpdate update = message.toFunctionUpdate(builder);
+
+        try {
+            update.writeTo(OutputStream.nullOutputStream());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+
+        return update.getSerializedSize();
+    }
+
+    private static void measure(String name, int messages, IntSupplier send) {
+        // Warm up first, so the JIT compiler is done before measuring
+        for (int i = 0; i < messages; i++) {
+            send.getAsInt();
+        }
+
+        long allocated = allocatedBytes();
+        long sent = 0;
+        long start = System.nanoTime();
+
+        for (int i = 0; i < messages; i++) {
+            sent += send.getAsInt();
+        }
+
+        long took = System.nanoTime() - start;
+        allocated = allocatedBytes() - allocated;
+
+        logger.info("%s: %d bytes allocated and %d bytes sent per message, %d ns per message".formatted(
+                name,
+                allocated / messages,
+                sent / messages,
+                took / messages
+        ));
+    }
+
+    /**
+     * @return The bytes allocated by the current thread so far, 0 when the JVM does not measure it
+     */
+    private static long allocatedBytes() {
+        if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean threads && threads.isThreadAllocatedMemorySupported()) {
+            return threads.getCurrentThreadAllocatedBytes();
+        }
+
+        return 0;
+    }
+}
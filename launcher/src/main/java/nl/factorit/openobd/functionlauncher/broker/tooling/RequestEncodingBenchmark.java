@@ -0,0 +1,83 @@
+package nl.factorit.openobd.functionlauncher.broker.tooling;
+
+import com.jifeline.OpenOBD.SessionController.Messages.SessionInfo;
+import nl.factorit.openobd.functionlauncher.ExecutorClient;
+import nl.factorit.openobd.functionlauncher.FunctionLauncher;
+import nl.factorit.openobd.functionlauncher.FunctionsParser;
+import nl.factorit.openobd.functionlauncher.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Compares the request bodies the Function Launcher can send to an executor: JSON (with a Base64 encoded SessionInfo)
+ * and protobuf (with the raw SessionInfo). Reports the size of both and the time it takes to encode them, over
+ * ENCODING_BENCHMARK_ITERATIONS (default 1000000) iterations.
+ */
+public class RequestEncodingBenchmark {
+    private static final int DEFAULT_ITERATIONS = 1_000_000;
+    private static final int TOKEN_SIZE = 900; // Roughly the size of a session's authentication token
+    private static final Logger logger = Logger.getLogger("RequestEncodingBenchmark");
+
+    public static void main(String[] args) throws IOException {
+        int iterations = null != System.getenv("ENCODING_BENCHMARK_ITERATIONS")
+                ? Integer.parseInt(System.getenv("ENCODING_BENCHMARK_ITERATIONS"))
+                : DEFAULT_ITERATIONS;
+
+        byte[] token = new byte[TOKEN_SIZE * 3 / 4];
+        ThreadLocalRandom.current().nextBytes(token);
+
+        SessionInfo session = SessionInfo.newBuilder()
+                .setId(UUID.randomUUID().toString())
+                .setState("active")
+                .setCreatedAt(System.currentTimeMillis())
+                .setGrpcEndpoint("grpc.openobd.com")
+                .setAuthenticationToken(Base64.getUrlEncoder().encodeToString(token))
+                .build();
+
+        FunctionLauncher.Function function = new FunctionLauncher.Function(
+                UUID.randomUUID().toString(),
+                new FunctionsParser.FunctionDescription("benchmark", "benchmark", "benchmark", "0", "benchmark", "python", "python", FunctionsParser.FunctionMode.UNDEFINED, List.of(), null, null)
+        );
+        ExecutorClient.FunctionAndSessionInfo request = new ExecutorClient.FunctionAndSessionInfo(function, session, UUID.randomUUID().toString());
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+        Encoder json = () -> body.write(request.toRequest().toJson().getBytes());
+        Encoder protobuf = () -> request.writeProtobuf(body);
+
+        // Warm up both, so the JIT compiler is done before measuring
+        measure(json, body, iterations / 10);
+        measure(protobuf, body, iterations / 10);
+
+        report("JSON", measure(json, body, iterations), body, json);
+        report("protobuf", measure(protobuf, body, iterations), body, protobuf);
+    }
+
+    private static Duration measure(Encoder encoder, ByteArrayOutputStream body, int iterations) throws IOException {
+        long start = System.nanoTime();
+
+        for (int iteration = 0; iteration < iterations; iteration++) {
+            body.reset();
+            encoder.encode();
+        }
+
+        return Duration.ofNanos((System.nanoTime() - start) / Math.max(1, iterations));
+    }
+
+    private static void report(String label, Duration perRequest, ByteArrayOutputStream body, Encoder encoder) throws IOException {
+        body.reset();
+        encoder.encode();
+
+        logger.info("%s: %d bytes per request, %d ns to encode".formatted(label, body.size(), perRequest.toNanos()));
+    }
+
+    private interface Encoder {
+        void encode() throws IOException;
+    }
+}
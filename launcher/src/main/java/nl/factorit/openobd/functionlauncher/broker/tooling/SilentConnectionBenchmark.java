@@ -0,0 +1,228 @@
+package nl.factorit.openobd.functionlauncher.broker.tooling;
+
+import io.grpc.Grpc;
+import io.grpc.InsecureServerCredentials;
+import io.grpc.Server;
+import nl.factorit.openobd.functionlauncher.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how long it takes a Function Launcher to notice that its connection to the Function Broker silently died,
+ * and to come ONLINE again over a new connection. The launcher connects to a stand-in Function Broker through a proxy,
+ * which at some point stops forwarding anything on the open connections without closing them: the launcher gets no
+ * error, no reset, it just never hears from the Function Broker again. New connections are forwarded as usual.
+ *
+ * <pre>
+ * java -cp function_launcher.jar ...SilentConnectionBenchmark java -jar function_launcher.jar
+ * </pre>
+ *
+ * The launcher is started once with the environment of the benchmark, so OPENOBD_BROKER_KEEPALIVE=0 measures the idle
+ * watchdog on its own. The connection is silenced SILENT_CONNECTION_RUNS (default 5) times. The stand-in listens on
+ * STAND_IN_BROKER_PORT and pings on STAND_IN_BROKER_PING_INTERVAL (in milliseconds, default 30000), the proxy listens
+ * on the next port. Make sure FUNCTIONS_FILE_LOCATION is set.
+ */
+public class SilentConnectionBenchmark {
+    private static final int DEFAULT_RUNS = 5;
+    private static final Duration SETTLE_TIME = Duration.ofSeconds(2);
+    private static final Duration MAX_RECOVERY_TIME = Duration.ofMinutes(5);
+    private static final Logger logger = Logger.getLogger("SilentConnectionBenchmark");
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (0 == args.length) {
+            logger.error("Give the command that starts the Function Launcher as arguments");
+            System.exit(1);
+        }
+
+        int port = null != System.getenv("STAND_IN_BROKER_PORT")
+                ? Integer.parseInt(System.getenv("STAND_IN_BROKER_PORT"))
+                : StandInBroker.DEFAULT_PORT;
+        long pingInterval = null != System.getenv("STAND_IN_BROKER_PING_INTERVAL")
+                ? Long.parseLong(System.getenv("STAND_IN_BROKER_PING_INTERVAL"))
+                : StandInBroker.DEFAULT_PING_INTERVAL.toMillis();
+        int runs = null != System.getenv("SILENT_CONNECTION_RUNS")
+                ? Integer.parseInt(System.getenv("SILENT_CONNECTION_RUNS"))
+                : DEFAULT_RUNS;
+
+        StandInBroker broker = new StandInBroker();
+        Server server = Grpc.newServerBuilderForPort(port, InsecureServerCredentials.create())
+                .addService(broker)
+                .permitKeepAliveTime(StandInBroker.MIN_KEEPALIVE_TIME.toNanos(), TimeUnit.NANOSECONDS)
+                .build()
+                .start();
+
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        scheduler.scheduleAtFixedRate(broker::ping, pingInterval, pingInterval, TimeUnit.MILLISECONDS);
+
+        SilencingProxy proxy = new SilencingProxy(port + 1, port);
+
+        ProcessBuilder launcher = new ProcessBuilder(args)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.DISCARD);
+
+        Map<String, String> environment = launcher.environment();
+        environment.put("DEV_MODE", "1");
+        environment.put("OPENOBD_GRPC_HOST", "localhost:%d".formatted(port + 1));
+        environment.putIfAbsent("OPENOBD_PARTNER_CLIENT_ID", "silent-connection-benchmark");
+        environment.putIfAbsent("OPENOBD_PARTNER_CLIENT_SECRET", "silent-connection-benchmark");
+
+        CountDownLatch online = broker.expectOnline();
+        Process process = launcher.start();
+
+        List<Long> recoveryTimes = new ArrayList<>();
+        try {
+            if (!online.await(MAX_RECOVERY_TIME.toMillis(), TimeUnit.MILLISECONDS)) {
+                logger.error("No function came ONLINE within %d seconds".formatted(MAX_RECOVERY_TIME.toSeconds()));
+                System.exit(1);
+            }
+
+            for (int run = 1; run <= runs; run++) {
+                Thread.sleep(SETTLE_TIME.toMillis());
+
+                online = broker.expectOnline();
+
+                long start = System.nanoTime();
+                int silenced = proxy.silence();
+
+                if (!online.await(MAX_RECOVERY_TIME.toMillis(), TimeUnit.MILLISECONDS)) {
+                    logger.error("Run %d: not ONLINE again within %d seconds".formatted(run, MAX_RECOVERY_TIME.toSeconds()));
+
+                    continue;
+                }
+
+                long recoveryTime = Duration.ofNanos(System.nanoTime() - start).toMillis();
+                recoveryTimes.add(recoveryTime);
+
+                logger.info("Run %d: silenced %d connection(s), ONLINE again after %d ms".formatted(run, silenced, recoveryTime));
+            }
+        } finally {
+            process.destroy();
+            if (!process.waitFor(15, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+            }
+
+            proxy.close();
+            scheduler.shutdownNow();
+            server.shutdownNow();
+        }
+
+        if (!recoveryTimes.isEmpty()) {
+            logger.info("Time to detect and recover in ms: min %d, average %d, max %d".formatted(
+                    recoveryTimes.stream().mapToLong(Long::longValue).min().orElseThrow(),
+                    (long) recoveryTimes.stream().mapToLong(Long::longValue).average().orElseThrow(),
+                    recoveryTimes.stream().mapToLong(Long::longValue).max().orElseThrow()
+            ));
+        }
+    }
+
+    /**
+     * TCP proxy that can silence the connections it forwards: everything that is received on them is read and thrown
+     * away from then on, while the connections stay open
+     */
+    private static class SilencingProxy {
+        private final ServerSocket serverSocket;
+        private final int targetPort;
+        private final List<Link> links = new CopyOnWriteArrayList<>();
+
+        private SilencingProxy(int port, int targetPort) throws IOException {
+            this.serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+            this.targetPort = targetPort;
+
+            Thread acceptor = new Thread(this::accept, "silencing-proxy");
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        private void accept() {
+            while (!this.serverSocket.isClosed()) {
+                try {
+                    Socket client = this.serverSocket.accept();
+                    Socket target = new Socket(InetAddress.getLoopbackAddress(), this.targetPort);
+
+                    Link link = new Link(client, target);
+                    this.links.add(link);
+
+                    link.forward(client, target);
+                    link.forward(target, client);
+                } catch (IOException e) {
+                    if (!this.serverSocket.isClosed()) {
+                        logger.error("Could not forward a connection: %s".formatted(e.getMessage()));
+                    }
+                }
+            }
+        }
+
+        /**
+         * @return The amount of connections that were silenced
+         */
+        private int silence() {
+            int silenced = 0;
+
+            for (Link link : this.links) {
+                if (!link.silent) {
+                    link.silent = true;
+                    silenced++;
+                }
+            }
+
+            return silenced;
+        }
+
+        private void close() throws IOException {
+            this.serverSocket.close();
+
+            for (Link link : this.links) {
+                link.client.close();
+                link.target.close();
+            }
+        }
+
+        /**
+         * A single forwarded connection
+         */
+        private static class Link {
+            private final Socket client;
+            private final Socket target;
+            private volatile boolean silent = false;
+
+            private Link(Socket client, Socket target) {
+                this.client = client;
+                this.target = target;
+            }
+
+            private void forward(Socket from, Socket to) {
+                Thread thread = new Thread(() -> {
+                    byte[] buffer = new byte[16 * 1024];
+
+                    try (InputStream in = from.getInputStream(); OutputStream out = to.getOutputStream()) {
+                        for (int read = in.read(buffer); -1 != read; read = in.read(buffer)) {
+                            if (!this.silent) {
+                                out.write(buffer, 0, read);
+                                out.flush();
+                            }
+                        }
+                    } catch (IOException e) {
+                        // The connection was closed by either side
+                    }
+                }, "silencing-proxy-link");
+
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package nl.factorit.openobd.functionlauncher.broker.tooling;
+
+import com.jifeline.OpenOBD.FunctionBroker.Messages.*;
+import com.jifeline.OpenOBD.FunctionBroker.functionBrokerGrpc;
+import com.jifeline.OpenOBD.SessionController.Messages.Authenticate;
+import com.jifeline.OpenOBD.SessionController.Messages.SessionInfo;
+import io.grpc.Grpc;
+import io.grpc.InsecureServerCredentials;
+import io.grpc.Server;
+import io.grpc.stub.StreamObserver;
+import nl.factorit.openobd.functionlauncher.Logger;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Only used to run one or more Function Launchers locally, without interacting with the public openOBD network. Start
+ * the launchers with DEV_MODE set and OPENOBD_GRPC_HOST pointing to this stand-in (i.e. localhost:50051).
+ *
+ * Every registration is accepted and logged, so it is easy to see which launcher serves which function. When
+ * STAND_IN_BROKER_CALL_INTERVAL (in milliseconds) is set, a FunctionCall is sent for a random ONLINE function on
+ * that interval. To mimic a call that is delivered again after a reconnect, STAND_IN_BROKER_DUPLICATE_RATE (default 0)
+ * is the fraction of the calls that is sent twice. Like the real Function Broker, every stream is pinged with a token
+ * on an interval, STAND_IN_BROKER_PING_INTERVAL (in milliseconds, default 30000).
+ */
+public class StandInBroker extends functionBrokerGrpc.functionBrokerImplBase {
+    static final int DEFAULT_PORT = 50051;
+    static final Duration DEFAULT_PING_INTERVAL = Duration.ofSeconds(30);
+    // Launchers ping the connection as often as every 10 seconds, the gRPC default only allows it every 5 minutes
+    static final Duration MIN_KEEPALIVE_TIME = Duration.ofSeconds(10);
+    private static final Duration STATUS_INTERVAL = Duration.ofSeconds(5);
+    private static final Logger logger = Logger.getLogger("StandInBroker");
+
+    private final Map<Integer, Connection> connections = new ConcurrentHashMap<>();
+    private final AtomicInteger connectionCount = new AtomicInteger();
+    private final double duplicateRate;
+
+    // Counted down on every ONLINE registration, so it can be measured how long a launcher takes to come ONLINE
+    private volatile CountDownLatch registeredOnline = new CountDownLatch(1);
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int port = null != System.getenv("STAND_IN_BROKER_PORT")
+                ? Integer.parseInt(System.getenv("STAND_IN_BROKER_PORT"))
+                : DEFAULT_PORT;
+
+        StandInBroker broker = new StandInBroker(null != System.getenv("STAND_IN_BROKER_DUPLICATE_RATE")
+                ? Double.parseDouble(System.getenv("STAND_IN_BROKER_DUPLICATE_RATE"))
+                : 0);
+        Server server = Grpc.newServerBuilderForPort(port, InsecureServerCredentials.create())
+                .addService(broker)
+                .permitKeepAliveTime(StandInBroker.MIN_KEEPALIVE_TIME.toNanos(), TimeUnit.NANOSECONDS)
+                .build()
+                .start();
+
+        logger.info("Stand-in Function Broker listening on port %d".formatted(port));
+
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        scheduler.scheduleAtFixedRate(broker::logStatus, STATUS_INTERVAL.toMillis(), STATUS_INTERVAL.toMillis(), TimeUnit.MILLISECONDS);
+
+        long pingInterval = null != System.getenv("STAND_IN_BROKER_PING_INTERVAL")
+                ? Long.parseLong(System.getenv("STAND_IN_BROKER_PING_INTERVAL"))
+                : DEFAULT_PING_INTERVAL.toMillis();
+        scheduler.scheduleAtFixedRate(broker::ping, pingInterval, pingInterval, TimeUnit.MILLISECONDS);
+
+        String callInterval = System.getenv("STAND_IN_BROKER_CALL_INTERVAL");
+        if (null != callInterval) {
+            scheduler.scheduleAtFixedRate(broker::callRandomFunction, 0, Long.parseLong(callInterval), TimeUnit.MILLISECONDS);
+        }
+
+        server.awaitTermination();
+    }
+
+    StandInBroker() {
+        this(0);
+    }
+
+    /**
+     * @param duplicateRate The fraction of the calls that is sent twice
+     */
+    StandInBroker(double duplicateRate) {
+        this.duplicateRate = duplicateRate;
+    }
+
+    @Override
+    public void getFunctionBrokerToken(Authenticate request, StreamObserver<FunctionBrokerToken> responseObserver) {
+        logger.info("Client %s authenticated on cluster %s".formatted(request.getClientId(), request.getClusterId()));
+
+        responseObserver.onNext(FunctionBrokerToken.newBuilder().setValue("stand-in-token").build());
+        responseObserver.onCompleted();
+    }
+
+    @Override
+    public StreamObserver<FunctionUpdate> openFunctionStream(StreamObserver<FunctionUpdate> responseObserver) {
+        Connection connection = new Connection(this.connectionCount.incrementAndGet(), responseObserver);
+        this.connections.put(connection.id, connection);
+
+        logger.info("Stream %d opened".formatted(connection.id));
+
+        return connection;
+    }
+
+    /**
+     * @return Latch that is counted down on the first ONLINE registration received from now on
+     */
+    CountDownLatch expectOnline() {
+        this.registeredOnline = new CountDownLatch(1);
+
+        return this.registeredOnline;
+    }
+
+    private void logStatus() {
+        Map<String, Integer> functions = new TreeMap<>();
+        this.connections.values().forEach(connection -> connection.online.forEach(functionId -> functions.merge(functionId, 1, Integer::sum)));
+
+        logger.info("%d function(s) ONLINE on %d stream(s)".formatted(functions.size(), this.connections.size()));
+        this.connections.values().forEach(connection ->
+                logger.info(" stream %d: %d function(s) ONLINE".formatted(connection.id, connection.online.size())));
+    }
+
+    /**
+     * Sends a token to every stream, which the Function Launcher answers with a ping of its own
+     */
+    void ping() {
+        FunctionUpdate update = FunctionUpdate.newBuilder()
+                .setType(FunctionUpdateType.FUNCTION_UPDATE_TYPE_REQUEST)
+                .setFunctionBrokerToken(FunctionBrokerToken.newBuilder().setValue("stand-in-token").build())
+                .build();
+
+        for (Connection connection : this.connections.values()) {
+            try {
+                connection.send(update);
+            } catch (RuntimeException e) {
+                // A failing stream must not stop the pings on the other streams
+                logger.info("Could not ping stream %d: %s".formatted(connection.id, e.getMessage()));
+            }
+        }
+    }
+
+    /**
+     * Calls a random ONLINE function
+     *
+     * @return The response of the Function Launcher, empty when no function is ONLINE
+     */
+    Optional<CompletableFuture<FunctionUpdate>> callRandomFunction() {
+        List<Connection> candidates = this.connections.values().stream()
+                .filter(connection -> !connection.online.isEmpty())
+                .toList();
+
+        if (candidates.isEmpty()) {
+            return Optional.empty();
+        }
+
+        Connection connection = candidates.get(ThreadLocalRandom.current().nextInt(candidates.size()));
+        List<String> functions = List.copyOf(connection.online);
+        String functionId = functions.get(ThreadLocalRandom.current().nextInt(functions.size()));
+
+        logger.info("Calling function %s on stream %d".formatted(functionId, connection.id));
+
+        return Optional.of(connection.call(functionId));
+    }
+
+    /**
+     * A single function stream opened by a Function Launcher
+     */
+    private class Connection implements StreamObserver<FunctionUpdate> {
+        private final int id;
+        private final StreamObserver<FunctionUpdate> responseObserver;
+        private final Set<String> online = ConcurrentHashMap.newKeySet();
+        private final Map<String, CompletableFuture<FunctionUpdate>> pendingCalls = new ConcurrentHashMap<>(); // by session id
+
+        private Connection(int id, StreamObserver<FunctionUpdate> responseObserver) {
+            this.id = id;
+            this.responseObserver = responseObserver;
+        }
+
+        private synchronized void send(FunctionUpdate update) {
+            this.responseObserver.onNext(update);
+        }
+
+        private CompletableFuture<FunctionUpdate> call(String functionId) {
+            String sessionId = UUID.randomUUID().toString();
+
+            CompletableFuture<FunctionUpdate> response = new CompletableFuture<>();
+            this.pendingCalls.put(sessionId, response);
+
+            FunctionUpdate update = FunctionUpdate.newBuilder()
+                    .setType(FunctionUpdateType.FUNCTION_UPDATE_TYPE_REQUEST)
+                    .setFunctionCall(FunctionCall.newBuilder()
+                            .setId(functionId)
+                            .setSessionInfo(SessionInfo.newBuilder().setId(sessionId).build())
+                            .build())
+                    .build();
+
+            this.send(update);
+
+            if (ThreadLocalRandom.current().nextDouble() < StandInBroker.this.duplicateRate) {
+                logger.info("Stream %d: calling function %s again for session %s".formatted(this.id, functionId, sessionId));
+
+                this.send(update);
+            }
+
+            return response;
+        }
+
+        @Override
+        public void onNext(FunctionUpdate update) {
+            if (update.hasFunctionRegistration()) {
+                FunctionRegistration registration = update.getFunctionRegistration();
+                String functionId = registration.getDetails().getId();
+
+                if (FunctionRegistrationState.FUNCTION_REGISTRATION_STATE_ONLINE == registration.getState()) {
+                    this.online.add(functionId);
+                    StandInBroker.this.registeredOnline.countDown();
+                } else {
+                    this.online.remove(functionId);
+                }
+
+                logger.debug("Stream %d: function %s is %s".formatted(this.id, functionId, registration.getState()));
+
+                this.send(FunctionUpdate.newBuilder()
+                        .setType(FunctionUpdateType.FUNCTION_UPDATE_TYPE_RESPONSE)
+                        .setResponse(FunctionUpdateResponse.FUNCTION_UPDATE_SUCCESS)
+                        .setFunctionRegistration(registration)
+                        .build());
+            } else if (update.hasFunctionCall()) {
+                logger.info("Stream %d: function %s responded with %s (%s)".formatted(
+                        this.id,
+                        update.getFunctionCall().getId(),
+                        update.getResponse(),
+                        update.getResponseDescription()
+                ));
+
+                CompletableFuture<FunctionUpdate> response = this.pendingCalls.remove(update.getFunctionCall().getSessionInfo().getId());
+                if (null != response) {
+                    response.complete(update);
+                }
+            } else {
+                logger.debug("Stream %d: ignoring %s".formatted(this.id, update.getFunctionDataCase()));
+            }
+        }
+
+        @Override
+        public void onError(Throwable cause) {
+            logger.info("Stream %d closed with an error: %s".formatted(this.id, cause.getMessage()));
+
+            StandInBroker.this.connections.remove(this.id);
+        }
+
+        @Override
+        public void onCompleted() {
+            logger.info("Stream %d completed".formatted(this.id));
+
+            StandInBroker.this.connections.remove(this.id);
+            this.responseObserver.onCompleted();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package nl.factorit.openobd.functionlauncher.broker.tooling;
+
+import io.grpc.Grpc;
+import io.grpc.InsecureServerCredentials;
+import io.grpc.Server;
+import nl.factorit.openobd.functionlauncher.Logger;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how long it takes a Function Launcher to start, as the time between starting its process and the first
+ * ONLINE registration received by a stand-in Function Broker. The command to start the launcher is given as arguments,
+ * so the JVM and the native image can be compared:
+ *
+ * <pre>
+ * java -cp function_launcher.jar ...StartupBenchmark java -jar function_launcher.jar
+ * java -cp function_launcher.jar ...StartupBenchmark ./function_launcher
+ * </pre>
+ *
+ * The launcher is started STARTUP_BENCHMARK_RUNS (default 5) times with the environment of the benchmark, pointed to
+ * the stand-in on STAND_IN_BROKER_PORT. Make sure FUNCTIONS_FILE_LOCATION is set.
+ */
+public class StartupBenchmark {
+    private static final int DEFAULT_RUNS = 5;
+    private static final Duration MAX_STARTUP_TIME = Duration.ofMinutes(1);
+    private static final Duration MAX_STOP_TIME = Duration.ofSeconds(15);
+    private static final Logger logger = Logger.getLogger("StartupBenchmark");
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (0 == args.length) {
+            logger.error("Give the command that starts the Function Launcher as arguments");
+            System.exit(1);
+        }
+
+        int port = null != System.getenv("STAND_IN_BROKER_PORT")
+                ? Integer.parseInt(System.getenv("STAND_IN_BROKER_PORT"))
+                : StandInBroker.DEFAULT_PORT;
+        int runs = null != System.getenv("STARTUP_BENCHMARK_RUNS")
+                ? Integer.parseInt(System.getenv("STARTUP_BENCHMARK_RUNS"))
+                : DEFAULT_RUNS;
+
+        StandInBroker broker = new StandInBroker();
+        Server server = Grpc.newServerBuilderForPort(port, InsecureServerCredentials.create())
+                .addService(broker)
+                .build()
+                .start();
+
+        ProcessBuilder launcher = new ProcessBuilder(args)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.DISCARD);
+
+        Map<String, String> environment = launcher.environment();
+        environment.put("DEV_MODE", "1");
+        environment.put("OPENOBD_GRPC_HOST", "localhost:%d".formatted(port));
+        environment.putIfAbsent("OPENOBD_PARTNER_CLIENT_ID", "startup-benchmark");
+        environment.putIfAbsent("OPENOBD_PARTNER_CLIENT_SECRET", "startup-benchmark");
+
+        List<Long> startupTimes = new ArrayList<>();
+        for (int run = 1; run <= runs; run++) {
+            CountDownLatch online = broker.expectOnline();
+
+            long start = System.nanoTime();
+            Process process = launcher.start();
+
+            try {
+                if (!online.await(MAX_STARTUP_TIME.toMillis(), TimeUnit.MILLISECONDS)) {
+                    logger.error("Run %d: no function came ONLINE within %d seconds".formatted(run, MAX_STARTUP_TIME.toSeconds()));
+
+                    continue;
+                }
+
+                long startupTime = Duration.ofNanos(System.nanoTime() - start).toMillis();
+                startupTimes.add(startupTime);
+
+                logger.info("Run %d: first function ONLINE after %d ms".formatted(run, startupTime));
+            } finally {
+                stop(process);
+            }
+        }
+
+        server.shutdownNow();
+
+        if (startupTimes.isEmpty()) {
+            logger.error("The Function Launcher never came ONLINE, command: %s".formatted(Arrays.toString(args)));
+            System.exit(1);
+        }
+
+        Collections.sort(startupTimes);
+        logger.info("Time to first ONLINE registration over %d run(s): min %d ms, median %d ms, max %d ms".formatted(
+                startupTimes.size(),
+                startupTimes.get(0),
+                startupTimes.get(startupTimes.size() / 2),
+                startupTimes.get(startupTimes.size() - 1)
+        ));
+    }
+
+    /**
+     * Stops the launcher like the container platform would, so the next run does not compete with its drain
+     */
+    private static void stop(Process process) throws InterruptedException {
+        process.destroy();
+
+        if (!process.waitFor(MAX_STOP_TIME.toMillis(), TimeUnit.MILLISECONDS)) {
+            process.destroyForcibly().waitFor();
+        }
+    }
+}
@@ -0,0 +1,331 @@
+package nl.factorit.openobd.functionlauncher.broker.tooling;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.grpc.Grpc;
+import io.grpc.InsecureServerCredentials;
+import io.grpc.Server;
+import io.grpc.stub.StreamObserver;
+import nl.factorit.openobd.functionlauncher.Logger;
+import nl.factorit.openobd.functionlauncher.executor.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringJoiner;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Only used to run a Function Launcher locally without a real executor. Responds to the health route (advertising
+ * both JSON and protobuf requests) and accepts every function that is started, without running anything. A started
+ * function is listed as running for STUB_EXECUTOR_FUNCTION_DURATION milliseconds (default 0), unless it is cancelled.
+ * Start the launcher with OPENOBD_EXECUTOR_HOST pointing to this stub (i.e. http://localhost:8080). When
+ * STUB_EXECUTOR_GRPC_PORT is set, the gRPC executor service is served as well (i.e.
+ * OPENOBD_EXECUTOR_GRPC_HOSTS=python=localhost:9090).
+ *
+ * Like a real executor should, a launch with an idempotency key that was seen before is not started again, the runtime
+ * id of the first launch is returned instead. To test retries, STUB_EXECUTOR_FAILURE_RATE (default 0) is the fraction of
+ * the HTTP launches that is answered with a 503 after the function was started.
+ */
+public class StubExecutor {
+    static final int DEFAULT_PORT = 8080;
+    private static final int REMEMBERED_LAUNCHES = 10_000;
+    private static final Logger logger = Logger.getLogger("StubExecutor");
+
+    private final HttpServer server;
+    private final Server grpcServer;
+    private final AtomicLong started = new AtomicLong();
+    private final AtomicLong cancelled = new AtomicLong();
+    private final AtomicLong deduplicated = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final Duration functionDuration;
+    private final double failureRate;
+    private final Map<String, Long> running = new ConcurrentHashMap<>(); // end time by runtime id
+    // Runtime id by idempotency key, only the most recent launches are remembered
+    private final Map<String, String> launches = new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return REMEMBERED_LAUNCHES < this.size();
+        }
+    };
+    private final ScheduledExecutorService completions = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "stub-executor-completions");
+        thread.setDaemon(true);
+
+        return thread;
+    });
+
+    StubExecutor(int port) throws IOException {
+        this(port, null, Duration.ZERO, 0);
+    }
+
+    /**
+     * @param port The port of the HTTP API
+     * @param grpcPort The port of the gRPC service (see executor.proto), or null for none
+     * @param functionDuration How long a started function is listed as running
+     * @param failureRate The fraction of the HTTP launches that fail after the function was started
+     */
+    StubExecutor(int port, Integer grpcPort, Duration functionDuration, double failureRate) throws IOException {
+        this.functionDuration = functionDuration;
+        this.failureRate = failureRate;
+
+        this.server = HttpServer.create(new InetSocketAddress(port), 0);
+        this.server.createContext("/", this::handle);
+        this.server.setExecutor(Executors.newCachedThreadPool());
+
+        this.grpcServer = null != grpcPort
+                ? Grpc.newServerBuilderForPort(grpcPort, InsecureServerCredentials.create()).addService(new GrpcService()).build()
+                : null;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = null != System.getenv("STUB_EXECUTOR_PORT")
+                ? Integer.parseInt(System.getenv("STUB_EXECUTOR_PORT"))
+                : DEFAULT_PORT;
+        Integer grpcPort = null != System.getenv("STUB_EXECUTOR_GRPC_PORT")
+                ? Integer.valueOf(System.getenv("STUB_EXECUTOR_GRPC_PORT"))
+                : null;
+        Duration functionDuration = null != System.getenv("STUB_EXECUTOR_FUNCTION_DURATION")
+                ? Duration.ofMillis(Long.parseLong(System.getenv("STUB_EXECUTOR_FUNCTION_DURATION")))
+                : Duration.ZERO;
+        double failureRate = null != System.getenv("STUB_EXECUTOR_FAILURE_RATE")
+                ? Double.parseDouble(System.getenv("STUB_EXECUTOR_FAILURE_RATE"))
+                : 0;
+
+        StubExecutor executor = new StubExecutor(port, grpcPort, functionDuration, failureRate);
+        executor.start();
+
+        // Report what happened to the started functions every now and then
+        executor.completions.scheduleWithFixedDelay(
+                () -> logger.info("%d function(s) started, %d running, %d cancelled, %d deduplicated, %d failed".formatted(
+                        executor.getStarted(),
+                        executor.getRunning().size(),
+                        executor.cancelled.get(),
+                        executor.deduplicated.get(),
+                        executor.failed.get()
+                )),
+                10, 10, TimeUnit.SECONDS
+        );
+
+        logger.info("Stub executor listening on port %d".formatted(port));
+        if (null != grpcPort) {
+            logger.info("Stub executor listening for gRPC on port %d".formatted(grpcPort));
+        }
+    }
+
+    void start() throws IOException {
+        this.server.start();
+
+        if (null != this.grpcServer) {
+            this.grpcServer.start();
+        }
+    }
+
+    void stop() {
+        this.server.stop(0);
+        this.completions.shutdownNow();
+
+        if (null != this.grpcServer) {
+            this.grpcServer.shutdownNow();
+        }
+    }
+
+    /**
+     * @return The amount of functions started on this stub
+     */
+    long getStarted() {
+        return this.started.get();
+    }
+
+    /**
+     * @return The runtime ids of the functions that are listed as running
+     */
+    Set<String> getRunning() {
+        long now = System.currentTimeMillis();
+        this.running.values().removeIf(endsAt -> endsAt <= now);
+
+        return Set.copyOf(this.running.keySet());
+    }
+
+    /**
+     * @param idempotencyKey Identifies the call, null or empty when the launcher didn't send one
+     * @return The runtime id of the started function, or of the function started earlier for the same key
+     */
+    private String startFunction(String functionId, String idempotencyKey) {
+        String runtimeId = UUID.randomUUID().toString();
+
+        if (null != idempotencyKey && !idempotencyKey.isEmpty()) {
+            synchronized (this.launches) {
+                String earlier = this.launches.putIfAbsent(idempotencyKey, runtimeId);
+
+                if (null != earlier) {
+                    this.deduplicated.incrementAndGet();
+                    logger.debug("Function %s was already started as %s".formatted(functionId, earlier));
+
+                    return earlier;
+                }
+            }
+        }
+
+        this.started.incrementAndGet();
+        this.running.put(runtimeId, System.currentTimeMillis() + this.functionDuration.toMillis());
+        logger.debug("Started function %s as %s".formatted(functionId, runtimeId));
+
+        return runtimeId;
+    }
+
+    /**
+     * @return Whether the function was running
+     */
+    private boolean cancelFunction(String runtimeId) {
+        boolean wasRunning = this.getRunning().contains(runtimeId) && null != this.running.remove(runtimeId);
+
+        if (wasRunning) {
+            this.cancelled.incrementAndGet();
+            logger.debug("Cancelled function run %s".formatted(runtimeId));
+        }
+
+        return wasRunning;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            try (InputStream input = exchange.getRequestBody()) {
+                input.readAllBytes();
+            }
+
+            // Routes like the Python executor: /<executor>, /<executor>/function/<function_id>,
+            // /<executor>/running_functions and /<executor>/running_functions/<runtime_id>
+            String[] path = exchange.getRequestURI().getPath().split("/");
+            int status = 200;
+            String response;
+            if ("POST".equals(exchange.getRequestMethod()) && 2 <= path.length && "function".equals(path[path.length - 2])) {
+                String functionId = path[path.length - 1];
+                String runtimeId = this.startFunction(functionId, exchange.getRequestHeaders().getFirst("Idempotency-Key"));
+
+                if (ThreadLocalRandom.current().nextDouble() < this.failureRate) {
+                    this.failed.incrementAndGet();
+
+                    status = 503;
+                    response = "{\"detail\": \"Stub executor failed on purpose\"}";
+                } else {
+                    response = "{\"runtime_id\": \"%s\", \"function_id\": \"%s\"}".formatted(runtimeId, functionId);
+                }
+            } else if ("DELETE".equals(exchange.getRequestMethod()) && 2 <= path.length && "running_functions".equals(path[path.length - 2])) {
+                String runtimeId = path[path.length - 1];
+
+                if (this.cancelFunction(runtimeId)) {
+                    response = "{\"runtime_id\": \"%s\", \"cancelled\": true}".formatted(runtimeId);
+                } else {
+                    status = 404;
+                    response = "{\"detail\": \"Function run %s is not running\"}".formatted(runtimeId);
+                }
+            } else if (0 < path.length && "running_functions".equals(path[path.length - 1])) {
+                StringJoiner runtimeIds = new StringJoiner("\", \"", "[\"", "\"]");
+                runtimeIds.setEmptyValue("[]");
+                this.getRunning().forEach(runtimeIds::add);
+
+                response = runtimeIds.toString();
+            } else {
+                response = "{\"healthy\": true, \"content_types\": [\"application/json\", \"application/x-protobuf\"]}";
+            }
+
+            byte[] body = response.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(status, body.length);
+
+            try (OutputStream output = exchange.getResponseBody()) {
+                output.write(body);
+            }
+        }
+    }
+
+    /**
+     * Acks every launch on the executor stream as started, followed by the status of the run once it completed (or was
+     * cancelled)
+     */
+    private class GrpcService extends FunctionExecutorGrpc.FunctionExecutorImplBase {
+        @Override
+        public StreamObserver<LauncherMessage> openExecutorStream(StreamObserver<ExecutorMessage> responseObserver) {
+            logger.debug("Executor stream opened");
+
+            return new StreamObserver<>() {
+                @Override
+                public void onNext(LauncherMessage message) {
+                    if (message.hasCancel()) {
+                        if (StubExecutor.this.cancelFunction(message.getCancel().getRuntimeId())) {
+                            this.send(status(message.getCancel().getRuntimeId(), FunctionState.FUNCTION_STATE_CANCELLED, message.getCancel().getReason()));
+                        }
+
+                        return;
+                    }
+
+                    if (!message.hasLaunch()) {
+                        return;
+                    }
+
+                    String runtimeId = StubExecutor.this.startFunction(message.getLaunch().getFunctionId(), message.getLaunch().getIdempotencyKey());
+
+                    this.send(ExecutorMessage.newBuilder()
+                            .setAck(LaunchAck.newBuilder()
+                                    .setRequestId(message.getLaunch().getRequestId())
+                                    .setStarted(true)
+                                    .setRuntimeId(runtimeId)
+                                    .build())
+                            .build());
+
+                    StubExecutor.this.completions.schedule(() -> {
+                        if (null != StubExecutor.this.running.remove(runtimeId)) {
+                            this.send(status(runtimeId, FunctionState.FUNCTION_STATE_COMPLETED, "Stub executor does not run anything"));
+                        }
+                    }, StubExecutor.this.functionDuration.toMillis(), TimeUnit.MILLISECONDS);
+                }
+
+                /**
+                 * Messages on a stream may not be sent concurrently
+                 */
+                private void send(ExecutorMessage message) {
+                    synchronized (responseObserver) {
+                        responseObserver.onNext(message);
+                    }
+                }
+
+                @Override
+                public void onError(Throwable cause) {
+                    logger.debug("Executor stream closed with an error: %s".formatted(cause.getMessage()));
+                }
+
+                @Override
+                public void onCompleted() {
+                    logger.debug("Executor stream completed");
+
+                    synchronized (responseObserver) {
+                        responseObserver.onCompleted();
+                    }
+                }
+            };
+        }
+
+        private static ExecutorMessage status(String runtimeId, FunctionState state, String description) {
+            return ExecutorMessage.newBuilder()
+                    .setStatus(FunctionStatus.newBuilder()
+                            .setRuntimeId(runtimeId)
+                            .setState(state)
+                            .setDescription(description)
+                            .build())
+                    .build();
+        }
+    }
+}